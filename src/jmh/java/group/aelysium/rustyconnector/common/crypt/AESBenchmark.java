@@ -0,0 +1,119 @@
+package group.aelysium.rustyconnector.common.crypt;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link AES} in both of its modes against the original implementation,
+ * which created a new Cipher and SecureRandom for every packet and copied the IV and ciphertext into a combined array.
+ * <br/><br/>
+ * Run with `./gradlew jmh`.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AESBenchmark {
+    @Param({"256", "4096", "65536"})
+    public int size;
+
+    private SecretKey key;
+    private AES cbc;
+    private AES gcm;
+    private String plaintext;
+    private ByteBuffer input;
+    private ByteBuffer output;
+    private String cbcCiphertext;
+    private String gcmCiphertext;
+    private String legacyCiphertext;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] key = AES.createKey();
+        this.key = new SecretKeySpec(key, "AES");
+        this.cbc = AES.from(key, AES.Mode.CBC);
+        this.gcm = AES.from(key, AES.Mode.GCM);
+
+        byte[] bytes = new byte[this.size];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) ('a' + ThreadLocalRandom.current().nextInt(26));
+        this.plaintext = new String(bytes, StandardCharsets.UTF_8);
+        this.input = ByteBuffer.wrap(bytes);
+        this.output = ByteBuffer.allocate(this.gcm.encryptedLength(this.size) + this.cbc.encryptedLength(this.size));
+
+        this.cbcCiphertext = this.cbc.encrypt(this.plaintext);
+        this.gcmCiphertext = this.gcm.encrypt(this.plaintext);
+        this.legacyCiphertext = this.legacyEncrypt();
+    }
+
+    @Benchmark
+    public String legacyEncrypt() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        byte[] ivBytes = new byte[16];
+        new SecureRandom().nextBytes(ivBytes);
+        IvParameterSpec iv = new IvParameterSpec(ivBytes);
+        cipher.init(Cipher.ENCRYPT_MODE, this.key, iv);
+        byte[] encryptedBytes = cipher.doFinal(this.plaintext.getBytes(StandardCharsets.UTF_8));
+
+        byte[] combined = new byte[iv.getIV().length + encryptedBytes.length];
+        System.arraycopy(iv.getIV(), 0, combined, 0, iv.getIV().length);
+        System.arraycopy(encryptedBytes, 0, combined, iv.getIV().length, encryptedBytes.length);
+
+        return new String(Base64.getEncoder().encode(combined), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String legacyDecrypt() throws Exception {
+        byte[] decodedBytes = Base64.getDecoder().decode(this.legacyCiphertext);
+        byte[] ivBytes = new byte[16];
+        byte[] encryptedBytes = new byte[decodedBytes.length - 16];
+        System.arraycopy(decodedBytes, 0, ivBytes, 0, 16);
+        System.arraycopy(decodedBytes, 16, encryptedBytes, 0, encryptedBytes.length);
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, this.key, new IvParameterSpec(ivBytes));
+
+        return new String(cipher.doFinal(encryptedBytes), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String cbcEncrypt() throws Exception {
+        return this.cbc.encrypt(this.plaintext);
+    }
+
+    @Benchmark
+    public String cbcDecrypt() throws Exception {
+        return this.cbc.decrypt(this.cbcCiphertext);
+    }
+
+    @Benchmark
+    public String gcmEncrypt() throws Exception {
+        return this.gcm.encrypt(this.plaintext);
+    }
+
+    @Benchmark
+    public String gcmDecrypt() throws Exception {
+        return this.gcm.decrypt(this.gcmCiphertext);
+    }
+
+    @Benchmark
+    public int cbcEncryptBuffer() throws Exception {
+        return this.cbc.encrypt(this.input.clear(), this.output.clear());
+    }
+
+    @Benchmark
+    public int gcmEncryptBuffer() throws Exception {
+        return this.gcm.encrypt(this.input.clear(), this.output.clear());
+    }
+}
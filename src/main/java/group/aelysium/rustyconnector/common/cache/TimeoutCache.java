@@ -1,10 +1,7 @@
 package group.aelysium.rustyconnector.common.cache;
 
-import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
@@ -13,34 +10,57 @@ import java.util.stream.Collectors;
 import group.aelysium.ara.Closure;
 import group.aelysium.rustyconnector.proxy.util.LiquidTimestamp;
 
+/**
+ * A map whose entries are removed once they've been in it for longer than {@link #expiration()}.<br/>
+ * Every entry is given its own timeout on a {@link TimingWheel}, so entries expire to the millisecond
+ * and removing an entry before it expires cancels its timeout.
+ */
 public class TimeoutCache<K, V> implements Closure, Map<K, V> {
-    private final ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor();
+    private final TimingWheel wheel;
     private final Map<K, TimedValue<V>> map = new ConcurrentHashMap<>();
     private final List<Consumer<V>> onTimeout = new Vector<>();
     private final LiquidTimestamp expiration;
+    private final long expirationMillis;
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
 
     public TimeoutCache(LiquidTimestamp expiration) {
+        this(expiration, TimingWheel.shared());
+    }
+
+    /**
+     * @param expiration How long entries stay in the cache for.
+     * @param wheel The timing wheel used to expire entries.
+     */
+    public TimeoutCache(LiquidTimestamp expiration, TimingWheel wheel) {
         this.expiration = expiration;
-        this.clock.execute(this::evaluateThenRunAgain);
+        this.expirationMillis = expiration.unit().toMillis(expiration.value());
+        this.wheel = wheel;
     }
 
     public LiquidTimestamp expiration() {
         return this.expiration;
     }
 
-    private void evaluateThenRunAgain() {
-        if(shutdown.get()) return;
-        
-        long now = Instant.now().getEpochSecond();
-        this.map.entrySet().removeIf(entry -> {
-            boolean shouldRemove = entry.getValue().expiration() < now;
-            if(shouldRemove) this.onTimeout.forEach(c -> c.accept(entry.getValue().value()));
-            return shouldRemove;
-        });
+    private TimedValue<V> schedule(K key, V value) {
+        return this.schedule(key, value, this.expirationMillis);
+    }
 
-        if(shutdown.get()) return;
-        this.clock.schedule(this::evaluateThenRunAgain, this.expiration.value(), this.expiration.unit());
+    private TimedValue<V> schedule(K key, V value, long expirationMillis) {
+        TimedValue<V> timedValue = new TimedValue<>(value);
+        timedValue.timeout = this.wheel.schedule(() -> this.expire(key, timedValue), expirationMillis, TimeUnit.MILLISECONDS);
+        return timedValue;
+    }
+
+    private void expire(K key, TimedValue<V> timedValue) {
+        if(this.shutdown.get()) return;
+        if(!this.map.remove(key, timedValue)) return;
+        this.onTimeout.forEach(c -> c.accept(timedValue.value()));
+    }
+
+    private static <V> V cancel(TimedValue<V> timedValue) {
+        if(timedValue == null) return null;
+        timedValue.timeout.cancel();
+        return timedValue.value();
     }
 
     public void onTimeout(Consumer<V> consumer) {
@@ -51,16 +71,38 @@ public class TimeoutCache<K, V> implements Closure, Map<K, V> {
     public void close() {
         this.shutdown.set(true);
         this.onTimeout.clear();
-        this.map.clear();
-        this.clock.shutdownNow();
+        this.clear();
     }
 
     @Override
     public V put(K key, V value) {
-        this.map.put(key, new TimedValue<>(value, this.expiration));
+        cancel(this.map.put(key, this.schedule(key, value)));
+        return value;
+    }
+
+    /**
+     * Puts the entry into the cache with its own expiration, instead of {@link #expiration()}.
+     * The entry goes back to using {@link #expiration()} if it's ever {@link #refresh(Object) refreshed}.
+     * @param key The key.
+     * @param value The value.
+     * @param expiration How long this entry stays in the cache for.
+     * @return The value.
+     */
+    public V put(K key, V value, LiquidTimestamp expiration) {
+        cancel(this.map.put(key, this.schedule(key, value, expiration.unit().toMillis(expiration.value()))));
         return value;
     }
 
+    @Override
+    public V putIfAbsent(K key, V value) {
+        TimedValue<V> timedValue = this.schedule(key, value);
+        TimedValue<V> existing = this.map.putIfAbsent(key, timedValue);
+        if(existing == null) return null;
+
+        timedValue.timeout.cancel();
+        return existing.value();
+    }
+
     @Override
     public int size() {
         return this.map.size();
@@ -78,7 +120,7 @@ public class TimeoutCache<K, V> implements Closure, Map<K, V> {
 
     @Override
     public boolean containsValue(Object value) {
-        return this.map.containsValue(new TimedValue<>(value, LiquidTimestamp.from(0, TimeUnit.SECONDS)));
+        return this.map.containsValue(new TimedValue<>(value));
     }
 
     @Override
@@ -89,18 +131,17 @@ public class TimeoutCache<K, V> implements Closure, Map<K, V> {
 
     @Override
     public V remove(Object key) {
-        TimedValue<V> timedValue = this.map.remove(key);
-        return timedValue == null ? null : timedValue.value();
+        return cancel(this.map.remove(key));
     }
 
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
-        m.forEach((k, v) -> this.map.put(k, new TimedValue<>(v, this.expiration)));
+        m.forEach(this::put);
     }
 
     @Override
     public void clear() {
-        this.map.clear();
+        this.map.keySet().forEach(this::remove);
     }
 
     @Override
@@ -135,21 +176,16 @@ public class TimeoutCache<K, V> implements Closure, Map<K, V> {
 
     protected static class TimedValue<V> {
         private final V value;
-        private final long expiration;
+        private TimingWheel.Timeout timeout;
 
-        public TimedValue(V value, LiquidTimestamp expireAfter) {
+        public TimedValue(V value) {
             this.value = value;
-            this.expiration = expireAfter.epochFromNow();
         }
 
         public V value() {
             return value;
         }
 
-        public long expiration() {
-            return expiration;
-        }
-
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -0,0 +1,269 @@
+package group.aelysium.rustyconnector.common.cache;
+
+import group.aelysium.rustyconnector.RC;
+import group.aelysium.rustyconnector.common.errors.Error;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel which runs every scheduled timeout from a single thread.<br/>
+ * Scheduling and canceling a timeout are both O(1), and no work is done for timeouts which aren't due yet,
+ * other than counting down the number of rotations they still have to wait for.
+ * When nothing is scheduled the thread parks until something is.
+ * <br/><br/>
+ * Tasks run on the wheel's thread, so they should be quick and must never block.
+ */
+public class TimingWheel implements AutoCloseable {
+    private static volatile TimingWheel shared = null;
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> canceled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean idle = false;
+    private long tick = 0;
+
+    /**
+     * @param tick How long each tick of the wheel lasts. This is the resolution that timeouts expire at.
+     * @param unit The unit of `tick`.
+     * @param wheelSize The number of buckets in the wheel. Rounded up to the next power of two.
+     */
+    public TimingWheel(long tick, @NotNull TimeUnit unit, int wheelSize) {
+        if(tick <= 0) throw new IllegalArgumentException("tick must be larger than 0.");
+        if(wheelSize <= 0) throw new IllegalArgumentException("wheelSize must be larger than 0.");
+
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        if(size <= 0) size = 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) this.wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.tickNanos = unit.toNanos(tick);
+
+        this.worker = Thread.ofPlatform().name("rustyconnector-timing-wheel").daemon(true).unstarted(this::run);
+        this.worker.start();
+    }
+
+    /**
+     * The timing wheel shared by every {@link TimeoutCache} that isn't given its own.
+     * It ticks once per millisecond, and is created the first time it's needed.
+     */
+    public static @NotNull TimingWheel shared() {
+        TimingWheel wheel = shared;
+        if(wheel != null) return wheel;
+
+        synchronized (TimingWheel.class) {
+            if(shared == null) shared = new TimingWheel(1, TimeUnit.MILLISECONDS, 1024);
+            return shared;
+        }
+    }
+
+    /**
+     * Schedules the task to run once the delay has passed.
+     * @param task The task to run.
+     * @param delay How long to wait before running the task.
+     * @param unit The unit of `delay`.
+     * @return A handle which can be used to cancel the task.
+     * @throws IllegalStateException If the wheel has been closed.
+     */
+    public @NotNull Timeout schedule(@NotNull Runnable task, long delay, @NotNull TimeUnit unit) throws IllegalStateException {
+        if(this.closed.get()) throw new IllegalStateException("This timing wheel has been closed.");
+
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - this.startTime + Math.max(0, unit.toNanos(delay)));
+        this.pending.incrementAndGet();
+        this.scheduled.offer(timeout);
+        if(this.idle) LockSupport.unpark(this.worker);
+        return timeout;
+    }
+
+    /**
+     * @return The number of timeouts which are waiting to expire.
+     */
+    public int pending() {
+        return this.pending.get();
+    }
+
+    /**
+     * @return How long each tick of the wheel lasts, in milliseconds.
+     */
+    public double tickMillis() {
+        return this.tickNanos / 1_000_000D;
+    }
+
+    private void run() {
+        while (!this.closed.get()) {
+            long now = System.nanoTime() - this.startTime;
+
+            if(this.pending.get() == 0) {
+                this.processCanceled();
+                this.idle = true;
+                if(this.pending.get() == 0 && !this.closed.get()) LockSupport.park(this);
+                this.idle = false;
+
+                // Nothing was scheduled while parked, so the buckets that were skipped over are all empty.
+                this.tick = (System.nanoTime() - this.startTime) / this.tickNanos;
+                continue;
+            }
+
+            long deadline = (this.tick + 1) * this.tickNanos;
+            if(now < deadline) {
+                LockSupport.parkNanos(this, deadline - now);
+                continue;
+            }
+
+            this.processCanceled();
+            this.transferScheduled();
+            this.wheel[(int) (this.tick & this.mask)].expire();
+            this.tick++;
+        }
+
+        for (Bucket bucket : this.wheel) bucket.clear();
+        this.scheduled.clear();
+        this.canceled.clear();
+    }
+
+    private void transferScheduled() {
+        // Limit how many are transferred per tick so that a flood of new timeouts can't starve the wheel.
+        for (int i = 0; i < 100_000; i++) {
+            Timeout timeout = this.scheduled.poll();
+            if(timeout == null) return;
+            if(timeout.state.get() != Timeout.WAITING) continue;
+
+            long expiresOnTick = timeout.deadline / this.tickNanos;
+            timeout.remainingRounds = (expiresOnTick - this.tick) / this.wheel.length;
+
+            long tick = Math.max(expiresOnTick, this.tick);
+            this.wheel[(int) (tick & this.mask)].add(timeout);
+        }
+    }
+
+    private void processCanceled() {
+        Timeout timeout;
+        while ((timeout = this.canceled.poll()) != null) {
+            if(timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    @Override
+    public void close() {
+        if(!this.closed.compareAndSet(false, true)) return;
+        LockSupport.unpark(this.worker);
+
+        synchronized (TimingWheel.class) {
+            if(shared == this) shared = null;
+        }
+    }
+
+    /**
+     * A task which has been scheduled on a {@link TimingWheel}.
+     */
+    public static class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELED = 1;
+        private static final int EXPIRED = 2;
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout previous;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout so that its task never runs.
+         * @return `true` if the timeout was canceled. `false` if it had already expired or been canceled.
+         */
+        public boolean cancel() {
+            if(!this.state.compareAndSet(WAITING, CANCELED)) return false;
+            this.wheel.pending.decrementAndGet();
+            this.wheel.canceled.offer(this);
+            return true;
+        }
+
+        public boolean canceled() {
+            return this.state.get() == CANCELED;
+        }
+
+        public boolean expired() {
+            return this.state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if(!this.state.compareAndSet(WAITING, EXPIRED)) return;
+            this.wheel.pending.decrementAndGet();
+            try {
+                this.task.run();
+            } catch (Throwable e) {
+                RC.Error(Error.from(e).whileAttempting("To run a task scheduled on a timing wheel."));
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts. Only ever touched by the wheel's thread.
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if(this.head == null) {
+                this.head = this.tail = timeout;
+                return;
+            }
+            this.tail.next = timeout;
+            timeout.previous = this.tail;
+            this.tail = timeout;
+        }
+
+        private void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if(timeout.previous != null) timeout.previous.next = next;
+            if(next != null) next.previous = timeout.previous;
+
+            if(timeout == this.head) this.head = next;
+            if(timeout == this.tail) this.tail = timeout.previous;
+
+            timeout.next = null;
+            timeout.previous = null;
+            timeout.bucket = null;
+        }
+
+        private void expire() {
+            Timeout timeout = this.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if(timeout.remainingRounds <= 0) {
+                    this.remove(timeout);
+                    timeout.expire();
+                } else if(timeout.canceled()) this.remove(timeout);
+                else timeout.remainingRounds--;
+                timeout = next;
+            }
+        }
+
+        private void clear() {
+            this.head = null;
+            this.tail = null;
+        }
+    }
+}
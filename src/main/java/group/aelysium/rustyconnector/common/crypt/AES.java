@@ -1,20 +1,55 @@
 package group.aelysium.rustyconnector.common.crypt;
 
+import org.jetbrains.annotations.NotNull;
+
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
 import java.util.Base64;
 
 public class AES {
+    private static final SecureRandom random = new SecureRandom();
     private final SecretKey key;
+    private final Mode mode;
+    private final ThreadLocal<Cipher> ciphers;
 
     public AES(SecretKey key) {
+        this(key, Mode.CBC);
+    }
+
+    public AES(@NotNull SecretKey key, @NotNull Mode mode) {
         this.key = key;
+        this.mode = mode;
+        this.ciphers = ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance(mode.transformation);
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to create a cipher for "+mode.transformation, e);
+            }
+        });
+    }
+
+    /**
+     * The mode that this AES instance encrypts with.
+     */
+    public @NotNull Mode mode() {
+        return this.mode;
+    }
+
+    /**
+     * Whether the ciphertext produced by this instance is authenticated.
+     * If it is, tampered or forged ciphertext will fail to decrypt, so there's no need to separately sign the plaintext.
+     */
+    public boolean authenticated() {
+        return this.mode.authenticated();
     }
 
     /**
@@ -24,31 +59,84 @@ public class AES {
      * @throws Exception If there was an issue.
      */
     public String encrypt(String data) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        IvParameterSpec iv = createIv();
-        cipher.init(Cipher.ENCRYPT_MODE, this.key, iv);
-        byte[] encryptedBytes = cipher.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        return this.encrypt(data.getBytes(StandardCharsets.UTF_8));
+    }
 
-        // Combine IV and encrypted bytes
-        byte[] combined = new byte[iv.getIV().length + encryptedBytes.length];
-        System.arraycopy(iv.getIV(), 0, combined, 0, iv.getIV().length);
-        System.arraycopy(encryptedBytes, 0, combined, iv.getIV().length, encryptedBytes.length);
+    /**
+     * Encrypts the data into a Base64 encoded string.
+     * @param data The data to encrypt.
+     * @return A Base64 encoded string.
+     * @throws Exception If there was an issue.
+     */
+    public String encrypt(byte[] data) throws Exception {
+        // The IV and ciphertext are written straight into the same array, so there's nothing to combine afterward.
+        byte[] combined = new byte[this.encryptedLength(data.length)];
+        this.encrypt(ByteBuffer.wrap(data), ByteBuffer.wrap(combined));
 
         return new String(Base64.getEncoder().encode(combined), StandardCharsets.UTF_8);
     }
     public String decrypt(String base64EncryptedData) throws Exception {
+        return new String(this.decryptBytes(base64EncryptedData), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decrypts the Base64 encoded data without assuming that the decrypted data is a string.
+     * @param base64EncryptedData The Base64 encoded data to decrypt.
+     * @return The decrypted bytes.
+     * @throws Exception If there was an issue.
+     */
+    public byte[] decryptBytes(String base64EncryptedData) throws Exception {
         byte[] decodedBytes = Base64.getDecoder().decode(base64EncryptedData);
-        // Extract IV and encrypted bytes
-        byte[] ivBytes = new byte[16];
-        byte[] encryptedBytes = new byte[decodedBytes.length - 16];
-        System.arraycopy(decodedBytes, 0, ivBytes, 0, 16);
-        System.arraycopy(decodedBytes, 16, encryptedBytes, 0, encryptedBytes.length);
 
-        IvParameterSpec iv = new IvParameterSpec(ivBytes);
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        cipher.init(Cipher.DECRYPT_MODE, this.key, iv);
+        Cipher cipher = this.ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, this.key, this.mode.parameters(decodedBytes, 0));
+
+        return cipher.doFinal(decodedBytes, this.mode.ivLength, decodedBytes.length - this.mode.ivLength);
+    }
+
+    /**
+     * The number of bytes that {@link #encrypt(ByteBuffer, ByteBuffer)} will write for a plaintext of the provided length.
+     * @param plaintextLength The length of the plaintext.
+     * @return The length of the IV plus the ciphertext.
+     */
+    public int encryptedLength(int plaintextLength) {
+        return this.mode.encryptedLength(plaintextLength);
+    }
 
-        return new String(cipher.doFinal(encryptedBytes), StandardCharsets.UTF_8);
+    /**
+     * Encrypts the remaining bytes of `input` into `output` without Base64 encoding them.
+     * The IV is written first, followed by the ciphertext.
+     * @param input The plaintext to encrypt. It's read from its position up to its limit.
+     * @param output The buffer to write into. It must have at least {@link #encryptedLength(int)} bytes remaining.
+     * @return The number of bytes written into `output`.
+     * @throws Exception If there was an issue.
+     */
+    public int encrypt(ByteBuffer input, ByteBuffer output) throws Exception {
+        byte[] iv = new byte[this.mode.ivLength];
+        random.nextBytes(iv);
+
+        Cipher cipher = this.ciphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, this.key, this.mode.parameters(iv, 0));
+
+        output.put(iv);
+        return iv.length + cipher.doFinal(input, output);
+    }
+
+    /**
+     * Decrypts data that was written by {@link #encrypt(ByteBuffer, ByteBuffer)}.
+     * `input` and `output` are allowed to share the same memory, which allows a buffer to be decrypted in place.
+     * @param input The IV followed by the ciphertext. It's read from its position up to its limit.
+     * @param output The buffer to write the plaintext into.
+     * @return The number of bytes written into `output`.
+     * @throws Exception If there was an issue.
+     */
+    public int decrypt(ByteBuffer input, ByteBuffer output) throws Exception {
+        byte[] iv = new byte[this.mode.ivLength];
+        input.get(iv);
+
+        Cipher cipher = this.ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, this.key, this.mode.parameters(iv, 0));
+        return cipher.doFinal(input, output);
     }
 
     public static byte[] createKey() throws NoSuchAlgorithmException {
@@ -60,13 +148,52 @@ public class AES {
     }
 
     public static AES from(byte[] key) {
+        return from(key, Mode.CBC);
+    }
+
+    public static AES from(byte[] key, @NotNull Mode mode) {
         SecretKey secretKey = new SecretKeySpec(key, "AES");
-        return new AES(secretKey);
+        return new AES(secretKey, mode);
     }
 
-    private static IvParameterSpec createIv() {
-        byte[] iv = new byte[16];
-        new SecureRandom().nextBytes(iv);
-        return new IvParameterSpec(iv);
+    /**
+     * The block cipher modes that AES can run in.
+     * Both ends of a connection must use the same mode, since ciphertext produced by one can't be decrypted by the other.
+     */
+    public enum Mode {
+        /**
+         * AES-256-CBC with PKCS#5 padding. This is the default, and is what all previous versions of RustyConnector use.
+         */
+        CBC("AES/CBC/PKCS5Padding", 16, 0),
+
+        /**
+         * AES-256-GCM with a 96-bit IV and a 128-bit authentication tag.
+         * Ciphertext is authenticated, so any tampering causes decryption to fail.
+         */
+        GCM("AES/GCM/NoPadding", 12, 16);
+
+        private final String transformation;
+        private final int ivLength;
+        private final int tagLength;
+
+        Mode(String transformation, int ivLength, int tagLength) {
+            this.transformation = transformation;
+            this.ivLength = ivLength;
+            this.tagLength = tagLength;
+        }
+
+        public boolean authenticated() {
+            return this.tagLength > 0;
+        }
+
+        private int encryptedLength(int plaintextLength) {
+            if(this == CBC) return this.ivLength + (plaintextLength / 16 + 1) * 16;
+            return this.ivLength + plaintextLength + this.tagLength;
+        }
+
+        private AlgorithmParameterSpec parameters(byte[] source, int offset) {
+            if(this == CBC) return new IvParameterSpec(source, offset, this.ivLength);
+            return new GCMParameterSpec(this.tagLength * 8, source, offset, this.ivLength);
+        }
     }
-}
\ No newline at end of file
+}
@@ -5,11 +5,13 @@ import com.aventrix.jnanoid.jnanoid.NanoIdUtils;
 import java.text.ParseException;
 import java.util.Objects;
 import java.util.Random;
+import java.util.regex.Pattern;
 
 public class NanoID {
     private static final Random random = new Random();
     private static final int LENGTH = 16;
     private static final String ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final Pattern VALID = Pattern.compile("[" + ALPHABET + "]+");
 
     private final String value;
     protected NanoID(String value) {
@@ -43,9 +45,8 @@ public class NanoID {
      * @param value The value of the MaskedID.
      */
     public static NanoID fromString(String value) {
-        String regex = "[" + ALPHABET + "]+";
         if(value.length() > LENGTH) throw new IllegalArgumentException("Couldn't parse value as NanoID! Value was to long!");
-        if(!value.matches(regex)) throw new IllegalArgumentException("Couldn't parse value as NanoID! Value contained invalid characters.");
+        if(!VALID.matcher(value).matches()) throw new IllegalArgumentException("Couldn't parse value as NanoID! Value contained invalid characters.");
         return new NanoID(value);
     }
 
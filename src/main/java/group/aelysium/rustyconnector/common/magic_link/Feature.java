@@ -0,0 +1,88 @@
+package group.aelysium.rustyconnector.common.magic_link;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Optional MagicLink behaviours which can only be used once both ends of a connection support them.<br/>
+ * Servers advertise their features in the {@link #header} of the websocket upgrade, and proxies advertise theirs in the `features` field of the handshake response.
+ * Peers which predate feature negotiation don't advertise anything, so they're treated as supporting nothing.
+ */
+public enum Feature {
+    /**
+     * Packets are sent as raw ciphertext inside binary websocket frames, instead of as Base64 inside text frames.
+     */
+    BINARY_FRAMES("bf"),
+
+    /**
+     * Multiple packets may be sent together inside a single {@link PacketBatcher} envelope.
+     */
+    BATCHING("bt"),
+
+    /**
+     * Large packets may be deflated by {@link PacketCompressor} before they're encrypted.
+     */
+    COMPRESSION("cz"),
+
+    /**
+     * Packets may be addressed to a {@link group.aelysium.rustyconnector.common.magic_link.packet.Packet.SourceIdentifier.Origin#FAMILY FAMILY} or a {@link group.aelysium.rustyconnector.common.magic_link.packet.Packet.SourceIdentifier.Origin#TOPIC TOPIC}.
+     * Servers without it are sent a copy of the packet addressed to them directly instead.
+     */
+    MULTICAST("mc");
+
+    /**
+     * The header, or handshake field, used to advertise supported features.
+     */
+    public static final String header = "X-MagicLink-Features";
+
+    private final String id;
+
+    Feature(@NotNull String id) {
+        this.id = id;
+    }
+
+    /**
+     * The short id used to advertise this feature over the wire.
+     */
+    public @NotNull String id() {
+        return this.id;
+    }
+
+    /**
+     * @return Every feature supported by this version of MagicLink.
+     */
+    public static @NotNull Set<Feature> supported() {
+        return EnumSet.allOf(Feature.class);
+    }
+
+    /**
+     * Serializes the features into the format used by {@link #header}.
+     * @param features The features to serialize.
+     * @return A comma separated list of feature ids.
+     */
+    public static @NotNull String serialize(@NotNull Set<Feature> features) {
+        return features.stream().map(Feature::id).collect(Collectors.joining(","));
+    }
+
+    /**
+     * Parses a list of features advertised by a remote peer.
+     * Ids which aren't recognized are ignored, since they were probably added by a newer version of MagicLink.
+     * @param value The comma separated list of feature ids. If `null`, no features are returned.
+     * @return The features which both this version of MagicLink and the remote peer support.
+     */
+    public static @NotNull Set<Feature> parse(@Nullable String value) {
+        Set<Feature> features = EnumSet.noneOf(Feature.class);
+        if(value == null || value.isBlank()) return features;
+
+        Arrays.stream(value.split(",")).map(String::trim).forEach(id -> {
+            for (Feature feature : Feature.values())
+                if(feature.id.equals(id)) features.add(feature);
+        });
+        return features;
+    }
+}
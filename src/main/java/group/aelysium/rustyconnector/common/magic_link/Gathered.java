@@ -0,0 +1,25 @@
+package group.aelysium.rustyconnector.common.magic_link;
+
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The replies collected by {@link MagicLinkCore#gather(Packet.Local, Class, Set, group.aelysium.rustyconnector.proxy.util.LiquidTimestamp)}.
+ * @param replies The reply from each responder which answered, keyed by who sent it.
+ * @param timedOut Every expected responder which didn't answer, either before the deadline or before the packet turned out to be undeliverable.
+ * @param <T> The type of reply.
+ */
+public record Gathered<T extends Packet.Remote>(
+        @NotNull Map<Packet.SourceIdentifier, T> replies,
+        @NotNull Set<Packet.SourceIdentifier> timedOut
+) {
+    /**
+     * @return `true` if every expected responder answered.
+     */
+    public boolean complete() {
+        return this.timedOut.isEmpty();
+    }
+}
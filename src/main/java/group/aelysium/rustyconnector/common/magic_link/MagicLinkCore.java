@@ -1,5 +1,7 @@
 package group.aelysium.rustyconnector.common.magic_link;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import group.aelysium.rustyconnector.RC;
 import group.aelysium.rustyconnector.common.magic_link.packet.PacketType;
 import group.aelysium.rustyconnector.common.crypt.NanoID;
@@ -7,40 +9,89 @@ import group.aelysium.rustyconnector.common.errors.Error;
 import group.aelysium.rustyconnector.common.modules.Module;
 import group.aelysium.rustyconnector.common.util.IPV6Broadcaster;
 import group.aelysium.rustyconnector.common.cache.TimeoutCache;
+import group.aelysium.rustyconnector.common.cache.TimingWheel;
+import group.aelysium.rustyconnector.common.util.ByteBufferPool;
 import group.aelysium.rustyconnector.common.util.Parameter;
 import group.aelysium.rustyconnector.proxy.util.LiquidTimestamp;
 import group.aelysium.rustyconnector.common.crypt.AES;
 import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.common.magic_link.packet.PacketCodec;
+import group.aelysium.rustyconnector.common.magic_link.packet.PacketHandles;
 import group.aelysium.rustyconnector.common.magic_link.packet.PacketListener;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public abstract class MagicLinkCore implements Module {
     protected static final String endpoint = "bDaBMkmYdZ6r4iFExwW6UzJyNMDseWoS3HDa6FcyM7xNeCmtK98S3Mhp4o7g7oW6VB9CA6GuyH2pNhpQk3QvSmBUeCoUDZ6FXUsFCuVQC59CB2y22SBnGkMf9NMB9UWk";
+    /**
+     * The header, or handshake field, used by peers to advertise the highest protocol version they're able to decode.
+     * Peers which don't advertise a version are assumed to only support {@link PacketCodec#JSON_PROTOCOL}.
+     */
+    protected static final String protocolHeader = "X-Protocol-Version";
+    /**
+     * The authorization scheme used by servers resuming a session with a ticket, rather than going through the full handshake.
+     */
+    protected static final String ticketScheme = "Ticket ";
     protected final TimeoutCache<NanoID, Packet.Local> packetsAwaitingReply = new TimeoutCache<>(LiquidTimestamp.from(15, TimeUnit.SECONDS));
     protected final Map<String, List<Consumer<Packet.Remote>>> listeners = new ConcurrentHashMap<>();
+    /**
+     * Ends the futures returned by {@link #request(Packet.Local, Class, LiquidTimestamp)} and {@link #gather(Packet.Local, Class, Set, LiquidTimestamp)}
+     * which haven't completed yet, if their packet couldn't be sent. Keyed by their packet's reply endpoint.
+     */
+    protected final Map<NanoID, Consumer<Throwable>> requests = new ConcurrentHashMap<>();
+    /**
+     * Completes the futures of {@link #requests}, so that their dependents never run on the timing wheel's thread.
+     */
+    private final ExecutorService completions = Executors.newVirtualThreadPerTaskExecutor();
+    protected final ByteBufferPool buffers = new ByteBufferPool(16 * 1024, 64);
+    protected final PacketCompressor compressor = new PacketCompressor(512);
     protected final AES aes;
     protected final PacketCache cache;
     protected final Packet.SourceIdentifier self;
+    protected final PacketDispatcher dispatcher;
+    protected final Map<Packet.Type, PacketBatcher.Policy> batchPolicies = new ConcurrentHashMap<>();
+    protected volatile PacketBatcher.Policy defaultBatchPolicy = PacketBatcher.Policy.IMMEDIATE;
+    /**
+     * The number of bytes per second of {@link Packet.Priority#BULK} packets that can be sent over each connection.
+     */
+    protected volatile long bulkRate = 4 * 1024 * 1024;
+    protected final PacketStreams streams = new PacketStreams(this);
 
     protected MagicLinkCore(
             @NotNull Packet.SourceIdentifier self,
             @NotNull AES aes,
             @NotNull PacketCache cache
+    ) {
+        this(self, aes, cache, new PacketDispatcher(256, PacketDispatcher.OverflowPolicy.REJECT));
+    }
+    protected MagicLinkCore(
+            @NotNull Packet.SourceIdentifier self,
+            @NotNull AES aes,
+            @NotNull PacketCache cache,
+            @NotNull PacketDispatcher dispatcher
     ) {
         this.self = self;
         this.aes = aes;
         this.cache = cache;
+        this.dispatcher = dispatcher;
+        this.listen(this.streams);
     }
 
     /**
@@ -64,24 +115,14 @@ public abstract class MagicLinkCore implements Module {
                     throw new NoSuchMethodException("Packet classes used for PacketListeners must be annotated with @PacketType. Caused by "+firstParameter.getType().getName());
                 String type = packetWrapper.getAnnotation(PacketType.class).value();
 
-                Constructor<? extends Packet.Remote> constructor = packetWrapper.getConstructor(Packet.class);
+                PacketListener.Function<Packet, ? extends Packet.Remote> wrapper = PacketHandles.wrapper(packetWrapper);
+                PacketListener.Function<Packet.Remote, PacketListener.Response> handler = PacketHandles.listener(listener, method);
 
                 this.listeners.computeIfAbsent(type, k -> new Vector<>()).add(packet -> {
                     try {
-                        PacketListener.Response response = (PacketListener.Response) method.invoke(listener, constructor.newInstance(packet));
+                        PacketListener.Response response = handler.apply(wrapper.apply(packet));
                         packet.status(response.successful, response.message);
                         if(response.shouldSendPacket() || annotation.responsesAsPacketReplies()) packet.reply(response);
-                    } catch (InvocationTargetException e) {
-                        RC.Error(Error.from(e));
-                        if(!annotation.responseFromExceptions()) return;
-
-                        if(e.getCause() == null) {
-                            packet.status(false, e.getMessage());
-                            return;
-                        }
-                        packet.status(false, e.getMessage());
-
-                        if(annotation.responsesAsPacketReplies()) packet.reply(PacketListener.Response.error(e.getMessage()));
                     } catch (Exception e) {
                         RC.Error(Error.from(e));
                         if(!annotation.responseFromExceptions()) return;
@@ -113,6 +154,147 @@ public abstract class MagicLinkCore implements Module {
         packetsAwaitingReply.putIfAbsent(packet.local().replyEndpoint().orElseThrow(), packet);
     }
 
+    /**
+     * Queues the packet into the reply queue for at least as long as the provided timeout,
+     * even if that's longer than the reply queue's own expiration.
+     * @param packet The packet to queue.
+     * @param timeout How long replies are expected for.
+     */
+    protected void awaitReply(Packet.Local packet, LiquidTimestamp timeout) {
+        if(timeout.unit().toMillis(timeout.value()) <= this.packetsAwaitingReply.expiration().unit().toMillis(this.packetsAwaitingReply.expiration().value())) {
+            this.awaitReply(packet);
+            return;
+        }
+        this.packetsAwaitingReply.put(packet.local().replyEndpoint().orElseThrow(), packet, timeout);
+    }
+
+    /**
+     * Publishes the packet and returns a future which completes with the first reply of the requested type.<br/>
+     * The future completes exceptionally with a {@link TimeoutException} if no reply arrives before the timeout,
+     * or with an {@link IOException} straight away if the packet couldn't be published,
+     * and the packet stops awaiting replies as soon as the future completes in any way, including if it's canceled.
+     * The packet awaits replies for the whole timeout, even if that's longer than the reply queue's own expiration.
+     * @param packet The packet to publish. It must not have been published already.
+     * @param replyType The type of packet to wait for.
+     * @param timeout How long to wait for a reply.
+     * @return A future which completes with the reply.
+     */
+    public <T extends Packet.Remote> CompletableFuture<T> request(@NotNull Packet.Local packet, @NotNull Class<T> replyType, @NotNull LiquidTimestamp timeout) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        TimingWheel.Timeout deadline = TimingWheel.shared().schedule(
+                () -> this.completeLater(() -> future.completeExceptionally(new TimeoutException("No reply was received for "+packet.type()+" within "+timeout+"."))),
+                timeout.value(), timeout.unit()
+        );
+        NanoID endpoint = packet.local().replyEndpoint().orElseThrow();
+        Consumer<Throwable> fail = future::completeExceptionally;
+        this.requests.put(endpoint, fail);
+        future.whenComplete((reply, e) -> {
+            deadline.cancel();
+            this.requests.remove(endpoint, fail);
+            this.stopAwaitingReply(packet);
+        });
+
+        packet.onReply(replyType, reply -> {
+            future.complete(reply);
+            return PacketListener.Response.success("Successfully handled the reply to "+packet.type()+".");
+        });
+        this.awaitReply(packet, timeout);
+        this.publish(packet);
+
+        // Every publish sets the packet's status before returning, so an unsuccessful packet was never sent and will never be answered.
+        if(!packet.successful()) future.completeExceptionally(new IOException(packet.statusMessage()));
+        return future;
+    }
+
+    /**
+     * Publishes the packet and collects a reply from each of the expected responders.<br/>
+     * The future completes as soon as every responder has answered, or once the deadline passes with whichever replies arrived by then.
+     * If the packet couldn't be sent, either straight away or later while it was buffered, the future completes right then with whichever replies arrived.
+     * Either way it always completes normally, and {@link Gathered#timedOut()} lists the responders which didn't answer.
+     * Replies from anyone who isn't an expected responder, and any reply after a responder's first, are ignored.
+     * The packet awaits replies for the whole timeout, even if that's longer than the reply queue's own expiration.
+     * @param packet The packet to publish. It must not have been published already, and should be addressed so that it reaches every responder.
+     * @param replyType The type of packet to wait for.
+     * @param responders Everyone who is expected to reply.
+     * @param timeout How long to wait for replies.
+     * @return A future which completes with the replies.
+     */
+    public <T extends Packet.Remote> CompletableFuture<Gathered<T>> gather(
+            @NotNull Packet.Local packet,
+            @NotNull Class<T> replyType,
+            @NotNull Set<Packet.SourceIdentifier> responders,
+            @NotNull LiquidTimestamp timeout
+    ) {
+        CompletableFuture<Gathered<T>> future = new CompletableFuture<>();
+        Set<Packet.SourceIdentifier> expected = Set.copyOf(responders);
+        Map<Packet.SourceIdentifier, T> replies = new ConcurrentHashMap<>();
+        Runnable finish = () -> {
+            Set<Packet.SourceIdentifier> timedOut = new HashSet<>(expected);
+            timedOut.removeAll(replies.keySet());
+            future.complete(new Gathered<>(Map.copyOf(replies), Collections.unmodifiableSet(timedOut)));
+        };
+
+        TimingWheel.Timeout deadline = TimingWheel.shared().schedule(() -> this.completeLater(finish), timeout.value(), timeout.unit());
+        NanoID endpoint = packet.local().replyEndpoint().orElseThrow();
+        Consumer<Throwable> fail = e -> finish.run();
+        this.requests.put(endpoint, fail);
+        future.whenComplete((gathered, e) -> {
+            deadline.cancel();
+            this.requests.remove(endpoint, fail);
+            this.stopAwaitingReply(packet);
+        });
+
+        packet.onReply(replyType, reply -> {
+            if(!expected.contains(reply.local()))
+                return PacketListener.Response.success("Ignored a reply to "+packet.type()+" from "+reply.local()+", which wasn't expected to respond.");
+
+            if(replies.putIfAbsent(reply.local(), reply) == null && replies.size() == expected.size()) finish.run();
+            return PacketListener.Response.success("Successfully handled the reply to "+packet.type()+".");
+        });
+        this.awaitReply(packet, timeout);
+        this.publish(packet);
+
+        // An unsuccessful packet was never sent, so nobody else is going to answer it.
+        if(expected.isEmpty() || !packet.successful()) finish.run();
+        return future;
+    }
+
+    /**
+     * Gives up on the packet ever being answered, because it was never sent.
+     * The packet stops awaiting replies. If it was sent using {@link #request(Packet.Local, Class, LiquidTimestamp)}, its future completes exceptionally,
+     * and if it was sent using {@link #gather(Packet.Local, Class, Set, LiquidTimestamp)}, its future completes with whichever replies already arrived.
+     * @param packet The packet which couldn't be sent.
+     * @param cause Why the packet couldn't be sent.
+     */
+    protected void failRequest(@NotNull Packet.Local packet, @NotNull Throwable cause) {
+        this.stopAwaitingReply(packet);
+        packet.local().replyEndpoint().map(this.requests::get).ifPresent(fail -> this.completeLater(() -> fail.accept(cause)));
+    }
+
+    /**
+     * Completing a future runs its dependents on the completing thread, so completions from the timing wheel, or from
+     * wherever a packet was given up on, are handed off instead.
+     * If MagicLink has been closed the completion is run straight away, so that no future is left hanging.
+     */
+    protected void completeLater(@NotNull Runnable completion) {
+        try {
+            this.completions.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    /**
+     * Removes the packet from the reply queue, so that any replies received after this point are ignored.
+     * Packets are removed from the reply queue on their own once they time out, but if no more replies are expected
+     * they can be removed early to free up the reply queue.
+     * @param packet The packet to stop awaiting replies for.
+     */
+    public void stopAwaitingReply(Packet.Local packet) {
+        packet.local().replyEndpoint().ifPresent(packetsAwaitingReply::remove);
+    }
+
     /**
      * Registers a new packet handler to the magic link provider.
      * @param identification The type of the specific packet.
@@ -123,6 +305,88 @@ public abstract class MagicLinkCore implements Module {
         this.listeners.computeIfAbsent(identification, k -> new ArrayList<>()).add(handler);
     }
 
+    /**
+     * Sets how packets of a specific type are batched when they're sent to peers which support {@link Feature#BATCHING}.
+     * Latency sensitive types should be left as, or set to, {@link PacketBatcher.Policy#IMMEDIATE}.
+     * @param type The type of packet.
+     * @param policy The batching policy to use for the type.
+     */
+    public void batch(@NotNull Packet.Type type, @NotNull PacketBatcher.Policy policy) {
+        this.batchPolicies.put(type, policy);
+    }
+
+    /**
+     * Sets how packets are batched if their type doesn't have its own policy.
+     * By default, packets are never batched.
+     * @param policy The batching policy to use.
+     */
+    public void batch(@NotNull PacketBatcher.Policy policy) {
+        this.defaultBatchPolicy = policy;
+    }
+
+    /**
+     * @return The batching policy used for packets of the provided type.
+     */
+    protected @NotNull PacketBatcher.Policy batchPolicy(@NotNull Packet.Type type) {
+        return this.batchPolicies.getOrDefault(type, this.defaultBatchPolicy);
+    }
+
+    /**
+     * Updates how many bytes per second of {@link Packet.Priority#BULK} packets can be sent over each connection.
+     * {@link Packet.Priority#CONTROL} packets are never limited, and are always sent ahead of any bulk packets which are waiting.
+     * @param bytesPerSecond The rate to allow. `0` to not limit bulk packets at all.
+     */
+    public void setBulkRate(long bytesPerSecond) {
+        if(bytesPerSecond < 0) throw new IllegalArgumentException("bytesPerSecond can't be negative.");
+        this.bulkRate = bytesPerSecond;
+    }
+
+    /**
+     * @return The number of bytes per second of {@link Packet.Priority#BULK} packets that can be sent over each connection.
+     */
+    public long bulkRate() {
+        return this.bulkRate;
+    }
+
+    /**
+     * Streams a payload to a single peer, in chunks which the peer reads as they arrive.
+     * Unlike a packet, the payload can be any size; only a few chunks of it are ever held in memory on either side.
+     * @param target The proxy or server to stream to.
+     * @param channel The channel to stream on. The target must be handling it with {@link #onStream(String, Consumer)}.
+     * @param payload The payload. It's closed once the stream ends.
+     * @param length The number of bytes in the payload, which is passed along to the receiver. `-1` if it isn't known.
+     * @return A future which completes once the target has read the entire payload. Canceling it cancels the stream.
+     * @throws IllegalArgumentException If the target isn't a single proxy or server.
+     */
+    public @NotNull CompletableFuture<Void> stream(@NotNull Packet.SourceIdentifier target, @NotNull String channel, @NotNull ReadableByteChannel payload, long length) throws IllegalArgumentException {
+        return this.streams.send(target, channel, payload, length);
+    }
+
+    /**
+     * Streams a payload to a single peer. See {@link #stream(Packet.SourceIdentifier, String, ReadableByteChannel, long)}.
+     */
+    public @NotNull CompletableFuture<Void> stream(@NotNull Packet.SourceIdentifier target, @NotNull String channel, @NotNull InputStream payload, long length) throws IllegalArgumentException {
+        return this.streams.send(target, channel, payload, length);
+    }
+
+    /**
+     * Handles the streams which peers send on the channel.
+     * @param channel The channel to handle.
+     * @param handler Runs on its own thread for each stream, and must close the stream once it's done reading it.
+     */
+    public void onStream(@NotNull String channel, @NotNull Consumer<PacketStreams.Incoming> handler) {
+        this.streams.listen(channel, handler);
+    }
+
+    /**
+     * Describes the bytes saved by compression for the packet types which have saved the most.
+     */
+    protected @NotNull String compressionSavings() {
+        List<Map.Entry<String, PacketCompressor.Savings>> savings = this.compressor.savings();
+        if(savings.isEmpty()) return "None";
+        return this.compressor.saved()+" bytes total. "+savings.stream().limit(5).map(e -> e.getKey()+": "+e.getValue()).collect(Collectors.joining(", "));
+    }
+
     /**
      * Fetches the message cache for this magic link provider.
      */
@@ -131,27 +395,151 @@ public abstract class MagicLinkCore implements Module {
     }
 
     public void close() {
+        this.streams.close();
+        this.dispatcher.close();
         this.listeners.clear();
         this.cache.close();
         this.packetsAwaitingReply.close();
+        this.completions.shutdown();
+    }
+
+    /**
+     * Encodes the packet for a peer running the provided protocol version, compressing it if the peer supports {@link Feature#COMPRESSION}.
+     * @param packet The packet to encode.
+     * @param protocolVersion The protocol version advertised by the peer that will receive the packet.
+     * @param zlib The streams of the connection to the peer, or `null` if the peer doesn't accept compressed packets.
+     * @return The plaintext, ready to be encrypted.
+     */
+    protected byte[] plaintext(@NotNull Packet packet, int protocolVersion, @Nullable PacketCompressor.Zlib zlib) {
+        byte[] plaintext = PacketCodec.encode(packet, protocolVersion);
+        if(zlib == null) return plaintext;
+        return this.compressor.compress(plaintext, packet.type().toString(), zlib);
+    }
+
+    /**
+     * Encodes the packet for a peer running the provided protocol version, and then encrypts it.
+     * @param packet The packet to encrypt.
+     * @param protocolVersion The protocol version advertised by the peer that will receive the packet.
+     * @return A Base64 encoded, AES-256 encrypted, MagicLink packet.
+     * @throws Exception If there was an issue encrypting the packet.
+     */
+    protected String encrypt(@NotNull Packet packet, int protocolVersion) throws Exception {
+        return this.aes.encrypt(PacketCodec.encode(packet, protocolVersion));
+    }
+
+    /**
+     * Encodes the packet for a peer running the provided protocol version, and then encrypts it into a binary frame.
+     * Unlike {@link #encrypt(Packet, int)} the ciphertext isn't Base64 encoded.
+     * @param packet The packet to encrypt.
+     * @param protocolVersion The protocol version advertised by the peer that will receive the packet.
+     * @return A buffer, borrowed from {@link #buffers}, which is ready to be read from.
+     *         Once the frame has been sent it should be given back using {@link ByteBufferPool#release(ByteBuffer)}.
+     * @throws Exception If there was an issue encrypting the packet.
+     */
+    protected ByteBuffer encryptFrame(@NotNull Packet packet, int protocolVersion) throws Exception {
+        return this.encryptFrame(PacketCodec.encode(packet, protocolVersion));
+    }
+
+    /**
+     * Encrypts already encoded plaintext, such as a {@link PacketBatcher} envelope, into a binary frame.
+     * @param payload The plaintext to encrypt.
+     * @return A buffer, borrowed from {@link #buffers}, which is ready to be read from.
+     *         Once the frame has been sent it should be given back using {@link ByteBufferPool#release(ByteBuffer)}.
+     * @throws Exception If there was an issue encrypting the plaintext.
+     */
+    protected ByteBuffer encryptFrame(byte @NotNull [] payload) throws Exception {
+        ByteBuffer plaintext = ByteBuffer.wrap(payload);
+        ByteBuffer frame = this.buffers.acquire(this.aes.encryptedLength(plaintext.remaining()));
+        try {
+            this.aes.encrypt(plaintext, frame);
+        } catch (Exception e) {
+            this.buffers.release(frame);
+            throw e;
+        }
+        return frame.flip();
     }
 
     /**
      * Handles all the MagicLink/RustyConnector internals of handling MagicLink packets.
      * @param rawMessage A Base64 encoded, AES-256 encrypted, MagicLink packet.
+     * @param zlib The streams of the connection that the packet arrived on.
      */
-    protected void handleMessage(String rawMessage) {
-        Packet.Remote packet;
+    protected void handleMessage(String rawMessage, @NotNull PacketCompressor.Zlib zlib) {
+        ByteBuffer plaintext;
         try {
-            packet = Packet.parseIncoming(this.aes.decrypt(rawMessage));
+            plaintext = ByteBuffer.wrap(this.aes.decryptBytes(rawMessage));
         } catch (Exception e) {
             RC.Error(Error.from(e).whileAttempting("To decrypt a packet incoming into MagicLink."));
             return;
         }
+        this.receive(plaintext, zlib);
+    }
+
+    /**
+     * Handles all the MagicLink/RustyConnector internals of handling MagicLink packets which were received as binary frames.
+     * The frame is decrypted in place, so its contents are overwritten.
+     * @param frame An AES-256 encrypted MagicLink packet. It's read from its position up to its limit.
+     * @param zlib The streams of the connection that the packet arrived on.
+     */
+    protected void handleMessage(ByteBuffer frame, @NotNull PacketCompressor.Zlib zlib) {
+        ByteBuffer plaintext;
         try {
-            // Not addressed to us, completely ignore it.
-            if (!this.self.isEquivalent(packet.remote())) return;
+            int start = frame.position();
+            plaintext = frame.duplicate();
+            int length = this.aes.decrypt(frame, plaintext);
+            plaintext.limit(start + length).position(start);
+        } catch (Exception e) {
+            RC.Error(Error.from(e).whileAttempting("To decrypt a packet incoming into MagicLink."));
+            return;
+        }
+        this.receive(plaintext, zlib);
+    }
 
+    /**
+     * Decodes the decrypted plaintext, which is either a single packet or a {@link PacketBatcher} envelope, and dispatches its packets in order.
+     * Packets are individually inflated if they were compressed.
+     */
+    private void receive(ByteBuffer plaintext, PacketCompressor.Zlib zlib) {
+        List<ByteBuffer> payloads;
+        try {
+            payloads = PacketBatcher.isEnvelope(plaintext) ? PacketBatcher.unpack(plaintext) : List.of(plaintext);
+        } catch (Exception e) {
+            RC.Error(Error.from(e).whileAttempting("To unpack a batch of packets incoming into MagicLink."));
+            return;
+        }
+
+        for (ByteBuffer payload : payloads) {
+            Packet.Remote packet;
+            try {
+                if(PacketCompressor.isCompressed(payload)) payload = PacketCompressor.decompress(payload, zlib);
+                packet = PacketCodec.decode(payload);
+            } catch (Exception e) {
+                RC.Error(Error.from(e).whileAttempting("To decode a packet incoming into MagicLink."));
+                continue;
+            }
+            this.dispatch(packet);
+        }
+    }
+
+    /**
+     * Hands the packet off to {@link #dispatcher} so that its listeners don't run on the websocket I/O thread.
+     */
+    private void dispatch(Packet.Remote packet) {
+        // Not addressed to us, completely ignore it.
+        if (!this.addressedToSelf(packet.remote())) return;
+
+        this.dispatcher.dispatch(packet, this::handlePacket);
+    }
+
+    /**
+     * Checks whether a packet addressed to `target` is meant for this MagicLink instance.
+     */
+    protected boolean addressedToSelf(@NotNull Packet.SourceIdentifier target) {
+        return this.self.isEquivalent(target);
+    }
+
+    private void handlePacket(Packet.Remote packet) {
+        try {
             this.cache.cache(packet);
 
             if (packet.replying()) {
@@ -199,6 +587,63 @@ public abstract class MagicLinkCore implements Module {
                 return Map.of();
             }
 
+            /**
+             * Whether this ping carries a full snapshot of the server's details, rather than only what's changed since its last ping.
+             * Servers which predate delta pings always send full snapshots.
+             */
+            public boolean snapshot() {
+                return this.parameters().containsKey(Parameters.TARGET_FAMILY);
+            }
+
+            /**
+             * The version of the server's metadata, which is incremented every time the metadata changes.
+             * @return The version, or `null` if the server predates delta pings.
+             */
+            public @Nullable Integer metadataVersion() {
+                Parameter version = this.parameters().get(Parameters.VERSION);
+                return version == null ? null : version.getAsInt();
+            }
+
+            /**
+             * The {@link #hash(JsonObject)} of the server's complete metadata at {@link #metadataVersion()}.
+             * @return The hash, or `null` if the server predates delta pings.
+             */
+            public @Nullable Integer metadataHash() {
+                Parameter hash = this.parameters().get(Parameters.HASH);
+                return hash == null ? null : hash.getAsInt();
+            }
+
+            /**
+             * The raw metadata carried by this ping.
+             * For snapshots this is all the server's metadata, otherwise it's only the entries which were added or changed.
+             */
+            public @NotNull JsonObject metadataJSON() {
+                Parameter metadata = this.parameters().get(Parameters.METADATA);
+                return metadata == null ? new JsonObject() : metadata.getAsJsonObject();
+            }
+
+            /**
+             * @return The keys of any metadata which the server has removed since its last ping.
+             */
+            public @NotNull List<String> removedMetadata() {
+                Parameter removed = this.parameters().get(Parameters.REMOVED_METADATA);
+                if(removed == null) return List.of();
+                List<String> keys = new ArrayList<>();
+                removed.getAsJsonArray().forEach(e -> keys.add(e.getAsString()));
+                return keys;
+            }
+
+            /**
+             * Hashes the metadata in a way that doesn't depend on the order of its entries.
+             * Values are hashed by their JSON text, since numbers don't keep their exact Java type once they've been over the wire.
+             */
+            public static int hash(@NotNull JsonObject metadata) {
+                int hash = 0;
+                for (Map.Entry<String, JsonElement> entry : metadata.entrySet())
+                    hash += entry.getKey().hashCode() ^ entry.getValue().toString().hashCode();
+                return hash;
+            }
+
             public Ping(Packet packet) {
                 super(packet);
             }
@@ -208,6 +653,29 @@ public abstract class MagicLinkCore implements Module {
                 String TARGET_FAMILY = "tf";
                 String PLAYER_COUNT = "pc";
                 String METADATA = "m";
+                String REMOVED_METADATA = "mr";
+                String VERSION = "v";
+                String HASH = "h";
+                /**
+                 * Set on the proxy's response when it needs the server to send a full snapshot in its next ping.
+                 */
+                String RESYNC = "rs";
+                /**
+                 * Set on the proxy's response. The longest interval, in seconds, that the server may go between pings.
+                 */
+                String INTERVAL = "i";
+                /**
+                 * Set on the proxy's response. The total number of pings per second that the proxy wants to receive from all of its servers.
+                 */
+                String PING_RATE = "pr";
+                /**
+                 * Set on the proxy's response. The number of servers sharing the {@link #PING_RATE}.
+                 */
+                String SERVERS = "sc";
+                /**
+                 * Set on the proxy's response when the server registers. A session ticket that the server can use to resume its registration if it briefly loses its connection.
+                 */
+                String TICKET = "tk";
             }
         }
 
@@ -221,6 +689,127 @@ public abstract class MagicLinkCore implements Module {
             }
         }
 
+        /**
+         * Tells the proxy every topic that the server is subscribed to, replacing whatever it was subscribed to before.
+         */
+        @PacketType("RC-TS")
+        class TopicSubscriptions extends Packet.Remote {
+            public TopicSubscriptions(Packet packet) {
+                super(packet);
+            }
+            public @NotNull Set<String> topics() {
+                Set<String> topics = new HashSet<>();
+                Parameter parameter = this.parameters().get(Parameters.TOPICS);
+                if(parameter != null) parameter.getAsJsonArray().forEach(e -> topics.add(e.getAsString()));
+                return topics;
+            }
+            public interface Parameters {
+                String TOPICS = "t";
+            }
+        }
+
+        /**
+         * Opens a stream. Sent ahead of the stream's first chunk. See {@link PacketStreams}.
+         */
+        @PacketType("RC-SO")
+        class StreamOpen extends Packet.Remote {
+            public StreamOpen(Packet packet) {
+                super(packet);
+            }
+            public @NotNull String stream() {
+                return this.parameters().get(Parameters.STREAM).getAsString();
+            }
+            public @NotNull String channel() {
+                return this.parameters().get(Parameters.CHANNEL).getAsString();
+            }
+            /**
+             * @return The total number of bytes in the stream. `-1` if the sender doesn't know.
+             */
+            public long length() {
+                return this.parameters().get(Parameters.LENGTH).getAsLong();
+            }
+            public interface Parameters {
+                String STREAM = "s";
+                String CHANNEL = "c";
+                String LENGTH = "l";
+            }
+        }
+
+        /**
+         * A single chunk of a stream.
+         */
+        @PacketType("RC-SC")
+        class StreamChunk extends Packet.Remote {
+            public StreamChunk(Packet packet) {
+                super(packet);
+            }
+            public @NotNull String stream() {
+                return this.parameters().get(Parameters.STREAM).getAsString();
+            }
+            public long sequence() {
+                return this.parameters().get(Parameters.SEQUENCE).getAsLong();
+            }
+            public byte @NotNull [] data() {
+                return this.parameters().get(Parameters.DATA).getAsBytes();
+            }
+            /**
+             * @return `true` if this is the stream's final chunk.
+             */
+            public boolean last() {
+                return this.parameters().get(Parameters.LAST).getAsBoolean();
+            }
+            public interface Parameters {
+                String STREAM = "s";
+                String SEQUENCE = "q";
+                String DATA = "d";
+                String LAST = "e";
+            }
+        }
+
+        /**
+         * Sent by the receiver of a stream as it reads chunks, which moves the sender's window forward.
+         */
+        @PacketType("RC-SW")
+        class StreamWindow extends Packet.Remote {
+            public StreamWindow(Packet packet) {
+                super(packet);
+            }
+            public @NotNull String stream() {
+                return this.parameters().get(Parameters.STREAM).getAsString();
+            }
+            /**
+             * @return The number of chunks which the receiver has read.
+             */
+            public long consumed() {
+                return this.parameters().get(Parameters.CONSUMED).getAsLong();
+            }
+            public interface Parameters {
+                String STREAM = "s";
+                String CONSUMED = "cn";
+            }
+        }
+
+        /**
+         * Abandons a stream. Either side can send it.
+         */
+        @PacketType("RC-SX")
+        class StreamCancel extends Packet.Remote {
+            public StreamCancel(Packet packet) {
+                super(packet);
+            }
+            public @NotNull String stream() {
+                return this.parameters().get(Parameters.STREAM).getAsString();
+            }
+            public @NotNull String reason() {
+                Parameter reason = this.parameters().get(Parameters.REASON);
+                return reason == null ? "No reason was given." : reason.getAsString();
+            }
+            public interface Parameters {
+                String STREAM = "s";
+                String REASON = "r";
+            }
+        }
+
         /**
          * Indicates to a Server that it's MagicLink connection has gone stale and it needs to re-register.
          */
@@ -330,7 +919,18 @@ public abstract class MagicLinkCore implements Module {
                 @NotNull Set<Flag> flags
             
             ) {
-                
+                return prepareUsername(username, target, flags).send();
+            }
+
+            /**
+             * Prepares a {@link SendPlayer} packet without sending it, so that it can be sent however the caller needs.
+             * For example, using {@link MagicLinkCore#request(Packet.Local, Class, LiquidTimestamp)} or {@link Packet.Builder.ReadyForSending#request(Class, LiquidTimestamp)}.
+             */
+            public static Packet.Builder.ReadyForSending prepareUsername(
+                @NotNull String username,
+                @NotNull String target,
+                @NotNull Set<Flag> flags
+            ) {
                 return Packet.New()
                     .identification(Type.from("RC", "PS"))
                     .parameter("p", "u-"+username)
@@ -344,8 +944,7 @@ public abstract class MagicLinkCore implements Module {
                             case AGGRESSIVE -> "a";
                         }).collect(Collectors.joining())
                     )
-                    .addressTo(SourceIdentifier.allAvailableProxies())
-                    .send();
+                    .addressTo(SourceIdentifier.allAvailableProxies());
             }
             
             public static Packet.Local sendID(
@@ -353,6 +952,18 @@ public abstract class MagicLinkCore implements Module {
                 @NotNull String target,
                 @NotNull Set<Flag> flags
             
+            ) {
+                return prepareID(id, target, flags).send();
+            }
+
+            /**
+             * Prepares a {@link SendPlayer} packet without sending it, so that it can be sent however the caller needs.
+             * For example, using {@link MagicLinkCore#request(Packet.Local, Class, LiquidTimestamp)} or {@link Packet.Builder.ReadyForSending#request(Class, LiquidTimestamp)}.
+             */
+            public static Packet.Builder.ReadyForSending prepareID(
+                @NotNull String id,
+                @NotNull String target,
+                @NotNull Set<Flag> flags
             ) {
                 return Packet.New()
                     .identification(Type.from("RC", "PS"))
@@ -367,8 +978,7 @@ public abstract class MagicLinkCore implements Module {
                             case AGGRESSIVE -> "a";
                         }).collect(Collectors.joining())
                     )
-                    .addressTo(SourceIdentifier.allAvailableProxies())
-                    .send();
+                    .addressTo(SourceIdentifier.allAvailableProxies());
             }
 
             public interface Parameters {
@@ -408,6 +1018,7 @@ public abstract class MagicLinkCore implements Module {
 
     public static abstract class Server extends MagicLinkCore {
         protected final AtomicInteger delay = new AtomicInteger(5);
+        protected final Set<String> topics = ConcurrentHashMap.newKeySet();
         protected IPV6Broadcaster broadcaster;
 
         protected Server(
@@ -419,6 +1030,16 @@ public abstract class MagicLinkCore implements Module {
             super(self, aes, cache);
             this.broadcaster = broadcaster;
         }
+        protected Server(
+                @NotNull Packet.@NotNull SourceIdentifier self,
+                @NotNull AES aes,
+                @NotNull PacketCache cache,
+                @Nullable IPV6Broadcaster broadcaster,
+                @NotNull PacketDispatcher dispatcher
+        ) {
+            super(self, aes, cache, dispatcher);
+            this.broadcaster = broadcaster;
+        }
 
         /**
          * Updates the delay which is used to determine how frequently the Server
@@ -428,9 +1049,61 @@ public abstract class MagicLinkCore implements Module {
         public void setDelay(int delay) {
             this.delay.set(delay);
         }
+
+        /**
+         * Subscribes the Server to a topic, so that it receives packets addressed to {@link Packet.SourceIdentifier#topic(String)}.
+         * @param topic The topic to subscribe to.
+         */
+        public void subscribe(@NotNull String topic) {
+            if(this.topics.add(topic)) this.topicsChanged();
+        }
+
+        /**
+         * Unsubscribes the Server from a topic.
+         * @param topic The topic to unsubscribe from.
+         */
+        public void unsubscribe(@NotNull String topic) {
+            if(this.topics.remove(topic)) this.topicsChanged();
+        }
+
+        /**
+         * @return Every topic the Server is subscribed to.
+         */
+        public @NotNull Set<String> topics() {
+            return Collections.unmodifiableSet(this.topics);
+        }
+
+        /**
+         * Called whenever the Server's topics change, so that the proxy can be told about them.
+         */
+        protected void topicsChanged() {}
+
+        /**
+         * @return The family that the Server belongs to, or `null` if it isn't known.
+         */
+        protected @Nullable String family() {
+            return null;
+        }
+
+        /**
+         * Proxies only forward family and topic packets to servers which belong to them,
+         * so those are accepted as long as they're addressed to the Server's family, or to a topic it's still subscribed to.
+         */
+        @Override
+        protected boolean addressedToSelf(@NotNull Packet.SourceIdentifier target) {
+            return switch (target.origin()) {
+                case FAMILY -> {
+                    String family = this.family();
+                    yield family == null || family.equals(target.id());
+                }
+                case TOPIC -> this.topics.contains(target.id());
+                default -> super.addressedToSelf(target);
+            };
+        }
     }
 
     public static abstract class Proxy extends MagicLinkCore {
+        protected volatile double pingRate = 100;
         protected IPV6Broadcaster broadcaster;
         protected Proxy(
                 @NotNull Packet.@NotNull SourceIdentifier self,
@@ -441,5 +1114,32 @@ public abstract class MagicLinkCore implements Module {
             super(self, aes, cache);
             this.broadcaster = broadcaster;
         }
+        protected Proxy(
+                @NotNull Packet.@NotNull SourceIdentifier self,
+                @NotNull AES aes,
+                @NotNull PacketCache cache,
+                @Nullable IPV6Broadcaster broadcaster,
+                @NotNull PacketDispatcher dispatcher
+        ) {
+            super(self, aes, cache, dispatcher);
+            this.broadcaster = broadcaster;
+        }
+
+        /**
+         * Updates the total number of pings per second that the Proxy wants to receive.
+         * Servers space out their pings so that, between all of them, they stay within this rate.
+         * @param pingRate The pings per second to allow. `0` to let servers ping as often as they need.
+         */
+        public void setPingRate(double pingRate) {
+            if(pingRate < 0) throw new IllegalArgumentException("pingRate can't be negative.");
+            this.pingRate = pingRate;
+        }
+
+        /**
+         * @return The total number of pings per second that the Proxy wants to receive.
+         */
+        public double pingRate() {
+            return this.pingRate;
+        }
     }
 }
@@ -0,0 +1,302 @@
+package group.aelysium.rustyconnector.common.magic_link;
+
+import group.aelysium.rustyconnector.RC;
+import group.aelysium.rustyconnector.common.cache.TimingWheel;
+import group.aelysium.rustyconnector.common.errors.Error;
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Coalesces encoded packets headed to the same destination, so that a burst of small packets is encrypted and framed once instead of once per packet.<br/>
+ * How long a packet may wait, and how large a batch may grow, is decided per {@link Packet.Type} by a {@link Policy}.
+ * Packets whose policy doesn't batch are sent straight away, unless their destination already has a batch waiting,
+ * in which case they're added to it and the whole batch is sent immediately so that packets are never reordered.
+ * <br/><br/>
+ * Batches are sent as an envelope: {@link #MARKER}, the number of packets, and then each packet prefixed with its length.
+ * The marker can never be the first byte of an encoded packet, so receivers can tell envelopes and single packets apart.
+ * @param <K> The type used to identify destinations.
+ */
+public class PacketBatcher<K> implements AutoCloseable {
+    /**
+     * The first byte of every batch envelope.
+     */
+    public static final byte MARKER = (byte) 0xBA;
+
+    private final Map<K, Batch> batches = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final Function<Packet.Type, Policy> policies;
+    private final Sink<K> sink;
+    private final LongAdder batched = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param policies Resolves the batching policy for each packet type.
+     * @param sink Encrypts and sends the plaintext of each single packet or batch envelope.
+     */
+    public PacketBatcher(@NotNull Function<Packet.Type, Policy> policies, @NotNull Sink<K> sink) {
+        this.policies = policies;
+        this.sink = sink;
+    }
+
+    /**
+     * Whether a packet of this type should go through the batcher, rather than being sent directly.
+     * This is the case if its type is batched, or if the destination already has a batch waiting.
+     */
+    public boolean accepts(@NotNull K destination, @NotNull Packet.Type type) {
+        if(this.policies.apply(type).batches()) return true;
+        Batch batch = this.batches.get(destination);
+        return batch != null && batch.size() > 0;
+    }
+
+    /**
+     * Sends the encoded packet, either immediately or as part of a batch.
+     * @param destination The destination to send to.
+     * @param type The type of the packet.
+     * @param payload The encoded packet.
+     * @return `true` if the packet was sent or batched. `false` if the sink refused it.
+     * @throws Exception If the sink failed to send the packet, or its batch.
+     */
+    public boolean send(@NotNull K destination, @NotNull Packet.Type type, byte @NotNull [] payload) throws Exception {
+        if(this.closed.get()) throw new IllegalStateException("This batcher has been closed.");
+        Policy policy = this.policies.apply(type);
+        Batch batch = this.batches.computeIfAbsent(destination, Batch::new);
+
+        synchronized (batch) {
+            if(!policy.batches()) {
+                if(batch.payloads.isEmpty()) return this.sink.send(destination, payload);
+                batch.add(payload, policy);
+                return this.flush(batch);
+            }
+
+            batch.add(payload, policy);
+            this.batched.increment();
+            if(batch.bytes >= batch.maxBytes) return this.flush(batch);
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.window());
+            if(batch.timer == null || deadline < batch.deadline) {
+                if(batch.timer != null) batch.timer.cancel();
+                batch.deadline = deadline;
+                batch.timer = TimingWheel.shared().schedule(() -> this.flushLater(batch), policy.window(), TimeUnit.MILLISECONDS);
+            }
+            return true;
+        }
+    }
+
+    private void flushLater(Batch batch) {
+        try {
+            this.executor.execute(() -> {
+                try {
+                    synchronized (batch) {
+                        this.flush(batch);
+                    }
+                } catch (Exception e) {
+                    RC.Error(Error.from(e).whileAttempting("To send a batch of packets to "+batch.destination));
+                }
+            });
+        } catch (RejectedExecutionException ignore) {}
+    }
+
+    /**
+     * Sends the batch's packets. Must be called while holding the batch's lock.
+     */
+    private boolean flush(Batch batch) throws Exception {
+        if(batch.timer != null) batch.timer.cancel();
+        batch.timer = null;
+        if(batch.payloads.isEmpty()) return true;
+
+        List<byte[]> payloads = batch.payloads;
+        byte[] plaintext = payloads.size() == 1 ? payloads.getFirst() : envelope(payloads, batch.bytes);
+        batch.reset();
+
+        this.flushes.increment();
+        if(this.sink.send(batch.destination, plaintext)) return true;
+        this.failed.add(payloads.size());
+        return false;
+    }
+
+    /**
+     * Immediately sends any batch waiting for the destination.
+     */
+    public void flush(@NotNull K destination) throws Exception {
+        Batch batch = this.batches.get(destination);
+        if(batch == null) return;
+        synchronized (batch) {
+            this.flush(batch);
+        }
+    }
+
+    /**
+     * Drops any batch waiting for the destination, without sending it.
+     * Should be called once a destination disconnects.
+     */
+    public void forget(@NotNull K destination) {
+        Batch batch = this.batches.remove(destination);
+        if(batch == null) return;
+        synchronized (batch) {
+            if(batch.timer != null) batch.timer.cancel();
+            this.failed.add(batch.payloads.size());
+            batch.reset();
+        }
+    }
+
+    /**
+     * @return The number of packets which have been batched.
+     */
+    public long batched() {
+        return this.batched.sum();
+    }
+
+    /**
+     * @return The number of single packets and envelopes which have been sent through the batcher.
+     */
+    public long flushes() {
+        return this.flushes.sum();
+    }
+
+    /**
+     * @return The number of batched packets which were never sent, either because the sink refused them or because their destination was forgotten.
+     */
+    public long failed() {
+        return this.failed.sum();
+    }
+
+    /**
+     * @return The number of packets currently waiting in batches.
+     */
+    public int pending() {
+        return this.batches.values().stream().mapToInt(Batch::size).sum();
+    }
+
+    @Override
+    public void close() {
+        if(!this.closed.compareAndSet(false, true)) return;
+        this.batches.keySet().forEach(this::forget);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Wraps multiple encoded packets into a single envelope.
+     */
+    private static byte[] envelope(List<byte[]> payloads, int bytes) {
+        ByteBuffer envelope = ByteBuffer.allocate(1 + Integer.BYTES + bytes + payloads.size() * Integer.BYTES);
+        envelope.put(MARKER);
+        envelope.putInt(payloads.size());
+        for (byte[] payload : payloads) {
+            envelope.putInt(payload.length);
+            envelope.put(payload);
+        }
+        return envelope.array();
+    }
+
+    /**
+     * Checks whether the decrypted plaintext is a batch envelope.
+     * @param plaintext The plaintext, read from its position.
+     */
+    public static boolean isEnvelope(@NotNull ByteBuffer plaintext) {
+        return plaintext.hasRemaining() && plaintext.get(plaintext.position()) == MARKER;
+    }
+
+    /**
+     * Splits a batch envelope back into its packets.
+     * @param envelope The envelope, read from its position up to its limit.
+     * @return A view of each encoded packet, in the order that they were batched.
+     * @throws IllegalArgumentException If the envelope is malformed.
+     */
+    public static @NotNull List<ByteBuffer> unpack(@NotNull ByteBuffer envelope) throws IllegalArgumentException {
+        ByteBuffer buffer = envelope.slice();
+        if(buffer.remaining() < 1 + Integer.BYTES || buffer.get() != MARKER) throw new IllegalArgumentException("The payload isn't a batch envelope.");
+
+        int count = buffer.getInt();
+        if(count < 0 || count > buffer.remaining() / Integer.BYTES) throw new IllegalArgumentException("The batch envelope is malformed.");
+
+        List<ByteBuffer> payloads = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if(buffer.remaining() < Integer.BYTES) throw new IllegalArgumentException("The batch envelope is truncated.");
+            int length = buffer.getInt();
+            if(length < 0 || length > buffer.remaining()) throw new IllegalArgumentException("The batch envelope is truncated.");
+
+            payloads.add(buffer.slice(buffer.position(), length));
+            buffer.position(buffer.position() + length);
+        }
+        return payloads;
+    }
+
+    /**
+     * Decides how packets of a specific type are batched.
+     * @param window The maximum number of milliseconds a packet may wait for more packets to join its batch. `0` to never batch.
+     * @param maxBytes The size, in bytes, which a batch is sent at as soon as it reaches. `0` to never batch.
+     */
+    public record Policy(long window, int maxBytes) {
+        /**
+         * Packets are always sent immediately.
+         */
+        public static final Policy IMMEDIATE = new Policy(0, 0);
+
+        public Policy {
+            if(window < 0) throw new IllegalArgumentException("window can't be negative.");
+            if(maxBytes < 0) throw new IllegalArgumentException("maxBytes can't be negative.");
+        }
+
+        public boolean batches() {
+            return this.window > 0 && this.maxBytes > 0;
+        }
+    }
+
+    /**
+     * Encrypts and sends plaintext to a destination.
+     */
+    @FunctionalInterface
+    public interface Sink<K> {
+        /**
+         * @param destination The destination to send to.
+         * @param plaintext Either a single encoded packet, or a batch envelope.
+         * @return `true` if the plaintext was sent. `false` if the destination refused it.
+         */
+        boolean send(@NotNull K destination, byte @NotNull [] plaintext) throws Exception;
+    }
+
+    private class Batch {
+        private final K destination;
+        private List<byte[]> payloads = new ArrayList<>();
+        private int bytes = 0;
+        private int maxBytes = Integer.MAX_VALUE;
+        private long deadline = 0;
+        private TimingWheel.Timeout timer = null;
+
+        private Batch(K destination) {
+            this.destination = destination;
+        }
+
+        private void add(byte[] payload, Policy policy) {
+            this.payloads.add(payload);
+            this.bytes += payload.length;
+            if(policy.batches()) this.maxBytes = Math.min(this.maxBytes, policy.maxBytes());
+        }
+
+        private void reset() {
+            this.payloads = new ArrayList<>();
+            this.bytes = 0;
+            this.maxBytes = Integer.MAX_VALUE;
+            this.deadline = 0;
+        }
+
+        private synchronized int size() {
+            return this.payloads.size();
+        }
+    }
+}
@@ -4,34 +4,55 @@ import group.aelysium.ara.Closure;
 import group.aelysium.rustyconnector.common.crypt.NanoID;
 import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Holds the most recently sent and received packets.<br/>
+ * Packets are written into a fixed size ring, so once the cache is full every new packet simply overwrites the oldest one.
+ * Writers never lock, and readers only ever take snapshots, so reading the cache never holds up packets being cached.
+ * <br/><br/>
+ * Alongside the ring, the cache keeps indexes of its packets by type, by sender, by recipient, and by status.
+ * The indexes are updated as packets are cached, evicted, and have their status changed, so {@link #query() queries}
+ * only ever walk the packets that could actually match, instead of the whole cache.
+ * <br/><br/>
+ * If the cache is given a {@link PacketJournal}, every packet that's cached is also journaled to disk,
+ * so that packets which have long since been overwritten can still be looked up with a {@link PacketJournal.Reader}.
+ */
 public class PacketCache implements Closure {
-    private final List<Packet.Type> ignoredTypes;
+    /**
+     * The largest capacity that a cache can be created with.
+     */
+    public static final int MAX_CAPACITY = 1 << 20;
+
+    private static final Packet.Type streamChunk = Packet.Type.from("RC", "SC");
+    private final Set<Packet.Type> ignoredTypes;
     protected final int max;
-    protected final Map<NanoID, Packet> packets;
-    protected final List<Packet> packetsOrdered;
+    protected final AtomicReferenceArray<Entry> ring;
+    protected final AtomicLong cursor = new AtomicLong(0);
+    protected final Map<NanoID, Packet> index = new ConcurrentHashMap<>();
+    protected final Index<Packet.Type> types = new Index<>();
+    protected final Index<Packet.SourceIdentifier> senders = new Index<>();
+    protected final Index<Packet.SourceIdentifier> recipients = new Index<>();
+    protected final Index<Boolean> statuses = new Index<>();
+    protected final @Nullable PacketJournal journal;
 
-    public PacketCache(int max, List<Packet.Type> ignoredTypes) {
+    public PacketCache(int max, List<Packet.Type> ignoredTypes, @Nullable PacketJournal journal) {
         if(max <= 0) max = 0;
-        if(max > 1000) max = 1000;
+        if(max > MAX_CAPACITY) max = MAX_CAPACITY;
 
         this.max = max;
-        this.ignoredTypes = ignoredTypes;
-        this.packets = Collections.synchronizedMap(new LinkedHashMap<>(this.max){
-            @Override
-            protected boolean removeEldestEntry(Map.Entry eldest) {
-                return this.size() > PacketCache.this.max;
-            }
-        });
-        this.packetsOrdered = new Vector<>(this.max) {
-            @Override
-            public boolean add(Packet item) {
-                if (size() >= PacketCache.this.max) remove(0);
-                return super.add(item);
-            }
-        };
+        this.ignoredTypes = Set.copyOf(ignoredTypes);
+        this.ring = new AtomicReferenceArray<>(max);
+        this.journal = journal;
+    }
+    public PacketCache(int max, List<Packet.Type> ignoredTypes) {
+        this(max, ignoredTypes, null);
     }
     public PacketCache(int max) {
         this(max, List.of());
@@ -47,8 +68,48 @@ public class PacketCache implements Closure {
      */
     public void cache(Packet packet) {
         if(this.ignoredTypes.contains(packet.type())) return;
-        this.packets.put(packet.local().replyEndpoint().orElseThrow(), packet); // The local reply endpoint should always be defined.
-        this.packetsOrdered.add(packet);
+        // Stream chunks are only meaningful to the stream they belong to, and caching them would hold on to far more of a stream than its window allows.
+        if(packet.type().equals(streamChunk)) return;
+        if(this.journal != null) this.journal.append(packet);
+        if(this.max == 0) return;
+
+        NanoID id = packet.local().replyEndpoint().orElseThrow(); // The local reply endpoint should always be defined.
+        this.index.put(id, packet);
+
+        long sequence = this.cursor.getAndIncrement();
+        Entry entry = new Entry(sequence, packet);
+
+        // The entry is indexed before it's placed into the ring, so that it's always indexed by the time something can evict it.
+        this.types.add(packet.type(), entry);
+        this.senders.add(packet.local(), entry);
+        this.recipients.add(packet.remote(), entry);
+        this.statuses.add(packet.successful(), entry);
+        packet.observeStatus(p -> this.statusChanged(entry));
+
+        Entry evicted = this.ring.getAndSet((int) (sequence % this.max), entry);
+        if(evicted != null) this.evict(evicted);
+    }
+
+    private void evict(Entry entry) {
+        entry.evicted = true;
+        Packet packet = entry.packet;
+        packet.local().replyEndpoint().ifPresent(e -> this.index.remove(e, packet));
+
+        this.types.remove(packet.type(), entry);
+        this.senders.remove(packet.local(), entry);
+        this.recipients.remove(packet.remote(), entry);
+        this.statuses.remove(true, entry);
+        this.statuses.remove(false, entry);
+    }
+
+    private void statusChanged(Entry entry) {
+        if(entry.evicted) return;
+        boolean successful = entry.packet.successful();
+        this.statuses.remove(!successful, entry);
+        this.statuses.add(successful, entry);
+
+        // If the entry was evicted while its status was being moved, make sure it doesn't linger in the index.
+        if(entry.evicted) this.statuses.remove(successful, entry);
     }
 
     /**
@@ -66,22 +127,271 @@ public class PacketCache implements Closure {
      * @return The cached packet if it's available. Otherwise, an empty optional.
      */
     public @NotNull Optional<Packet> find(@NotNull NanoID id) {
-        return Optional.ofNullable(this.packets.get(id));
+        return Optional.ofNullable(this.index.get(id));
     }
 
     /**
-     * @return All currently cached packets.
+     * Starts a new query over the cached packets.
+     * For example, the last 10 failed `RC-PS` packets sent by the server `lobby-1` would be:
+     * <pre>{@code
+     * cache.query()
+     *      .type(Packet.Type.parseString("RC-PS"))
+     *      .sender(Packet.SourceIdentifier.server("lobby-1"))
+     *      .successful(false)
+     *      .limit(10)
+     *      .list();
+     * }</pre>
+     */
+    public @NotNull Query query() {
+        return new Query();
+    }
+
+    /**
+     * Takes a snapshot of the cache.
+     * Packets cached while the snapshot is being taken may or may not be included in it.
+     * @return All currently cached packets, from oldest to newest.
      */
     public @NotNull List<Packet> packets() {
-        return this.packetsOrdered;
+        if(this.max == 0) return List.of();
+
+        long end = this.cursor.get();
+        long start = Math.max(0, end - this.max);
+
+        List<Packet> packets = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            Entry entry = this.ring.get((int) (i % this.max));
+            if(entry != null) packets.add(entry.packet);
+        }
+        return packets;
+    }
+
+    /**
+     * @return The maximum number of packets that this cache can hold.
+     */
+    public int capacity() {
+        return this.max;
     }
 
-    public int size() { return this.packets.size(); }
+    public int size() { return this.index.size(); }
 
-    public void empty() { this.packets.clear(); }
+    /**
+     * @return The journal that cached packets are also written to, if there is one.
+     */
+    public @NotNull Optional<PacketJournal> journal() {
+        return Optional.ofNullable(this.journal);
+    }
+
+    public void empty() {
+        for (int i = 0; i < this.max; i++) {
+            Entry entry = this.ring.getAndSet(i, null);
+            if(entry == null) continue;
+            entry.evicted = true;
+            entry.packet.observeStatus(null);
+        }
+        this.index.clear();
+        this.types.clear();
+        this.senders.clear();
+        this.recipients.clear();
+        this.statuses.clear();
+    }
 
     @Override
     public void close() {
-        this.packets.clear();
+        this.empty();
+        if(this.journal != null) this.journal.close();
+    }
+
+    /**
+     * A packet, along with the position it was cached at.
+     */
+    protected static class Entry {
+        private final long sequence;
+        private final Packet packet;
+        private volatile boolean evicted = false;
+
+        private Entry(long sequence, Packet packet) {
+            this.sequence = sequence;
+            this.packet = packet;
+        }
+    }
+
+    /**
+     * Maps some key to every cached packet with that key, ordered from newest to oldest.
+     */
+    protected static class Index<K> {
+        private final Map<K, Postings> postings = new ConcurrentHashMap<>();
+
+        private void add(K key, Entry entry) {
+            this.postings.compute(key, (k, p) -> {
+                if(p == null) p = new Postings();
+                if(p.entries.put(entry.sequence, entry) == null) p.size++;
+                return p;
+            });
+        }
+
+        private void remove(K key, Entry entry) {
+            this.postings.computeIfPresent(key, (k, p) -> {
+                if(p.entries.remove(entry.sequence, entry)) p.size--;
+                return p.size <= 0 ? null : p;
+            });
+        }
+
+        private @Nullable Postings get(K key) {
+            return this.postings.get(key);
+        }
+
+        private void clear() {
+            this.postings.clear();
+        }
+    }
+
+    private static class Postings {
+        private final ConcurrentSkipListMap<Long, Entry> entries = new ConcurrentSkipListMap<>(Comparator.reverseOrder());
+        private volatile int size = 0;
+    }
+
+    /**
+     * A query over the cached packets.
+     * Every filter that's set must match for a packet to be returned. Packets are always returned from newest to oldest.<br/>
+     * The query walks whichever of its filters' indexes is the smallest, so it only ever visits packets which match at least one of its filters.
+     */
+    public class Query {
+        private Packet.Type type = null;
+        private Packet.SourceIdentifier sender = null;
+        private Packet.SourceIdentifier recipient = null;
+        private Boolean successful = null;
+        private int limit = Integer.MAX_VALUE;
+
+        private Query() {}
+
+        /**
+         * Only match packets of this type.
+         */
+        public Query type(@NotNull Packet.Type type) {
+            this.type = type;
+            return this;
+        }
+
+        /**
+         * Only match packets sent by this source.
+         */
+        public Query sender(@NotNull Packet.SourceIdentifier sender) {
+            this.sender = sender;
+            return this;
+        }
+
+        /**
+         * Only match packets addressed to this source.
+         */
+        public Query recipient(@NotNull Packet.SourceIdentifier recipient) {
+            this.recipient = recipient;
+            return this;
+        }
+
+        /**
+         * Only match packets with this status.
+         */
+        public Query successful(boolean successful) {
+            this.successful = successful;
+            return this;
+        }
+
+        /**
+         * The maximum number of packets to return.
+         */
+        public Query limit(int limit) {
+            if(limit < 0) throw new IllegalArgumentException("limit can't be negative.");
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * @return The matching packets, from newest to oldest.
+         */
+        public @NotNull List<Packet> list() {
+            List<Packet> packets = new ArrayList<>();
+            if(this.limit == 0) return packets;
+
+            for (Entry entry : this.candidates()) {
+                if(entry.evicted || !this.matches(entry.packet)) continue;
+                packets.add(entry.packet);
+                if(packets.size() >= this.limit) break;
+            }
+            return packets;
+        }
+
+        /**
+         * @return The newest matching packet.
+         */
+        public @NotNull Optional<Packet> first() {
+            for (Entry entry : this.candidates())
+                if(!entry.evicted && this.matches(entry.packet)) return Optional.of(entry.packet);
+            return Optional.empty();
+        }
+
+        /**
+         * @return The number of matching packets. Ignores {@link #limit(int)}.
+         */
+        public int count() {
+            int count = 0;
+            for (Entry entry : this.candidates())
+                if(!entry.evicted && this.matches(entry.packet)) count++;
+            return count;
+        }
+
+        private boolean matches(Packet packet) {
+            if(this.type != null && !this.type.equals(packet.type())) return false;
+            if(this.sender != null && !this.sender.equals(packet.local())) return false;
+            if(this.recipient != null && !this.recipient.equals(packet.remote())) return false;
+            return this.successful == null || this.successful == packet.successful();
+        }
+
+        private Iterable<Entry> candidates() {
+            List<Postings> filters = new ArrayList<>(4);
+            if(this.type != null) filters.add(PacketCache.this.types.get(this.type));
+            if(this.sender != null) filters.add(PacketCache.this.senders.get(this.sender));
+            if(this.recipient != null) filters.add(PacketCache.this.recipients.get(this.recipient));
+            if(this.successful != null) filters.add(PacketCache.this.statuses.get(this.successful));
+
+            if(filters.isEmpty()) return this::newest;
+            if(filters.contains(null)) return List.of();
+
+            return filters.stream().min(Comparator.comparingInt(p -> p.size)).orElseThrow().entries.values();
+        }
+
+        /**
+         * Walks every cached entry from newest to oldest, straight out of the ring.
+         */
+        private Iterator<Entry> newest() {
+            int max = PacketCache.this.max;
+            long end = PacketCache.this.cursor.get();
+            long start = Math.max(0, end - max);
+
+            return new Iterator<>() {
+                private long next = end - 1;
+                private Entry entry = this.advance();
+
+                private Entry advance() {
+                    while (this.next >= start) {
+                        Entry entry = PacketCache.this.ring.get((int) (this.next-- % max));
+                        if(entry != null) return entry;
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return this.entry != null;
+                }
+
+                @Override
+                public Entry next() {
+                    if(this.entry == null) throw new NoSuchElementException();
+                    Entry entry = this.entry;
+                    this.entry = this.advance();
+                    return entry;
+                }
+            };
+        }
     }
 }
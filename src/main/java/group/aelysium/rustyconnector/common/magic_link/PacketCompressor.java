@@ -0,0 +1,221 @@
+package group.aelysium.rustyconnector.common.magic_link;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates large plaintexts before they're encrypted.<br/>
+ * Only plaintexts at or above the threshold are compressed, and only if compressing them actually makes them smaller.
+ * Compressed plaintexts are written as {@link #MARKER}, the uncompressed length, and then the deflated bytes.
+ * The marker can never be the first byte of an encoded packet or a batch envelope, so receivers can tell compressed plaintexts apart.
+ * <br/><br/>
+ * Each connection reuses its own {@link Zlib}, so compressing doesn't allocate a new native zlib stream every time,
+ * and the native memory behind it is freed as soon as the connection closes.
+ */
+public class PacketCompressor {
+    /**
+     * The first byte of every compressed plaintext.
+     */
+    public static final byte MARKER = (byte) 0xCD;
+    /**
+     * The largest uncompressed length that will be accepted from a peer.
+     */
+    public static final int MAX_INFLATED_LENGTH = 16 * 1024 * 1024;
+
+    private final int threshold;
+    private final Map<String, Savings> savings = new ConcurrentHashMap<>();
+
+    /**
+     * @param threshold The size, in bytes, that a plaintext must be for it to be compressed.
+     */
+    public PacketCompressor(int threshold) {
+        if(threshold < 0) throw new IllegalArgumentException("threshold can't be negative.");
+        this.threshold = threshold;
+    }
+
+    /**
+     * Compresses the plaintext if it's large enough, and compressing it makes it smaller.
+     * @param plaintext The encoded packet or batch envelope.
+     * @param label What the plaintext contains, usually its packet type. Used to group the compression metrics.
+     * @param zlib The streams of the connection that the plaintext is being compressed for.
+     * @return The compressed plaintext, or `plaintext` itself if it wasn't compressed.
+     */
+    public byte @NotNull [] compress(byte @NotNull [] plaintext, @NotNull String label, @NotNull Zlib zlib) {
+        if(plaintext.length < this.threshold) return plaintext;
+
+        // Anything which doesn't compress to smaller than the original isn't worth sending compressed.
+        byte[] output = new byte[plaintext.length];
+        output[0] = MARKER;
+        ByteBuffer.wrap(output, 1, Integer.BYTES).putInt(plaintext.length);
+        int offset = 1 + Integer.BYTES;
+
+        synchronized (zlib.deflater) {
+            // Once the connection has closed its plaintext is never sent, so there's no need to compress it.
+            if(zlib.deflaterEnded) return plaintext;
+
+            Deflater deflater = zlib.deflater;
+            deflater.reset();
+            deflater.setInput(plaintext);
+            deflater.finish();
+            while (!deflater.finished() && offset < output.length)
+                offset += deflater.deflate(output, offset, output.length - offset);
+
+            if(!deflater.finished()) return plaintext;
+        }
+
+        this.savings.computeIfAbsent(label, k -> new Savings()).record(plaintext.length, offset);
+        return Arrays.copyOf(output, offset);
+    }
+
+    /**
+     * Checks whether the decrypted plaintext was compressed.
+     * @param plaintext The plaintext, read from its position.
+     */
+    public static boolean isCompressed(@NotNull ByteBuffer plaintext) {
+        return plaintext.hasRemaining() && plaintext.get(plaintext.position()) == MARKER;
+    }
+
+    /**
+     * Inflates a compressed plaintext.
+     * @param compressed The compressed plaintext, read from its position up to its limit.
+     * @param zlib The streams of the connection that the plaintext was received over.
+     * @return The original plaintext.
+     * @throws IllegalArgumentException If the plaintext is malformed, would inflate to more than {@link #MAX_INFLATED_LENGTH},
+     *                                  or the connection has already been closed.
+     */
+    public static @NotNull ByteBuffer decompress(@NotNull ByteBuffer compressed, @NotNull Zlib zlib) throws IllegalArgumentException {
+        ByteBuffer input = compressed.slice();
+        if(input.remaining() < 1 + Integer.BYTES || input.get() != MARKER) throw new IllegalArgumentException("The payload isn't compressed.");
+
+        int length = input.getInt();
+        if(length < 0 || length > MAX_INFLATED_LENGTH) throw new IllegalArgumentException("The compressed payload claims to inflate to "+length+" bytes.");
+
+        ByteBuffer output = ByteBuffer.allocate(length);
+        synchronized (zlib.inflater) {
+            if(zlib.inflaterEnded) throw new IllegalArgumentException("The connection that the compressed payload arrived on has been closed.");
+
+            Inflater inflater = zlib.inflater;
+            inflater.reset();
+            inflater.setInput(input);
+            try {
+                while (output.hasRemaining() && !inflater.finished()) {
+                    if(inflater.inflate(output) == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("The compressed payload is malformed.", e);
+            }
+            if(output.hasRemaining() || !inflater.finished()) throw new IllegalArgumentException("The compressed payload didn't inflate to its declared length.");
+        }
+
+        return output.flip();
+    }
+
+    public int threshold() {
+        return this.threshold;
+    }
+
+    /**
+     * @return How many bytes compression has saved for each label, from most to least saved.
+     */
+    public @NotNull List<Map.Entry<String, Savings>> savings() {
+        return this.savings.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, Savings> e) -> e.getValue().saved()).reversed())
+                .toList();
+    }
+
+    /**
+     * @return The total number of bytes that compression has saved.
+     */
+    public long saved() {
+        return this.savings.values().stream().mapToLong(Savings::saved).sum();
+    }
+
+    /**
+     * The zlib streams that a single connection compresses and inflates its packets with.
+     * Deflaters and Inflaters hold native memory which the garbage collector doesn't account for,
+     * so every connection's streams must be {@link #close() closed} once the connection closes.
+     */
+    public static class Zlib implements AutoCloseable {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Inflater inflater = new Inflater();
+        private boolean deflaterEnded = false;
+        private boolean inflaterEnded = false;
+
+        /**
+         * Ends both streams, freeing their native memory. Packets can't be compressed or inflated with them afterwards.
+         */
+        @Override
+        public void close() {
+            synchronized (this.deflater) {
+                if(!this.deflaterEnded) this.deflater.end();
+                this.deflaterEnded = true;
+            }
+            synchronized (this.inflater) {
+                if(!this.inflaterEnded) this.inflater.end();
+                this.inflaterEnded = true;
+            }
+        }
+    }
+
+    /**
+     * Tracks how much compression has saved for a single label.
+     */
+    public static class Savings {
+        private final LongAdder packets = new LongAdder();
+        private final LongAdder original = new LongAdder();
+        private final LongAdder compressed = new LongAdder();
+
+        private void record(int original, int compressed) {
+            this.packets.increment();
+            this.original.add(original);
+            this.compressed.add(compressed);
+        }
+
+        /**
+         * @return The number of plaintexts which were compressed.
+         */
+        public long packets() {
+            return this.packets.sum();
+        }
+
+        /**
+         * @return The number of bytes saved.
+         */
+        public long saved() {
+            return this.original.sum() - this.compressed.sum();
+        }
+
+        /**
+         * @return The average number of bytes saved per compressed plaintext.
+         */
+        public long savedPerPacket() {
+            long packets = this.packets.sum();
+            if(packets == 0) return 0;
+            return this.saved() / packets;
+        }
+
+        /**
+         * @return The compressed size as a fraction of the original size, between `0` and `1`.
+         */
+        public double ratio() {
+            long original = this.original.sum();
+            if(original == 0) return 1;
+            return (double) this.compressed.sum() / original;
+        }
+
+        @Override
+        public String toString() {
+            return this.saved()+" bytes saved over "+this.packets()+" packets ("+this.savedPerPacket()+" per packet, "+String.format("%.0f%%", this.ratio() * 100)+" of original)";
+        }
+    }
+}
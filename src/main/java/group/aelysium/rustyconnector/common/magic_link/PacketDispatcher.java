@@ -0,0 +1,244 @@
+package group.aelysium.rustyconnector.common.magic_link;
+
+import group.aelysium.rustyconnector.RC;
+import group.aelysium.rustyconnector.common.errors.Error;
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs packet listeners off of the websocket I/O threads.<br/>
+ * Every source gets its own lane, and each lane runs one packet at a time, on a virtual thread, in the order they were received.
+ * This means a slow listener only holds up packets from the same source, instead of every packet on the connection.
+ * <br/><br/>
+ * Each source actually gets a lane per {@link Packet.Priority}, so a source's control packets are never stuck behind its bulk packets.
+ * Packets are only kept in order relative to other packets of the same priority.
+ */
+public class PacketDispatcher implements AutoCloseable {
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<LaneKey, Lane> lanes = new ConcurrentHashMap<>();
+    private final Map<Packet.Priority, QueueDelay> delays = new EnumMap<>(Map.of(
+            Packet.Priority.CONTROL, new QueueDelay(),
+            Packet.Priority.BULK, new QueueDelay()
+    ));
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final int maxQueueDepth;
+    private final OverflowPolicy overflowPolicy;
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final AtomicLong maxLatency = new AtomicLong(0);
+
+    /**
+     * @param maxQueueDepth The maximum number of packets which can be waiting in a single source's lane.
+     * @param overflowPolicy What to do when a packet arrives for a lane which is already full.
+     */
+    public PacketDispatcher(int maxQueueDepth, @NotNull OverflowPolicy overflowPolicy) {
+        if(maxQueueDepth <= 0) throw new IllegalArgumentException("maxQueueDepth must be larger than 0.");
+        this.maxQueueDepth = maxQueueDepth;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Queues the packet into its source's lane.
+     * @param packet The packet to dispatch. Its sender and the priority of its type are used to pick the lane.
+     * @param handler The handler which will process the packet.
+     * @return `true` if the packet was queued. `false` if it was dropped because the lane was full, or the dispatcher is closed.
+     */
+    public boolean dispatch(@NotNull Packet.Remote packet, @NotNull Handler handler) {
+        if(this.closed.get()) return false;
+
+        LaneKey source = new LaneKey(packet.local(), packet.type().priority());
+        Task task = new Task(packet, handler, System.nanoTime());
+        Task[] evicted = new Task[1];
+        boolean[] start = new boolean[1];
+        boolean[] accepted = new boolean[1];
+
+        Lane lane = this.lanes.compute(source, (k, l) -> {
+            if(l == null) l = new Lane(k);
+
+            if(l.queue.size() >= this.maxQueueDepth) {
+                if(this.overflowPolicy == OverflowPolicy.REJECT) return l;
+                evicted[0] = l.queue.poll();
+            }
+
+            accepted[0] = l.queue.offer(task);
+            if(accepted[0] && !l.running) {
+                l.running = true;
+                start[0] = true;
+            }
+            return l;
+        });
+
+        if(evicted[0] != null) this.drop(evicted[0]);
+        if(!accepted[0]) {
+            this.drop(task);
+            return false;
+        }
+        if(start[0]) {
+            try {
+                this.executor.execute(() -> this.drain(lane));
+            } catch (RejectedExecutionException e) {
+                this.lanes.remove(source, lane);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void drain(Lane lane) {
+        while (true) {
+            Task task = lane.queue.poll();
+            if(task == null) {
+                // Lanes are only ever stopped from inside compute, so a packet can't be queued into a lane that's just about to stop.
+                boolean[] stopped = new boolean[1];
+                this.lanes.compute(lane.source, (k, l) -> {
+                    if(l != lane || !lane.queue.isEmpty()) return l;
+                    lane.running = false;
+                    stopped[0] = true;
+                    return null;
+                });
+                if(stopped[0] || this.closed.get()) return;
+                continue;
+            }
+
+            this.delays.get(lane.source.priority()).record(task.queuedAt);
+            long start = System.nanoTime();
+            try {
+                task.handler.accept(task.packet);
+            } catch (Throwable e) {
+                RC.Error(Error.from(e).whileAttempting("To handle a packet from "+lane.source.source()));
+            }
+            long latency = System.nanoTime() - start;
+
+            this.dispatched.increment();
+            this.totalLatency.add(latency);
+            this.maxLatency.accumulateAndGet(latency, Math::max);
+        }
+    }
+
+    private void drop(Task task) {
+        this.dropped.increment();
+        task.packet.status(false, "Packet was dropped because too many packets from "+task.packet.local()+" are waiting to be handled.");
+    }
+
+    /**
+     * @return The total number of packets waiting to be handled, across every lane.
+     */
+    public int queueDepth() {
+        return this.lanes.values().stream().mapToInt(l -> l.queue.size()).sum();
+    }
+
+    /**
+     * @return The lane with the most packets waiting to be handled, along with how many packets are waiting in it.
+     */
+    public Optional<Map.Entry<Packet.SourceIdentifier, Integer>> deepestQueue() {
+        return this.lanes.values().stream()
+                .map(l -> Map.entry(l.source.source(), l.queue.size()))
+                .max(Map.Entry.comparingByValue());
+    }
+
+    /**
+     * @return How long packets of the priority waited in their lane before being handled.
+     */
+    public @NotNull QueueDelay queueDelay(@NotNull Packet.Priority priority) {
+        return this.delays.get(priority);
+    }
+
+    /**
+     * @return The number of lanes which currently have packets being handled.
+     */
+    public int activeLanes() {
+        return this.lanes.size();
+    }
+
+    /**
+     * @return The number of packets which have been handled.
+     */
+    public long dispatched() {
+        return this.dispatched.sum();
+    }
+
+    /**
+     * @return The number of packets which were dropped because their lane was full.
+     */
+    public long dropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * @return The average time spent handling a packet, in nanoseconds.
+     */
+    public long averageLatency() {
+        long count = this.dispatched.sum();
+        if(count == 0) return 0;
+        return this.totalLatency.sum() / count;
+    }
+
+    /**
+     * @return The longest time spent handling a single packet, in nanoseconds.
+     */
+    public long maxLatency() {
+        return this.maxLatency.get();
+    }
+
+    public int maxQueueDepth() {
+        return this.maxQueueDepth;
+    }
+
+    public @NotNull OverflowPolicy overflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    @Override
+    public void close() {
+        this.closed.set(true);
+        this.executor.shutdownNow();
+        this.lanes.clear();
+    }
+
+    /**
+     * Handles a packet once its lane reaches it.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        void accept(@NotNull Packet.Remote packet) throws Exception;
+    }
+
+    /**
+     * Decides what happens when a packet arrives for a lane which is already full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The incoming packet is dropped.
+         */
+        REJECT,
+
+        /**
+         * The oldest packet waiting in the lane is dropped to make room for the incoming one.
+         */
+        DROP_OLDEST
+    }
+
+    private record Task(@NotNull Packet.Remote packet, @NotNull Handler handler, long queuedAt) {}
+
+    private record LaneKey(@NotNull Packet.SourceIdentifier source, @NotNull Packet.Priority priority) {}
+
+    private static class Lane {
+        private final LaneKey source;
+        private final Queue<Task> queue = new LinkedBlockingQueue<>();
+        private boolean running = false;
+
+        private Lane(LaneKey source) {
+            this.source = source;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package group.aelysium.rustyconnector.common.magic_link;
+
+import group.aelysium.ara.Closure;
+import group.aelysium.rustyconnector.RC;
+import group.aelysium.rustyconnector.common.errors.Error;
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.common.magic_link.packet.PacketCodec;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * An append-only, on-disk history of the packets passing through a {@link PacketCache}.<br/>
+ * Packets are written in their binary form into fixed size, memory-mapped segment files, which are rotated once full.
+ * Only the newest segments are kept. Each segment gets a small sidecar index which records the time that every Nth packet was journaled,
+ * as well as every packet type and source seen in the segment, so {@link Reader readers} can skip straight to the packets they care about.
+ * <br/><br/>
+ * Appending a packet only hands it to a background thread. The background thread does all the encoding and writing,
+ * and only flushes the segment to disk periodically, rather than once per packet.
+ * If packets arrive faster than they can be written, the packets which don't fit into the queue are skipped.
+ */
+public class PacketJournal implements Closure {
+    private static final int MAGIC = 0x524A4E4C; // RJNL
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER = 8;
+    private static final int RECORD_HEADER = 20;
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final String INDEX_EXTENSION = ".idx";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int indexInterval;
+    private final long flushInterval;
+    private final BlockingQueue<Packet> queue;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong skipped = new AtomicLong(0);
+    private final Thread writer;
+
+    private long segmentNumber;
+    private MappedByteBuffer segment;
+    private SegmentIndex index;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+    /**
+     * @param directory The directory to write segment files into. It's created if it doesn't exist.
+     * @param segmentSize The size, in bytes, of each segment file.
+     * @param maxSegments The number of segment files to keep. Once there are more than this, the oldest segments are deleted.
+     * @param queueSize The maximum number of packets which can be waiting to be written.
+     * @throws IOException If the directory couldn't be prepared.
+     */
+    public PacketJournal(@NotNull Path directory, int segmentSize, int maxSegments, int queueSize) throws IOException {
+        if(segmentSize < 1024) throw new IllegalArgumentException("segmentSize must be at least 1024 bytes.");
+        if(maxSegments <= 0) throw new IllegalArgumentException("maxSegments must be larger than 0.");
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.indexInterval = 64;
+        this.flushInterval = 1000;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+
+        Files.createDirectories(directory);
+        this.segmentNumber = segments(directory).stream().mapToLong(PacketJournal::segmentNumber).max().orElse(-1) + 1;
+        this.openSegment();
+
+        this.writer = Thread.ofPlatform().name("rustyconnector-packet-journal").daemon(true).unstarted(this::run);
+        this.writer.start();
+    }
+
+    /**
+     * Creates a journal using 64MB segments, keeping the 16 newest ones.
+     */
+    public PacketJournal(@NotNull Path directory) throws IOException {
+        this(directory, 64 * 1024 * 1024, 16, 65536);
+    }
+
+    /**
+     * Queues the packet to be journaled.
+     * This never blocks. If the queue is full the packet is skipped.
+     * @param packet The packet to journal.
+     * @return `true` if the packet was queued. `false` if it was skipped.
+     */
+    public boolean append(@NotNull Packet packet) {
+        if(this.closed.get()) return false;
+        if(this.queue.offer(packet)) return true;
+        this.skipped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return The number of packets which have been written to disk.
+     */
+    public long written() {
+        return this.written.get();
+    }
+
+    /**
+     * @return The number of packets which were skipped because the queue was full.
+     */
+    public long skipped() {
+        return this.skipped.get();
+    }
+
+    /**
+     * @return The number of packets waiting to be written.
+     */
+    public int backlog() {
+        return this.queue.size();
+    }
+
+    public @NotNull Path directory() {
+        return this.directory;
+    }
+
+    private void run() {
+        long lastFlush = System.currentTimeMillis();
+        List<Packet> batch = new ArrayList<>(256);
+
+        while (!this.closed.get() || !this.queue.isEmpty()) {
+            try {
+                // The writer is never interrupted, since interrupting a thread that's using a FileChannel closes the channel.
+                Packet first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first != null) {
+                    batch.add(first);
+                    this.queue.drainTo(batch, 255);
+                    for (Packet packet : batch) this.write(packet);
+                }
+
+                long now = System.currentTimeMillis();
+                if(now - lastFlush >= this.flushInterval) {
+                    this.flush();
+                    lastFlush = now;
+                }
+            } catch (Exception e) {
+                RC.Error(Error.from(e).whileAttempting("To write packets into the packet journal."));
+            } finally {
+                batch.clear();
+            }
+        }
+
+        try {
+            this.flush();
+        } catch (Exception e) {
+            RC.Error(Error.from(e).whileAttempting("To flush the packet journal."));
+        }
+    }
+
+    private void write(Packet packet) throws IOException {
+        this.scratch.clear();
+        this.scratch = PacketCodec.encode(packet, this.scratch);
+        this.scratch.flip();
+
+        int length = this.scratch.remaining();
+        if(SEGMENT_HEADER + RECORD_HEADER + length > this.segmentSize) return; // Could never fit, not even in an empty segment.
+        if(this.segment.remaining() < RECORD_HEADER + length + 4) this.rotate();
+
+        long now = System.currentTimeMillis();
+        int offset = this.segment.position();
+        this.segment.putInt(length);
+        this.segment.putLong(now);
+        this.segment.putInt(packet.type().hashCode());
+        this.segment.putInt(Objects.hashCode(packet.local().id()));
+        this.segment.put(this.scratch);
+
+        this.index.record(now, offset, packet.type().toString(), packet.local().id());
+        this.written.incrementAndGet();
+
+        // Keep scratch from holding on to a huge packet forever.
+        if(this.scratch.capacity() > 64 * 1024) this.scratch = ByteBuffer.allocate(4096);
+    }
+
+    private void flush() throws IOException {
+        this.segment.force();
+        this.index.write(indexPath(this.directory, this.segmentNumber));
+    }
+
+    private void openSegment() throws IOException {
+        Path path = segmentPath(this.directory, this.segmentNumber);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+        }
+        this.segment.putInt(MAGIC);
+        this.segment.putInt(VERSION);
+        this.index = new SegmentIndex(this.indexInterval);
+    }
+
+    private void rotate() throws IOException {
+        this.flush();
+        this.segmentNumber++;
+        this.openSegment();
+
+        List<Path> segments = segments(this.directory);
+        for (int i = 0; i < segments.size() - this.maxSegments; i++) {
+            Path old = segments.get(i);
+            Files.deleteIfExists(old);
+            Files.deleteIfExists(indexPath(this.directory, segmentNumber(old)));
+        }
+    }
+
+    @Override
+    public void close() {
+        if(!this.closed.compareAndSet(false, true)) return;
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ignore) {}
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        if(!Files.isDirectory(directory)) return List.of();
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_EXTENSION))
+                    .sorted(Comparator.comparingLong(PacketJournal::segmentNumber))
+                    .toList();
+        }
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Path segmentPath(Path directory, long number) {
+        return directory.resolve(String.format("%020d", number) + SEGMENT_EXTENSION);
+    }
+
+    private static Path indexPath(Path directory, long number) {
+        return directory.resolve(String.format("%020d", number) + INDEX_EXTENSION);
+    }
+
+    /**
+     * The sparse index kept alongside each segment.
+     */
+    private static class SegmentIndex {
+        private final int interval;
+        private final List<long[]> entries = new ArrayList<>();
+        private final Set<String> types = new HashSet<>();
+        private final Set<String> sources = new HashSet<>();
+        private long first = Long.MAX_VALUE;
+        private long last = Long.MIN_VALUE;
+        private long records = 0;
+
+        private SegmentIndex(int interval) {
+            this.interval = interval;
+        }
+
+        private void record(long time, int offset, String type, @Nullable String source) {
+            if(this.records++ % this.interval == 0) this.entries.add(new long[]{time, offset});
+            this.first = Math.min(this.first, time);
+            this.last = Math.max(this.last, time);
+            this.types.add(type);
+            if(source != null) this.sources.add(source);
+        }
+
+        /**
+         * @return The offset of the last indexed record journaled at or before `time`, or the first record if there isn't one.
+         */
+        private int seek(long time) {
+            int offset = SEGMENT_HEADER;
+            for (long[] entry : this.entries) {
+                if(entry[0] > time) break;
+                offset = (int) entry[1];
+            }
+            return offset;
+        }
+
+        private boolean mightContain(Query query) {
+            if(this.records == 0) return false;
+            if(query.to() != null && this.first > query.to().toEpochMilli()) return false;
+            if(query.from() != null && this.last < query.from().toEpochMilli()) return false;
+            if(query.type() != null && !this.types.contains(query.type().toString())) return false;
+            return query.source() == null || this.sources.contains(query.source());
+        }
+
+        private void write(Path path) throws IOException {
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(this.records);
+                output.writeLong(this.first);
+                output.writeLong(this.last);
+                output.writeInt(this.entries.size());
+                for (long[] entry : this.entries) {
+                    output.writeLong(entry[0]);
+                    output.writeInt((int) entry[1]);
+                }
+                output.writeInt(this.types.size());
+                for (String type : this.types) output.writeUTF(type);
+                output.writeInt(this.sources.size());
+                for (String source : this.sources) output.writeUTF(source);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static @Nullable SegmentIndex read(Path path, int interval) {
+            if(!Files.exists(path)) return null;
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                if(input.readInt() != MAGIC || input.readInt() != VERSION) return null;
+
+                SegmentIndex index = new SegmentIndex(interval);
+                index.records = input.readLong();
+                index.first = input.readLong();
+                index.last = input.readLong();
+                int entries = input.readInt();
+                for (int i = 0; i < entries; i++) index.entries.add(new long[]{input.readLong(), input.readInt()});
+                int types = input.readInt();
+                for (int i = 0; i < types; i++) index.types.add(input.readUTF());
+                int sources = input.readInt();
+                for (int i = 0; i < sources; i++) index.sources.add(input.readUTF());
+                return index;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Filters the packets returned by a {@link Reader}. Any field left `null` matches everything.
+     * @param from The earliest time that a packet could have been journaled at.
+     * @param to The latest time that a packet could have been journaled at.
+     * @param type The type of packet.
+     * @param source The id of the packet's sender.
+     */
+    public record Query(@Nullable Instant from, @Nullable Instant to, @Nullable Packet.Type type, @Nullable String source) {
+        private boolean matchesHeader(long time, int typeHash, int sourceHash) {
+            if(this.from != null && time < this.from.toEpochMilli()) return false;
+            if(this.to != null && time > this.to.toEpochMilli()) return false;
+            if(this.type != null && this.type.hashCode() != typeHash) return false;
+            return this.source == null || this.source.hashCode() == sourceHash;
+        }
+
+        private boolean matches(Packet packet) {
+            if(this.type != null && !this.type.equals(packet.type())) return false;
+            return this.source == null || this.source.equals(packet.local().id());
+        }
+    }
+
+    /**
+     * A packet read back out of the journal.
+     * @param journaled The time that the packet was written into the journal.
+     * @param packet The packet.
+     */
+    public record Record(@NotNull Instant journaled, @NotNull Packet.Remote packet) {}
+
+    /**
+     * Reads packets back out of a journal's directory.<br/>
+     * Segments are memory-mapped and scanned in place, so only the packets which match a query are ever decoded onto the heap.
+     * Readers can safely be used while a journal is still writing into the directory, though they won't see packets which haven't been flushed yet.
+     */
+    public static class Reader {
+        private final Path directory;
+
+        public Reader(@NotNull Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Scans the journal, from oldest to newest, for packets matching the query.
+         * @param query The packets to look for.
+         * @param consumer Called with every matching packet. Return `false` to stop scanning.
+         * @return The number of packets which were passed to the consumer.
+         * @throws IOException If the journal couldn't be read.
+         */
+        public long scan(@NotNull Query query, @NotNull Predicate<Record> consumer) throws IOException {
+            long matched = 0;
+            for (Path path : segments(this.directory)) {
+                SegmentIndex index = SegmentIndex.read(indexPath(this.directory, segmentNumber(path)), 0);
+                if(index != null && !index.mightContain(query)) continue;
+
+                MappedByteBuffer segment;
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } catch (NoSuchFileException ignore) {
+                    continue; // Deleted by the writer while we were scanning.
+                }
+                if(segment.limit() < SEGMENT_HEADER || segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION) continue;
+
+                int position = index == null || query.from() == null ? SEGMENT_HEADER : index.seek(query.from().toEpochMilli());
+                while (position + RECORD_HEADER <= segment.limit()) {
+                    int length = segment.getInt(position);
+                    if(length <= 0 || position + RECORD_HEADER + length > segment.limit()) break;
+
+                    long time = segment.getLong(position + 4);
+                    if(query.to() != null && time > query.to().toEpochMilli()) break;
+
+                    if(query.matchesHeader(time, segment.getInt(position + 12), segment.getInt(position + 16))) {
+                        Packet.Remote packet = PacketCodec.decode(segment.slice(position + RECORD_HEADER, length));
+                        if(query.matches(packet)) {
+                            matched++;
+                            if(!consumer.test(new Record(Instant.ofEpochMilli(time), packet))) return matched;
+                        }
+                    }
+                    position += RECORD_HEADER + length;
+                }
+            }
+            return matched;
+        }
+
+        /**
+         * Prints the packets in a journal which match the provided filters.<br/>
+         * Usage: {@code <directory> [--from <ISO-8601 instant>] [--to <ISO-8601 instant>] [--type <packet type>] [--source <source id>] [--limit <count>]}
+         */
+        public static void main(String[] args) throws IOException {
+            if(args.length == 0) {
+                System.err.println("Usage: <directory> [--from <ISO-8601 instant>] [--to <ISO-8601 instant>] [--type <packet type>] [--source <source id>] [--limit <count>]");
+                System.exit(1);
+            }
+
+            Instant from = null;
+            Instant to = null;
+            Packet.Type type = null;
+            String source = null;
+            long limit = Long.MAX_VALUE;
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case "--from" -> from = Instant.parse(args[i + 1]);
+                    case "--to" -> to = Instant.parse(args[i + 1]);
+                    case "--type" -> type = Packet.Type.parseString(args[i + 1]);
+                    case "--source" -> source = args[i + 1];
+                    case "--limit" -> limit = Long.parseLong(args[i + 1]);
+                    default -> throw new IllegalArgumentException("Unknown option "+args[i]);
+                }
+            }
+
+            long max = limit;
+            long[] printed = {0};
+            new Reader(Path.of(args[0])).scan(new Query(from, to, type, source), record -> {
+                System.out.println(record.journaled() + " " + record.packet());
+                return ++printed[0] < max;
+            });
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package group.aelysium.rustyconnector.common.magic_link;
+
+import group.aelysium.rustyconnector.RC;
+import group.aelysium.rustyconnector.common.crypt.NanoID;
+import group.aelysium.rustyconnector.common.errors.Error;
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.common.magic_link.packet.PacketListener;
+import group.aelysium.rustyconnector.common.util.Parameter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Sends and receives streams, which are payloads too large to send as a single packet.<br/>
+ * A stream is split into chunks of at most {@link #CHUNK_SIZE} bytes, each sent as its own packet, so each is encrypted on its own and fits easily into a single frame.
+ * The receiver reads the stream incrementally, as an {@link InputStream} or a {@link ReadableByteChannel}, while it's still arriving.
+ * <br/><br/>
+ * The sender may only be {@link #WINDOW} chunks ahead of what the receiver has read, and the receiver moves that window forward as it reads.
+ * So neither side ever holds more than a window's worth of a stream, no matter how large the stream is.
+ * A stream which makes no progress for {@link #TIMEOUT} seconds is canceled on both sides.
+ */
+public class PacketStreams implements AutoCloseable {
+    public static final int CHUNK_SIZE = 32 * 1024;
+    public static final int WINDOW = 8;
+    public static final int TIMEOUT = 30;
+    private static final Packet.Type OPEN = Packet.Type.from("RC", "SO").priority(Packet.Priority.BULK);
+    private static final Packet.Type CHUNK = Packet.Type.from("RC", "SC").priority(Packet.Priority.BULK);
+    private static final Packet.Type WINDOW_UPDATE = Packet.Type.from("RC", "SW");
+    private static final Packet.Type CANCEL = Packet.Type.from("RC", "SX");
+
+    private final MagicLinkCore magicLink;
+    private final Map<String, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<String, Incoming> incoming = new ConcurrentHashMap<>();
+    private final Map<String, Consumer<Incoming>> handlers = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder canceled = new LongAdder();
+
+    protected PacketStreams(@NotNull MagicLinkCore magicLink) {
+        this.magicLink = magicLink;
+    }
+
+    /**
+     * Streams the payload to a single peer.
+     * @param target The peer to stream to. Streams are flow controlled by their receiver, so this must identify exactly one proxy or server.
+     * @param channel The channel the stream is sent on. The receiver must be handling it with {@link #listen(String, Consumer)}.
+     * @param payload The payload to stream. It's read as the receiver makes room for it, and closed once the stream ends.
+     * @param length The total number of bytes in the payload. `-1` if it isn't known.
+     * @return A future which completes once the receiver has read the entire stream, or exceptionally if the stream is canceled.
+     *         Canceling the future cancels the stream.
+     * @throws IllegalArgumentException If the target doesn't identify a single peer.
+     */
+    public @NotNull CompletableFuture<Void> send(@NotNull Packet.SourceIdentifier target, @NotNull String channel, @NotNull ReadableByteChannel payload, long length) throws IllegalArgumentException {
+        if(target.id() == null || (target.origin() != Packet.SourceIdentifier.Origin.PROXY && target.origin() != Packet.SourceIdentifier.Origin.SERVER))
+            throw new IllegalArgumentException("Streams can only be sent to a single proxy or server, not "+target+".");
+
+        Outgoing stream = new Outgoing(NanoID.randomNanoID().toString(), target, channel, payload, length);
+        this.outgoing.put(stream.id, stream);
+        try {
+            this.executor.execute(stream::run);
+        } catch (RejectedExecutionException e) {
+            this.outgoing.remove(stream.id);
+            stream.future.completeExceptionally(new IOException("MagicLink is closed."));
+        }
+        return stream.future;
+    }
+
+    /**
+     * Streams the payload to a single peer. See {@link #send(Packet.SourceIdentifier, String, ReadableByteChannel, long)}.
+     */
+    public @NotNull CompletableFuture<Void> send(@NotNull Packet.SourceIdentifier target, @NotNull String channel, @NotNull InputStream payload, long length) throws IllegalArgumentException {
+        // Unlike Channels.newChannel, this doesn't hold a monitor while reading, so a slow payload can't pin the sending virtual thread.
+        return this.send(target, channel, new ReadableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer destination) throws IOException {
+                int read = payload.read(destination.array(), destination.arrayOffset() + destination.position(), destination.remaining());
+                if(read > 0) destination.position(destination.position() + read);
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return this.open;
+            }
+
+            @Override
+            public void close() throws IOException {
+                this.open = false;
+                payload.close();
+            }
+        }, length);
+    }
+
+    /**
+     * Handles streams sent on the channel.
+     * The handler runs on its own thread, so it can read the stream as it arrives. It must close the stream once it's done with it.
+     * @param channel The channel to handle.
+     * @param handler The handler, which replaces any handler that the channel had before.
+     */
+    public void listen(@NotNull String channel, @NotNull Consumer<Incoming> handler) {
+        this.handlers.put(channel, handler);
+    }
+
+    @PacketListener(MagicLinkCore.Packets.StreamOpen.class)
+    public PacketListener.Response handle(MagicLinkCore.Packets.StreamOpen packet) {
+        Consumer<Incoming> handler = this.handlers.get(packet.channel());
+        if(handler == null) {
+            this.cancel(packet.local(), packet.stream(), "Nothing is handling streams on "+packet.channel()+".");
+            return PacketListener.Response.error("Nothing is handling streams on "+packet.channel()+".");
+        }
+
+        Incoming stream = new Incoming(packet.stream(), packet.local(), packet.channel(), packet.length());
+        if(this.incoming.putIfAbsent(stream.id, stream) != null)
+            return PacketListener.Response.error("The stream "+stream.id+" is already open.");
+
+        try {
+            this.executor.execute(() -> {
+                try {
+                    handler.accept(stream);
+                } catch (Exception e) {
+                    RC.Error(Error.from(e).whileAttempting("To handle a stream on "+stream.channel));
+                    stream.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stream.close();
+        }
+        return PacketListener.Response.success("Successfully opened the stream.");
+    }
+
+    @PacketListener(MagicLinkCore.Packets.StreamChunk.class)
+    public PacketListener.Response handle(MagicLinkCore.Packets.StreamChunk packet) {
+        Incoming stream = this.incoming.get(packet.stream());
+        if(stream == null || !stream.source.equals(packet.local()))
+            return PacketListener.Response.error("The stream "+packet.stream()+" isn't open.");
+
+        stream.accept(packet.sequence(), packet.data(), packet.last());
+        return PacketListener.Response.success("Successfully received the chunk.");
+    }
+
+    @PacketListener(MagicLinkCore.Packets.StreamWindow.class)
+    public PacketListener.Response handle(MagicLinkCore.Packets.StreamWindow packet) {
+        Outgoing stream = this.outgoing.get(packet.stream());
+        if(stream == null || !stream.target.equals(packet.local()))
+            return PacketListener.Response.error("The stream "+packet.stream()+" isn't open.");
+
+        stream.grant(packet.consumed());
+        return PacketListener.Response.success("Successfully moved the stream's window.");
+    }
+
+    @PacketListener(MagicLinkCore.Packets.StreamCancel.class)
+    public PacketListener.Response handle(MagicLinkCore.Packets.StreamCancel packet) {
+        Outgoing sending = this.outgoing.get(packet.stream());
+        if(sending != null && sending.target.equals(packet.local())) sending.abort(packet.reason(), false);
+
+        Incoming receiving = this.incoming.get(packet.stream());
+        if(receiving != null && receiving.source.equals(packet.local())) receiving.abort(packet.reason(), false);
+
+        return PacketListener.Response.success("Successfully canceled the stream.");
+    }
+
+    private void cancel(Packet.SourceIdentifier peer, String stream, String reason) {
+        this.canceled.increment();
+        try {
+            this.publish(CANCEL, peer, Map.of(
+                    MagicLinkCore.Packets.StreamCancel.Parameters.STREAM, new Parameter(stream),
+                    MagicLinkCore.Packets.StreamCancel.Parameters.REASON, new Parameter(reason)
+            ));
+        } catch (Exception e) {
+            RC.Error(Error.from(e).whileAttempting("To cancel the stream "+stream));
+        }
+    }
+
+    /**
+     * Publishes one of the packets that streams are made of.
+     * @throws IOException If MagicLink couldn't send or queue the packet.
+     */
+    protected void publish(@NotNull Packet.Type type, @NotNull Packet.SourceIdentifier target, @NotNull Map<String, Parameter> parameters) throws IOException {
+        Packet.Builder.PrepareForSending builder = Packet.New().identification(type);
+        parameters.forEach(builder::parameter);
+        Packet.Local packet = builder.addressTo(target).build();
+
+        this.magicLink.publish(packet);
+        if(!packet.successful()) throw new IOException(packet.statusMessage());
+    }
+
+    /**
+     * @return The number of streams currently being sent.
+     */
+    public int sending() {
+        return this.outgoing.size();
+    }
+
+    /**
+     * @return The number of streams currently being received.
+     */
+    public int receiving() {
+        return this.incoming.size();
+    }
+
+    public long bytesSent() {
+        return this.bytesSent.sum();
+    }
+
+    public long bytesReceived() {
+        return this.bytesReceived.sum();
+    }
+
+    /**
+     * @return The number of streams which were canceled, by either side.
+     */
+    public long canceled() {
+        return this.canceled.sum();
+    }
+
+    /**
+     * Cancels every open stream.
+     */
+    @Override
+    public void close() {
+        this.outgoing.values().forEach(s -> s.abort("MagicLink is closing.", true));
+        this.incoming.values().forEach(s -> s.abort("MagicLink is closing.", true));
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * A stream being sent to a peer.
+     */
+    private class Outgoing {
+        private final String id;
+        private final Packet.SourceIdentifier target;
+        private final String channel;
+        private final ReadableByteChannel payload;
+        private final long length;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition progressed = this.lock.newCondition();
+        private final AtomicBoolean aborted = new AtomicBoolean(false);
+        private long consumed = 0;
+        private String reason = null;
+
+        private Outgoing(String id, Packet.SourceIdentifier target, String channel, ReadableByteChannel payload, long length) {
+            this.id = id;
+            this.target = target;
+            this.channel = channel;
+            this.payload = payload;
+            this.length = length;
+
+            this.future.whenComplete((v, e) -> {
+                if(this.future.isCancelled()) this.abort("The sender canceled the stream.", true);
+            });
+        }
+
+        private void run() {
+            try {
+                publish(OPEN, this.target, Map.of(
+                        MagicLinkCore.Packets.StreamOpen.Parameters.STREAM, new Parameter(this.id),
+                        MagicLinkCore.Packets.StreamOpen.Parameters.CHANNEL, new Parameter(this.channel),
+                        MagicLinkCore.Packets.StreamOpen.Parameters.LENGTH, new Parameter(this.length)
+                ));
+
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                long sequence = 0;
+                boolean last = false;
+                while (!last) {
+                    this.await(sequence - WINDOW + 1);
+
+                    buffer.clear();
+                    while (buffer.hasRemaining()) {
+                        if(this.payload.read(buffer) >= 0) continue;
+                        last = true;
+                        break;
+                    }
+
+                    publish(CHUNK, this.target, Map.of(
+                            MagicLinkCore.Packets.StreamChunk.Parameters.STREAM, new Parameter(this.id),
+                            MagicLinkCore.Packets.StreamChunk.Parameters.SEQUENCE, new Parameter(sequence),
+                            MagicLinkCore.Packets.StreamChunk.Parameters.DATA, new Parameter(Arrays.copyOf(buffer.array(), buffer.position())),
+                            MagicLinkCore.Packets.StreamChunk.Parameters.LAST, new Parameter(last)
+                    ));
+                    bytesSent.add(buffer.position());
+                    sequence++;
+                }
+
+                this.await(sequence);
+                this.future.complete(null);
+            } catch (Exception e) {
+                if(this.aborted.get()) this.future.completeExceptionally(new IOException("The stream was canceled. "+this.reason));
+                else {
+                    this.abort(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage(), true);
+                    this.future.completeExceptionally(e);
+                }
+            } finally {
+                outgoing.remove(this.id, this);
+                try {
+                    this.payload.close();
+                } catch (Exception ignore) {}
+            }
+        }
+
+        /**
+         * Waits until the receiver has read at least `chunks` chunks.
+         * @throws TimeoutException If the receiver stops reading for longer than {@link #TIMEOUT}.
+         * @throws CancellationException If the stream was canceled.
+         */
+        private void await(long chunks) throws TimeoutException, InterruptedException {
+            this.lock.lock();
+            try {
+                long seen = this.consumed;
+                long remaining = TimeUnit.SECONDS.toNanos(TIMEOUT);
+                while (this.consumed < chunks) {
+                    if(this.aborted.get()) throw new CancellationException(this.reason);
+                    if(this.consumed != seen) {
+                        seen = this.consumed;
+                        remaining = TimeUnit.SECONDS.toNanos(TIMEOUT);
+                    }
+                    if(remaining <= 0) throw new TimeoutException("The receiver didn't read any of the stream for "+TIMEOUT+" seconds.");
+                    remaining = this.progressed.awaitNanos(remaining);
+                }
+                if(this.aborted.get()) throw new CancellationException(this.reason);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void grant(long consumed) {
+            this.lock.lock();
+            try {
+                this.consumed = Math.max(this.consumed, consumed);
+                this.progressed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * @param notify Whether the receiver needs to be told. It doesn't if it's the one who canceled the stream.
+         */
+        private void abort(String reason, boolean notify) {
+            if(!this.aborted.compareAndSet(false, true)) return;
+            this.lock.lock();
+            try {
+                this.reason = reason;
+                this.progressed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+            if(notify) cancel(this.target, this.id, reason);
+            else canceled.increment();
+            this.future.completeExceptionally(new IOException("The stream was canceled. "+reason));
+        }
+    }
+
+    /**
+     * A stream being received from a peer.
+     * Reading blocks until the next chunk arrives, and fails if the stream is canceled or stops making progress.
+     */
+    public class Incoming implements ReadableByteChannel {
+        private static final Chunk ABORTED = new Chunk(new byte[0], true);
+        private final String id;
+        private final Packet.SourceIdentifier source;
+        private final String channel;
+        private final long length;
+        // One extra slot, so that an abort can always be queued behind a full window.
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(WINDOW + 1);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile String reason = null;
+        private long expected = 0;
+        private long consumed = 0;
+        private ByteBuffer current = ByteBuffer.allocate(0);
+        private boolean finished = false;
+
+        private Incoming(String id, Packet.SourceIdentifier source, String channel, long length) {
+            this.id = id;
+            this.source = source;
+            this.channel = channel;
+            this.length = length;
+        }
+
+        /**
+         * @return Who sent the stream.
+         */
+        public @NotNull Packet.SourceIdentifier source() {
+            return this.source;
+        }
+
+        public @NotNull String channel() {
+            return this.channel;
+        }
+
+        /**
+         * @return The total number of bytes in the stream. `-1` if the sender didn't know.
+         */
+        public long length() {
+            return this.length;
+        }
+
+        /**
+         * @return A view of the stream as an {@link InputStream}. Closing it closes the stream.
+         */
+        public @NotNull InputStream inputStream() {
+            // Channels.newInputStream reads while holding a monitor, which would pin the reader's virtual thread to its carrier while it waits for chunks.
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return this.read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte @NotNull [] bytes, int offset, int length) throws IOException {
+                    Objects.checkFromIndexSize(offset, length, bytes.length);
+                    if(length == 0) return 0;
+                    return Incoming.this.read(ByteBuffer.wrap(bytes, offset, length));
+                }
+
+                @Override
+                public int available() {
+                    return Incoming.this.current.remaining();
+                }
+
+                @Override
+                public void close() {
+                    Incoming.this.close();
+                }
+            };
+        }
+
+        /**
+         * Queues an arriving chunk. Only ever called from the source's dispatch lane, so chunks arrive one at a time and in order.
+         */
+        private void accept(long sequence, byte[] data, boolean last) {
+            if(this.closed.get()) return;
+            if(sequence != this.expected) {
+                this.abort("Chunk "+sequence+" arrived when chunk "+this.expected+" was expected.", true);
+                return;
+            }
+            this.expected++;
+
+            // The queue has room for a full window, so this only fails if the sender ignored its window.
+            if(this.chunks.size() >= WINDOW || !this.chunks.offer(new Chunk(data, last))) {
+                this.abort("The sender overran its window.", true);
+                return;
+            }
+            bytesReceived.add(data.length);
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            if(this.closed.get() && this.reason == null && !this.finished) throw new ClosedChannelException();
+
+            while (!this.current.hasRemaining()) {
+                if(this.finished) {
+                    incoming.remove(this.id, this);
+                    return -1;
+                }
+
+                Chunk chunk;
+                try {
+                    chunk = this.chunks.poll(TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the stream.", e);
+                }
+                if(chunk == null) {
+                    this.abort("The sender didn't send any of the stream for "+TIMEOUT+" seconds.", true);
+                    throw new IOException(this.reason);
+                }
+                if(chunk == ABORTED) throw new IOException("The stream was canceled. "+this.reason);
+
+                this.current = ByteBuffer.wrap(chunk.data);
+                this.finished = chunk.last;
+                this.consumed++;
+                // Windows are moved forward in halves, so that the sender rarely has to wait and the receiver doesn't reply to every chunk.
+                if(this.finished || this.consumed % Math.max(1, WINDOW / 2) == 0) this.window();
+            }
+
+            int length = Math.min(destination.remaining(), this.current.remaining());
+            destination.put(this.current.slice(this.current.position(), length));
+            this.current.position(this.current.position() + length);
+            return length;
+        }
+
+        private void window() {
+            try {
+                publish(WINDOW_UPDATE, this.source, Map.of(
+                        MagicLinkCore.Packets.StreamWindow.Parameters.STREAM, new Parameter(this.id),
+                        MagicLinkCore.Packets.StreamWindow.Parameters.CONSUMED, new Parameter(this.consumed)
+                ));
+            } catch (Exception e) {
+                RC.Error(Error.from(e).whileAttempting("To move the window of the stream "+this.id));
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !this.closed.get();
+        }
+
+        /**
+         * Closes the stream. If it hasn't been read to the end, the sender is told to stop sending it.
+         */
+        @Override
+        public void close() {
+            if(this.finished && !this.current.hasRemaining()) {
+                this.closed.set(true);
+                incoming.remove(this.id, this);
+                return;
+            }
+            this.abort("The receiver closed the stream.", true);
+        }
+
+        /**
+         * @param notify Whether the sender needs to be told. It doesn't if it's the one who canceled the stream.
+         */
+        private void abort(String reason, boolean notify) {
+            if(!this.closed.compareAndSet(false, true)) return;
+            this.reason = reason;
+            incoming.remove(this.id, this);
+            this.chunks.clear();
+            this.chunks.offer(ABORTED);
+
+            if(notify) cancel(this.source, this.id, reason);
+            else canceled.increment();
+        }
+    }
+
+    private record Chunk(byte[] data, boolean last) {}
+}
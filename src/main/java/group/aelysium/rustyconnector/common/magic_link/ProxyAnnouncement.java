@@ -0,0 +1,121 @@
+package group.aelysium.rustyconnector.common.magic_link;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import group.aelysium.rustyconnector.common.util.URL;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Advertises a proxy's MagicLink address to servers, so that they can connect without being configured with it.<br/>
+ * Proxies broadcast one of these periodically. Servers treat a proxy as gone once it misses a few announcements in a row.
+ * @param proxy The id of the proxy.
+ * @param address The address that servers should connect to.
+ * @param load The number of servers currently connected to the proxy.
+ * @param interval How often the proxy announces itself, in milliseconds.
+ * @param announcedAt When the announcement was made, as a unix timestamp in milliseconds.
+ *                    Receivers replace it with when they received the announcement, so that the clocks of different machines are never compared.
+ */
+public record ProxyAnnouncement(
+        @NotNull String proxy,
+        @NotNull URL address,
+        int load,
+        long interval,
+        long announcedAt
+) {
+    private static final String type = "RC-DA";
+    private static final String solicitationType = "RC-DQ";
+    /**
+     * The number of announcements a proxy can miss before it's no longer considered to be available.
+     */
+    public static final int missedAnnouncements = 3;
+
+    /**
+     * @return `true` if the proxy hasn't missed too many announcements since this one.
+     */
+    public boolean fresh() {
+        return System.currentTimeMillis() - this.announcedAt <= this.interval * missedAnnouncements;
+    }
+
+    /**
+     * @return A copy of this announcement, as received right now.
+     */
+    public @NotNull ProxyAnnouncement received() {
+        return new ProxyAnnouncement(this.proxy, this.address, this.load, this.interval, System.currentTimeMillis());
+    }
+
+    public JsonObject toJSON() {
+        JsonObject object = new JsonObject();
+        object.add("t", new JsonPrimitive(type));
+        object.add("p", new JsonPrimitive(this.proxy));
+        object.add("a", new JsonPrimitive(this.address.toString()));
+        object.add("l", new JsonPrimitive(this.load));
+        object.add("n", new JsonPrimitive(this.interval));
+        object.add("at", new JsonPrimitive(this.announcedAt));
+        return object;
+    }
+
+    @Override
+    public String toString() {
+        return this.toJSON().toString();
+    }
+
+    /**
+     * Parses an announcement.
+     * @param object The announcement's JSON.
+     * @return The announcement, or `null` if the JSON isn't an announcement.
+     */
+    public static @Nullable ProxyAnnouncement fromJSON(@NotNull JsonObject object) {
+        try {
+            if(!object.has("t") || !type.equals(object.get("t").getAsString())) return null;
+            return new ProxyAnnouncement(
+                    object.get("p").getAsString(),
+                    URL.parseURL(object.get("a").getAsString()),
+                    object.get("l").getAsInt(),
+                    object.get("n").getAsLong(),
+                    object.get("at").getAsLong()
+            );
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Asks every proxy to announce itself straight away, rather than at its next interval.
+     * Servers send this when they start up without knowing of any proxies.
+     * @return The message to broadcast.
+     */
+    public static @NotNull String solicitation() {
+        JsonObject object = new JsonObject();
+        object.add("t", new JsonPrimitive(solicitationType));
+        return object.toString();
+    }
+
+    /**
+     * @param message A message received by the broadcaster.
+     * @return `true` if the message is a {@link #solicitation()}.
+     */
+    public static boolean solicited(@NotNull String message) {
+        try {
+            JsonObject object = JsonParser.parseString(message).getAsJsonObject();
+            return object.has("t") && solicitationType.equals(object.get("t").getAsString());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a message received by the broadcaster.
+     * The broadcaster carries more than just announcements, so anything else is ignored.
+     * @param message The decrypted message.
+     * @return The announcement, or `null` if the message isn't an announcement.
+     */
+    public static @Nullable ProxyAnnouncement parse(@NotNull String message) {
+        try {
+            return fromJSON(JsonParser.parseString(message).getAsJsonObject());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
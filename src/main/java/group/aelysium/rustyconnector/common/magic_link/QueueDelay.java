@@ -0,0 +1,52 @@
+package group.aelysium.rustyconnector.common.magic_link;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how long packets wait in a queue before they're handled or sent.
+ */
+public class QueueDelay {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Records a packet leaving the queue.
+     * @param queuedAt When the packet entered the queue, from {@link System#nanoTime()}.
+     */
+    public void record(long queuedAt) {
+        long delay = Math.max(0, System.nanoTime() - queuedAt);
+        this.count.increment();
+        this.total.add(delay);
+        this.max.accumulateAndGet(delay, Math::max);
+    }
+
+    /**
+     * @return The number of packets which have left the queue.
+     */
+    public long count() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return The average time spent waiting in the queue, in nanoseconds.
+     */
+    public long average() {
+        long count = this.count.sum();
+        if(count == 0) return 0;
+        return this.total.sum() / count;
+    }
+
+    /**
+     * @return The longest time spent waiting in the queue, in nanoseconds.
+     */
+    public long max() {
+        return this.max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.2fms average, %.2fms max", this.average() / 1_000_000D, this.max() / 1_000_000D);
+    }
+}
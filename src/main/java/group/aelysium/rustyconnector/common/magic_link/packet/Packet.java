@@ -4,21 +4,29 @@ import com.google.gson.*;
 import group.aelysium.rustyconnector.common.crypt.NanoID;
 import group.aelysium.rustyconnector.common.errors.Error;
 import group.aelysium.rustyconnector.common.util.JSONParseable;
+import group.aelysium.rustyconnector.common.magic_link.Gathered;
 import group.aelysium.rustyconnector.common.magic_link.MagicLinkCore;
 import group.aelysium.rustyconnector.RC;
 import group.aelysium.rustyconnector.common.util.Parameter;
+import group.aelysium.rustyconnector.proxy.util.LiquidTimestamp;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * The base Packet class.
  */
 public abstract class Packet implements JSONParseable {
-    protected static final int protocolVersion = 3;
+    /**
+     * The version that packets are stamped with until they're encoded.
+     * {@link PacketCodec#encode(Packet, int)} stamps each encoding with the version that was negotiated with the peer receiving it.
+     */
+    protected static final int protocolVersion = PacketCodec.JSON_PROTOCOL;
 
     protected final int messageVersion;
     protected final Instant created = Instant.now();
@@ -29,6 +37,7 @@ public abstract class Packet implements JSONParseable {
     protected boolean successful = false;
     protected String statusMessage = "The packet was parsed properly but has not been processed in any way.";
     protected NanoID cacheID = null;
+    protected volatile Consumer<Packet> statusObserver = null;
 
     /**
      * The protocol version used by this packet.
@@ -111,6 +120,19 @@ public abstract class Packet implements JSONParseable {
     public void status(boolean successful, @Nullable String message) {
         this.successful = successful;
         this.statusMessage = message == null ? "No message was provided for this status." : message;
+
+        Consumer<Packet> observer = this.statusObserver;
+        if(observer != null) observer.accept(this);
+    }
+
+    /**
+     * Sets the callback which is run every time this packet's status changes.
+     * A packet only has one observer, setting a new one replaces the old one.
+     * This is used by {@link group.aelysium.rustyconnector.common.magic_link.PacketCache} to keep its indexes up to date.
+     * @param observer The observer to run. `null` to remove the current observer.
+     */
+    public void observeStatus(@Nullable Consumer<Packet> observer) {
+        this.statusObserver = observer;
     }
 
     /**
@@ -124,9 +146,16 @@ public abstract class Packet implements JSONParseable {
     }
 
     public JsonObject toJSON() {
+        return this.toJSON(this.messageVersion);
+    }
+
+    /**
+     * @param protocolVersion The protocol version to stamp the JSON with.
+     */
+    JsonObject toJSON(int protocolVersion) {
         JsonObject object = new JsonObject();
 
-        object.add(Parameters.PROTOCOL_VERSION, new JsonPrimitive(this.messageVersion));
+        object.add(Parameters.PROTOCOL_VERSION, new JsonPrimitive(protocolVersion));
         object.add(Parameters.IDENTIFICATION, new JsonPrimitive(this.type.toString()));
         object.add(Parameters.LOCAL, this.local.toJSON());
         object.add(Parameters.REMOTE, this.remote.toJSON());
@@ -251,6 +280,45 @@ public abstract class Packet implements JSONParseable {
 
                 return packet;
             }
+
+            /**
+             * Builds the packet without sending it.
+             * This is for MagicLink providers which need to send a packet through a specific connection, rather than through {@link MagicLinkCore#publish(Packet.Local)}.
+             */
+            public Packet.Local build() {
+                return this.builder.buildLocal();
+            }
+
+            /**
+             * Sends the packet and waits for a reply.
+             * This method resolves the currently active MagicLink provider and calls {@link MagicLinkCore#request(Packet.Local, Class, LiquidTimestamp)}.
+             * @param replyType The type of packet to wait for.
+             * @param timeout How long to wait for a reply.
+             * @return A future which completes with the reply, or completes exceptionally if no reply arrives in time.
+             * @throws RuntimeException If there was an issue sending the packet.
+             */
+            public <T extends Remote> CompletableFuture<T> request(@NotNull Class<T> replyType, @NotNull LiquidTimestamp timeout) throws RuntimeException {
+                Packet.Local packet = this.builder.buildLocal();
+
+                MagicLinkCore magicLink = RC.MagicLink();
+                return magicLink.request(packet, replyType, timeout);
+            }
+
+            /**
+             * Sends the packet and collects a reply from each of the expected responders.
+             * This method resolves the currently active MagicLink provider and calls {@link MagicLinkCore#gather(Packet.Local, Class, Set, LiquidTimestamp)}.
+             * @param replyType The type of packet to wait for.
+             * @param responders Everyone who is expected to reply.
+             * @param timeout How long to wait for replies.
+             * @return A future which completes with the replies once everyone has answered, or once the timeout passes.
+             * @throws RuntimeException If there was an issue sending the packet.
+             */
+            public <T extends Remote> CompletableFuture<Gathered<T>> gather(@NotNull Class<T> replyType, @NotNull Set<SourceIdentifier> responders, @NotNull LiquidTimestamp timeout) throws RuntimeException {
+                Packet.Local packet = this.builder.buildLocal();
+
+                MagicLinkCore magicLink = RC.MagicLink();
+                return magicLink.gather(packet, replyType, responders, timeout);
+            }
         }
 
         /**
@@ -262,9 +330,14 @@ public abstract class Packet implements JSONParseable {
         }
     }
 
+    /**
+     * Parses a packet which was received in the JSON (v3) format.
+     * For payloads which might be in either format, use {@link PacketCodec#decode(byte[])}.
+     * @param rawMessage The decrypted JSON packet.
+     * @return The parsed packet.
+     */
     public static Packet.Remote parseIncoming(String rawMessage) {
-        Gson gson = new Gson();
-        JsonObject messageObject = gson.fromJson(rawMessage, JsonObject.class);
+        JsonObject messageObject = JsonParser.parseString(rawMessage).getAsJsonObject();
 
         NakedBuilder builder = new NakedBuilder();
 
@@ -356,6 +429,20 @@ public abstract class Packet implements JSONParseable {
         public static SourceIdentifier allAvailableServers() {
             return new SourceIdentifier(null, Origin.ANY_SERVER);
         }
+        /**
+         * Addresses every server in the family.
+         * The proxy only forwards the packet to the family's servers, rather than broadcasting it to every server.
+         */
+        public static SourceIdentifier family(@NotNull String id) {
+            return new SourceIdentifier(id, Origin.FAMILY);
+        }
+        /**
+         * Addresses every server subscribed to the topic.
+         * The proxy only forwards the packet to the topic's subscribers, rather than broadcasting it to every server.
+         */
+        public static SourceIdentifier topic(@NotNull String topic) {
+            return new SourceIdentifier(topic, Origin.TOPIC);
+        }
 
         /**
          * Resolves a SourceIdentifier based on the kernel of RustyConnector running.
@@ -415,7 +502,15 @@ public abstract class Packet implements JSONParseable {
             PROXY,
             ANY_PROXY,
             SERVER,
-            ANY_SERVER
+            ANY_SERVER,
+            /**
+             * Every server in a specific family. The id is the family's id.
+             */
+            FAMILY,
+            /**
+             * Every server subscribed to a specific topic. The id is the topic.
+             */
+            TOPIC
             ;
 
             public static Origin fromInteger(int number) {
@@ -424,6 +519,8 @@ public abstract class Packet implements JSONParseable {
                     case 1 -> Origin.ANY_PROXY;
                     case 2 -> Origin.SERVER;
                     case 3 -> Origin.ANY_SERVER;
+                    case 4 -> Origin.FAMILY;
+                    case 5 -> Origin.TOPIC;
                     default -> throw new ClassCastException(number+" has no associated value!");
                 };
             }
@@ -433,6 +530,8 @@ public abstract class Packet implements JSONParseable {
                     case ANY_PROXY -> 1;
                     case SERVER -> 2;
                     case ANY_SERVER -> 3;
+                    case FAMILY -> 4;
+                    case TOPIC -> 5;
                 };
             }
         }
@@ -491,7 +590,7 @@ public abstract class Packet implements JSONParseable {
                 Class<? extends Remote> wrapperClass = this.packetTypeMappings.get(packet.type());
                 if(wrapperClass == null) return;
 
-                Remote wrapped = wrapperClass.getConstructor(Packet.class).newInstance(packet);
+                Remote wrapped = PacketHandles.wrapper(wrapperClass).apply(packet);
 
                 this.replyListeners.get(wrapperClass).forEach(l -> {
                     try {
@@ -618,7 +717,29 @@ public abstract class Packet implements JSONParseable {
         String PARAMETERS = "p";
     }
 
+    /**
+     * How urgently packets of a {@link Type} need to be delivered and handled.
+     * Each priority is queued separately, so that control packets are never stuck behind bulk packets.
+     */
+    public enum Priority {
+        /**
+         * Small packets that keep connections alive and registered, such as pings and responses.
+         * They're always sent and handled ahead of bulk packets, and are never rate limited.
+         */
+        CONTROL,
+
+        /**
+         * Everything else. Bulk packets are rate limited per connection, so that a flood of them can't starve control packets.
+         */
+        BULK
+    }
+
     public static class Type {
+        /**
+         * The priority of every type which has been given one. Types without one are {@link Priority#BULK},
+         * except for RustyConnector's own types which are {@link Priority#CONTROL}.
+         */
+        private static final Map<String, Priority> priorities = new ConcurrentHashMap<>();
         protected String id;
 
         public Type(String id) {
@@ -629,6 +750,26 @@ public abstract class Packet implements JSONParseable {
             return this.id;
         }
 
+        /**
+         * @return The priority that packets of this type are sent and handled with.
+         */
+        public @NotNull Priority priority() {
+            Priority priority = priorities.get(this.id);
+            if(priority != null) return priority;
+            return this.id.startsWith("RC-") ? Priority.CONTROL : Priority.BULK;
+        }
+
+        /**
+         * Sets the priority that packets of this type are sent and handled with.
+         * This applies to every instance of the type, so it only needs to be done once, on both the proxy and the servers.
+         * @param priority The priority.
+         * @return This type.
+         */
+        public @NotNull Type priority(@NotNull Priority priority) {
+            priorities.put(this.id, priority);
+            return this;
+        }
+
         @Override
         public String toString() {
             return this.id;
@@ -0,0 +1,373 @@
+package group.aelysium.rustyconnector.common.magic_link.packet;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.internal.LazilyParsedNumber;
+import group.aelysium.rustyconnector.common.crypt.NanoID;
+import group.aelysium.rustyconnector.common.util.Parameter;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts packets to and from the bytes that MagicLink sends over the wire.<br/>
+ * Two formats are supported:
+ * <ul>
+ *     <li>Protocol v3 - The original format. The packet is written as its JSON representation.</li>
+ *     <li>Protocol v4 - A compact binary format. Lengths are varints, the core {@link Packet.Type}s are written as a single byte id, and {@link Parameter}s are written as tagged values.</li>
+ * </ul>
+ * The format used to send a packet is chosen by the protocol version that the receiving peer advertised during the handshake.
+ * Incoming payloads don't need to be told their format, {@link #decode(byte[])} is able to tell the two apart by their first byte.
+ */
+public final class PacketCodec {
+    public static final int JSON_PROTOCOL = 3;
+    public static final int BINARY_PROTOCOL = 4;
+
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final int MAX_INTERNED_TYPES = 1024;
+    private static final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_CAPACITY));
+
+    /**
+     * The core packet types which are written as a single byte id instead of as a string.
+     * This list is part of the wire format. New types may only ever be appended to the end of it.
+     */
+    private static final List<Packet.Type> coreTypes = List.of(
+            new Packet.Type("RC-P"),
+            new Packet.Type("RC-D"),
+            new Packet.Type("RC-SP"),
+            new Packet.Type("RC-R"),
+            new Packet.Type("RC-PS"),
+            new Packet.Type("RC-SL"),
+            new Packet.Type("RC-SU")
+    );
+    private static final Map<Packet.Type, Integer> coreTypeIDs = new ConcurrentHashMap<>();
+    private static final Map<String, Packet.Type> internedTypes = new ConcurrentHashMap<>();
+    static {
+        for (int i = 0; i < coreTypes.size(); i++) coreTypeIDs.put(coreTypes.get(i), i + 1);
+    }
+
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte SHORT = 3;
+    private static final byte FLOAT = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte NUMBER = 6;
+    private static final byte FALSE = 7;
+    private static final byte TRUE = 8;
+    private static final byte STRING = 9;
+    private static final byte ARRAY = 10;
+    private static final byte OBJECT = 11;
+    private static final byte BYTES = 12;
+
+    private PacketCodec() {}
+
+    /**
+     * Encodes the packet using the format expected by a peer running the provided protocol version.
+     * @param packet The packet to encode.
+     * @param protocolVersion The protocol version of the peer that will receive the packet.
+     * @return The encoded packet.
+     */
+    public static byte[] encode(@NotNull Packet packet, int protocolVersion) {
+        if(protocolVersion < BINARY_PROTOCOL) return packet.toJSON(protocolVersion).toString().getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = encode(packet, scratch.get().clear());
+        if(buffer.capacity() <= MAX_RETAINED_CAPACITY) scratch.set(buffer);
+
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the binary form of the packet into the provided buffer, starting at its current position.
+     * If the buffer doesn't have enough room, a larger copy of it is allocated and written to instead.
+     * @param packet The packet to encode.
+     * @param buffer The buffer to write into.
+     * @return The buffer that the packet was written into. This will be `buffer` unless it had to grow.
+     */
+    public static @NotNull ByteBuffer encode(@NotNull Packet packet, @NotNull ByteBuffer buffer) {
+        buffer = ensure(buffer, 1);
+        buffer.put((byte) BINARY_PROTOCOL);
+
+        Integer typeID = coreTypeIDs.get(packet.type());
+        if(typeID == null) {
+            buffer = putVarInt(buffer, 0);
+            buffer = putString(buffer, packet.type().toString());
+        } else buffer = putVarInt(buffer, typeID);
+
+        buffer = putSource(buffer, packet.local());
+        buffer = putSource(buffer, packet.remote());
+
+        buffer = putVarInt(buffer, packet.parameters().size());
+        for (Map.Entry<String, Parameter> entry : packet.parameters().entrySet()) {
+            buffer = putString(buffer, entry.getKey());
+            buffer = putParameter(buffer, entry.getValue());
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Decodes a packet which was received from a remote peer.
+     * Both the JSON (v3) and binary (v4) formats are accepted.
+     * @param payload The decrypted payload.
+     * @return The parsed packet.
+     * @throws IllegalArgumentException If the payload isn't a valid packet in either format.
+     */
+    public static @NotNull Packet.Remote decode(byte @NotNull [] payload) throws IllegalArgumentException {
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Decodes a packet which was received from a remote peer.
+     * The buffer is read from its current position up to its limit.
+     * @param payload The decrypted payload.
+     * @return The parsed packet.
+     * @throws IllegalArgumentException If the payload isn't a valid packet in either format.
+     */
+    public static @NotNull Packet.Remote decode(@NotNull ByteBuffer payload) throws IllegalArgumentException {
+        if(!payload.hasRemaining()) throw new IllegalArgumentException("Unable to decode an empty packet.");
+
+        byte marker = payload.get(payload.position());
+        if(marker != BINARY_PROTOCOL) {
+            byte[] json = new byte[payload.remaining()];
+            payload.get(json);
+            return Packet.parseIncoming(new String(json, StandardCharsets.UTF_8));
+        }
+
+        try {
+            payload.get();
+            Packet.NakedBuilder builder = new Packet.NakedBuilder();
+            builder.protocolVersion(BINARY_PROTOCOL);
+
+            int typeID = getVarInt(payload);
+            if(typeID == 0) builder.type(intern(getString(payload)));
+            else if(typeID <= coreTypes.size()) builder.type(coreTypes.get(typeID - 1));
+            else throw new IllegalArgumentException("Unknown packet type id: " + typeID);
+
+            builder.local(getSource(payload));
+            builder.remote(getSource(payload));
+
+            int parameters = getVarInt(payload);
+            for (int i = 0; i < parameters; i++) {
+                String key = getString(payload);
+                builder.parameter(key, getParameter(payload));
+            }
+
+            return builder.buildRemote();
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("The packet ended before it could be fully decoded.", e);
+        }
+    }
+
+    private static Packet.Type intern(String id) {
+        Packet.Type type = internedTypes.get(id);
+        if(type != null) return type;
+
+        type = new Packet.Type(id);
+        if(internedTypes.size() < MAX_INTERNED_TYPES) internedTypes.putIfAbsent(id, type);
+        return type;
+    }
+
+    private static ByteBuffer putSource(ByteBuffer buffer, Packet.SourceIdentifier source) {
+        String id = source.id();
+        NanoID replyEndpoint = source.replyEndpoint().orElse(null);
+
+        int header = Packet.SourceIdentifier.Origin.toInteger(source.origin());
+        if(id != null) header |= 0x10;
+        if(replyEndpoint != null) header |= 0x20;
+
+        buffer = ensure(buffer, 1);
+        buffer.put((byte) header);
+        if(id != null) buffer = putString(buffer, id);
+        if(replyEndpoint != null) buffer = putString(buffer, replyEndpoint.toString());
+        return buffer;
+    }
+
+    private static Packet.SourceIdentifier getSource(ByteBuffer buffer) {
+        int header = buffer.get();
+
+        String id = (header & 0x10) == 0 ? null : getString(buffer);
+        Packet.SourceIdentifier source = Packet.SourceIdentifier.from(id, Packet.SourceIdentifier.Origin.fromInteger(header & 0x0F));
+        if((header & 0x20) != 0) source.replyEndpoint(NanoID.fromString(getString(buffer)));
+
+        return source;
+    }
+
+    private static ByteBuffer putParameter(ByteBuffer buffer, Parameter parameter) {
+        Object value = parameter.getOriginalValue();
+        buffer = ensure(buffer, 9);
+        switch (parameter.type()) {
+            case 'n' -> {
+                if(value instanceof Integer || value instanceof Byte) {
+                    buffer.put(INT);
+                    return putVarInt(buffer, zigzag(((Number) value).intValue()));
+                }
+                if(value instanceof Long l) {
+                    buffer.put(LONG);
+                    return putVarLong(buffer, zigzag(l));
+                }
+                if(value instanceof Short s) {
+                    buffer.put(SHORT);
+                    return putVarInt(buffer, zigzag(s));
+                }
+                if(value instanceof Float f) return buffer.put(FLOAT).putFloat(f);
+                if(value instanceof Double d) return buffer.put(DOUBLE).putDouble(d);
+
+                buffer.put(NUMBER);
+                return putString(buffer, value.toString());
+            }
+            case 'b' -> {
+                return buffer.put((Boolean) value ? TRUE : FALSE);
+            }
+            case 's' -> {
+                buffer.put(STRING);
+                return putString(buffer, (String) value);
+            }
+            case 'a' -> {
+                buffer.put(ARRAY);
+                return putString(buffer, value.toString());
+            }
+            case 'j' -> {
+                buffer.put(OBJECT);
+                return putString(buffer, value.toString());
+            }
+            case 'y' -> {
+                byte[] bytes = (byte[]) value;
+                buffer.put(BYTES);
+                buffer = putVarInt(buffer, bytes.length);
+                buffer = ensure(buffer, bytes.length);
+                return buffer.put(bytes);
+            }
+            default -> throw new IllegalStateException("Unexpected parameter type: " + parameter.type());
+        }
+    }
+
+    private static Parameter getParameter(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        return switch (tag) {
+            case INT -> new Parameter(unzigzag(getVarInt(buffer)));
+            case LONG -> new Parameter(unzigzag(getVarLong(buffer)));
+            case SHORT -> new Parameter((short) unzigzag(getVarInt(buffer)));
+            case FLOAT -> new Parameter(buffer.getFloat());
+            case DOUBLE -> new Parameter(buffer.getDouble());
+            case NUMBER -> Parameter.fromJSON(new JsonPrimitive(new LazilyParsedNumber(getString(buffer))));
+            case FALSE -> new Parameter(false);
+            case TRUE -> new Parameter(true);
+            case STRING -> new Parameter(getString(buffer));
+            case ARRAY -> new Parameter((JsonArray) JsonParser.parseString(getString(buffer)));
+            case OBJECT -> new Parameter(JsonParser.parseString(getString(buffer)).getAsJsonObject());
+            case BYTES -> {
+                int length = getVarInt(buffer);
+                if(length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                yield new Parameter(bytes);
+            }
+            default -> throw new IllegalArgumentException("Unknown parameter tag: " + tag);
+        };
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, String value) {
+        int length = value.length();
+        boolean ascii = true;
+        for (int i = 0; i < length; i++)
+            if (value.charAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+
+        if(!ascii) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer = putVarInt(buffer, bytes.length);
+            buffer = ensure(buffer, bytes.length);
+            return buffer.put(bytes);
+        }
+
+        buffer = putVarInt(buffer, length);
+        buffer = ensure(buffer, length);
+        for (int i = 0; i < length; i++) buffer.put((byte) value.charAt(i));
+        return buffer;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = getVarInt(buffer);
+        if(length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+
+        if(buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer putVarInt(ByteBuffer buffer, int value) {
+        buffer = ensure(buffer, 5);
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        return buffer.put((byte) value);
+    }
+
+    private static ByteBuffer putVarLong(ByteBuffer buffer, long value) {
+        buffer = ensure(buffer, 10);
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        return buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if(buffer.remaining() >= bytes) return buffer;
+
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+        ByteBuffer grown = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return grown.put(buffer.flip());
+    }
+}
@@ -0,0 +1,89 @@
+package group.aelysium.rustyconnector.common.magic_link.packet;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Compiles packet wrappers and {@link PacketListener} methods into plain functional interface calls.<br/>
+ * The reflective work is done once, when a wrapper or listener is first seen, so that handling a packet doesn't have to go through {@link Method#invoke(Object, Object...)}.
+ */
+public final class PacketHandles {
+    private static final MethodType functionType = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<PacketListener.Function<Packet, ? extends Packet.Remote>> wrappers = new ClassValue<>() {
+        @Override
+        protected PacketListener.Function<Packet, ? extends Packet.Remote> computeValue(@NotNull Class<?> type) {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+                MethodHandle constructor = lookup.findConstructor(type, MethodType.methodType(void.class, Packet.class));
+                return compile(lookup, constructor, null);
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalArgumentException("Packet wrappers must have a constructor which accepts a single Packet. Caused by "+type.getName(), e);
+            }
+        }
+    };
+
+    private PacketHandles() {}
+
+    /**
+     * Fetches the factory used to wrap packets into the provided {@link Packet.Remote} subclass.
+     * The factory is created the first time the class is seen, and then cached for as long as the class is loaded.
+     * @param wrapper The class to wrap packets into. It must have a constructor which accepts a single {@link Packet}.
+     * @return A function which creates a new instance of the wrapper for every packet passed to it.
+     * @throws IllegalArgumentException If the wrapper doesn't have a valid constructor.
+     */
+    @SuppressWarnings("unchecked")
+    public static <P extends Packet.Remote> @NotNull PacketListener.Function<Packet, P> wrapper(@NotNull Class<P> wrapper) throws IllegalArgumentException {
+        return (PacketListener.Function<Packet, P>) wrappers.get(wrapper);
+    }
+
+    /**
+     * Compiles a method annotated with {@link PacketListener} into a function which calls it directly.
+     * The method's single parameter must be the packet wrapper, and it must return a {@link PacketListener.Response}.
+     * @param listener The instance to call the method on. Ignored if the method is static.
+     * @param method The method to compile.
+     * @return A function which invokes the method with the wrapper that was passed to it.
+     * @throws IllegalAccessException If the method can't be accessed.
+     */
+    public static <P extends Packet.Remote> @NotNull PacketListener.Function<P, PacketListener.Response> listener(@NotNull Object listener, @NotNull Method method) throws IllegalAccessException {
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(method.getDeclaringClass(), MethodHandles.lookup());
+        MethodHandle handle = lookup.unreflect(method);
+
+        return PacketHandles.<P, PacketListener.Response>compile(lookup, handle, Modifier.isStatic(method.getModifiers()) ? null : listener);
+    }
+
+    /**
+     * Spins a {@link PacketListener.Function} around the direct handle, capturing `receiver` if one is provided.
+     * If the metafactory refuses the handle, the function invokes the handle instead, which is slower but still avoids reflection.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T, R> PacketListener.Function<T, R> compile(MethodHandles.Lookup lookup, MethodHandle handle, Object receiver) {
+        MethodType type = receiver == null ? handle.type() : handle.type().dropParameterTypes(0, 1);
+        try {
+            if(receiver == null)
+                return (PacketListener.Function<T, R>) LambdaMetafactory.metafactory(
+                        lookup, "apply", MethodType.methodType(PacketListener.Function.class), functionType, handle, type
+                ).getTarget().invoke();
+            return (PacketListener.Function<T, R>) LambdaMetafactory.metafactory(
+                    lookup, "apply", MethodType.methodType(PacketListener.Function.class, handle.type().parameterType(0)), functionType, handle, type
+            ).getTarget().invoke(receiver);
+        } catch (Throwable ignore) {}
+
+        MethodHandle generic = (receiver == null ? handle : handle.bindTo(receiver)).asType(functionType);
+        return value -> {
+            try {
+                return (R) generic.invokeExact((Object) value);
+            } catch (Exception | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+}
@@ -0,0 +1,82 @@
+package group.aelysium.rustyconnector.common.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of equally sized heap or direct buffers.<br/>
+ * Requests which don't fit into a pooled buffer are given a freshly allocated one, which is simply dropped when it's released.
+ */
+public class ByteBufferPool {
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+
+    /**
+     * @param bufferSize The capacity of each pooled buffer.
+     * @param maxPooled The maximum number of idle buffers to hold on to.
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize, maxPooled, false);
+    }
+
+    /**
+     * @param bufferSize The capacity of each pooled buffer.
+     * @param maxPooled The maximum number of idle buffers to hold on to.
+     * @param direct Whether to hand out direct buffers, which channels can read into and write from without an extra copy.
+     *               Direct buffers are expensive to allocate, so they're only worth it if they're pooled.
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+        if(bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be larger than 0.");
+        this.bufferSize = bufferSize;
+        this.maxPooled = Math.max(0, maxPooled);
+        this.direct = direct;
+    }
+
+    /**
+     * Fetches a cleared buffer which has at least the requested capacity.
+     * The buffer should be given back using {@link #release(ByteBuffer)} once it's no longer being used.
+     * @param minimumCapacity The minimum capacity that the buffer must have.
+     * @return A cleared buffer.
+     */
+    public @NotNull ByteBuffer acquire(int minimumCapacity) {
+        if(minimumCapacity > this.bufferSize) return this.allocate(minimumCapacity);
+
+        ByteBuffer buffer = this.buffers.poll();
+        if(buffer == null) return this.allocate(this.bufferSize);
+
+        this.pooled.decrementAndGet();
+        return buffer.clear();
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     * Once released, the buffer must not be used by the caller anymore.
+     * @param buffer The buffer to release.
+     */
+    public void release(@NotNull ByteBuffer buffer) {
+        if(buffer.capacity() != this.bufferSize || buffer.isReadOnly()) return;
+        if(this.pooled.incrementAndGet() > this.maxPooled) {
+            this.pooled.decrementAndGet();
+            return;
+        }
+        this.buffers.offer(buffer);
+    }
+
+    private @NotNull ByteBuffer allocate(int capacity) {
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @return The number of idle buffers currently held by the pool.
+     */
+    public int size() {
+        return this.pooled.get();
+    }
+}
@@ -5,85 +5,273 @@ import group.aelysium.rustyconnector.RC;
 import group.aelysium.rustyconnector.common.crypt.AES;
 import group.aelysium.rustyconnector.common.errors.Error;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
-import java.util.Vector;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
+/**
+ * Sends and receives encrypted datagrams, which servers and proxies use to find each other.<br/>
+ * A single non-blocking {@link DatagramChannel} is kept open for the broadcaster's whole lifetime, and one thread selects on it to
+ * receive every datagram as it arrives, and to send outgoing ones whenever the socket has room for them.
+ * If the address is a multicast group, the channel joins it, so any number of broadcasters can share the group.
+ * <br/><br/>
+ * Listeners run on the selector thread, so they should be quick.
+ */
 public class IPV6Broadcaster implements Closure {
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-    private final Vector<Consumer<String>> listeners = new Vector<>();
+    /**
+     * The largest payload that a UDP datagram can carry.
+     */
+    private static final int MAX_DATAGRAM = 65535;
+    private static final int MAX_QUEUED = 1024;
+
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private final ByteBufferPool buffers = new ByteBufferPool(2048, 16, true);
+    private final ByteBuffer inbound = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final List<MembershipKey> memberships = new ArrayList<>();
     private final AES cryptor;
     private final InetSocketAddress address;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final Thread worker;
+    private final AtomicBoolean started = new AtomicBoolean(false);
     private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final LongAdder received = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
 
     public IPV6Broadcaster(@NotNull AES cryptor, @NotNull InetSocketAddress address) throws IOException {
+        this(cryptor, address, null);
+    }
+
+    /**
+     * @param cryptor Encrypts and decrypts every datagram.
+     * @param address The address to broadcast to, and whose port to listen on.
+     * @param networkInterface The interface to join the multicast group on, if the address is a multicast group.
+     *                         If `null`, the group is joined on every interface which is up and supports multicast.
+     * @throws IOException If the port couldn't be bound, or the multicast group couldn't be joined on any interface.
+     */
+    public IPV6Broadcaster(@NotNull AES cryptor, @NotNull InetSocketAddress address, @Nullable NetworkInterface networkInterface) throws IOException {
         this.cryptor = cryptor;
         this.address = address;
-        try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress("127.0.0.1", this.address.getPort()), 2000);
-        } catch (Exception ignore) {
-            throw new IOException("Port "+this.address.getPort()+" is currently unavailable! It might be closed or actively blocked by your network firewall.");
+
+        boolean multicast = address.getAddress() != null && address.getAddress().isMulticastAddress();
+        StandardProtocolFamily family = address.getAddress() instanceof Inet4Address ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+        this.channel = DatagramChannel.open(family);
+        try {
+            this.channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if(family == StandardProtocolFamily.INET) this.channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            try {
+                this.channel.bind(multicast ? new InetSocketAddress(address.getPort()) : address);
+            } catch (IOException e) {
+                throw new IOException("Port "+this.address.getPort()+" is currently unavailable! It might be in use or actively blocked by your network firewall.", e);
+            }
+            if(multicast) this.join(networkInterface);
+            this.channel.configureBlocking(false);
+
+            this.selector = Selector.open();
+            this.key = this.channel.register(this.selector, SelectionKey.OP_READ);
+        } catch (Exception e) {
+            this.channel.close();
+            throw e;
         }
 
+        this.worker = Thread.ofPlatform().name("rustyconnector-broadcaster").daemon(true).unstarted(this::run);
         this.startListening();
     }
 
-    private void handleMessages() {
-        if(this.closed.get()) return;
-        try(DatagramSocket socket = new DatagramSocket(this.address)) {
-            byte[] buffer = new byte[256];
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            socket.receive(packet);
-            String response = this.cryptor.decrypt(new String(packet.getData(), StandardCharsets.UTF_8));
+    private void join(@Nullable NetworkInterface networkInterface) throws IOException {
+        InetAddress group = this.address.getAddress();
+        if(networkInterface != null) {
+            this.memberships.add(this.channel.join(group, networkInterface));
+            this.channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            return;
+        }
 
-            this.listeners.stream().toList().forEach(l -> {
+        IOException failure = null;
+        for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            try {
+                if(!candidate.isUp() || !candidate.supportsMulticast()) continue;
+                this.memberships.add(this.channel.join(group, candidate));
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if(this.memberships.isEmpty())
+            throw new IOException("Unable to join the multicast group "+group.getHostAddress()+" on any network interface.", failure);
+    }
+
+    private void run() {
+        while (!this.closed.get()) {
+            try {
+                this.selector.select();
+                if(this.closed.get()) return;
+
+                if(this.key.isReadable()) this.receive();
+                this.flush();
+                this.selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (Exception e) {
+                if(this.closed.get()) return;
+                RC.Error(Error.from(e).whileAttempting("To handle broadcasts on "+this.address));
+            }
+        }
+    }
+
+    /**
+     * Receives every datagram which is waiting on the channel.
+     */
+    private void receive() throws IOException {
+        while (true) {
+            this.inbound.clear();
+            if(this.channel.receive(this.inbound) == null) return;
+            this.inbound.flip();
+
+            String message;
+            try {
+                // Decrypted in place, the plaintext is always shorter than the Base64 encoded IV and ciphertext it came from.
+                ByteBuffer decoded = Base64.getDecoder().decode(this.inbound);
+                int length = this.cryptor.decrypt(decoded, decoded.duplicate().clear());
+                message = new String(decoded.array(), decoded.arrayOffset(), length, StandardCharsets.UTF_8);
+            } catch (Exception e) {
+                // Anyone can send to the port, so anything which doesn't decrypt is simply ignored.
+                this.rejected.increment();
+                continue;
+            }
+            this.received.increment();
+
+            for (Consumer<String> listener : this.listeners) {
                 try {
-                    l.accept(response);
+                    listener.accept(message);
                 } catch (Exception ignore) {}
-            });
-        } catch (Exception e) {
-            RC.Error(Error.from(e));
+            }
+        }
+    }
+
+    /**
+     * Sends as many waiting datagrams as the socket has room for, and waits to be told it has room for more if any are left.
+     */
+    private void flush() {
+        ByteBuffer datagram;
+        while ((datagram = this.outbound.peek()) != null) {
+            try {
+                if(this.channel.send(datagram, this.address) == 0) break;
+                this.sent.increment();
+            } catch (IOException e) {
+                // The datagram is dropped, so that one which can't be sent doesn't hold back every one behind it.
+                this.failed.increment();
+                RC.Error(Error.from(e).whileAttempting("To send a broadcast to "+this.address));
+            }
+
+            this.outbound.poll();
+            this.queued.decrementAndGet();
+            this.buffers.release(datagram);
         }
-        this.executor.schedule(this::handleMessages, 1, TimeUnit.MINUTES);
+
+        int interest = this.outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if(this.key.interestOps() != interest) this.key.interestOps(interest);
     }
 
     /**
      * Takes the provided string, AES 256-bit encrypts it, Base64 encodes it, then sends it.
+     * The datagram is sent by the selector thread as soon as the socket has room for it.
      * @param message The message to send.
+     * @throws IllegalStateException If the broadcaster is closed, or too many datagrams are already waiting to be sent.
      */
-    public void sendEncrypted(String message) {
-        try(DatagramSocket socket = new DatagramSocket()) {
-            socket.setBroadcast(true);
-            String encryptedData = this.cryptor.encrypt(message);
-            DatagramPacket packet = new DatagramPacket(encryptedData.getBytes(StandardCharsets.UTF_8), encryptedData.length(), this.address);
-            socket.send(packet);
+    public void sendEncrypted(String message) throws IllegalStateException {
+        if(this.closed.get()) throw new IllegalStateException("This broadcaster has been closed.");
+
+        byte[] encrypted;
+        try {
+            encrypted = this.cryptor.encrypt(message).getBytes(StandardCharsets.UTF_8);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        if(encrypted.length > MAX_DATAGRAM) throw new IllegalArgumentException("The message is too large to fit into a single datagram.");
+
+        if(this.queued.incrementAndGet() > MAX_QUEUED) {
+            this.queued.decrementAndGet();
+            throw new IllegalStateException("Too many broadcasts are already waiting to be sent.");
+        }
+        ByteBuffer datagram = this.buffers.acquire(encrypted.length);
+        datagram.put(encrypted).flip();
+        this.outbound.offer(datagram);
+        this.selector.wakeup();
     }
 
     public void onMessage(Consumer<String> consumer) {
         this.listeners.add(consumer);
     }
 
+    /**
+     * @return The number of datagrams which were received and decrypted.
+     */
+    public long received() {
+        return this.received.sum();
+    }
+
+    /**
+     * @return The number of datagrams which were sent.
+     */
+    public long sent() {
+        return this.sent.sum();
+    }
+
+    /**
+     * @return The number of datagrams which were received but couldn't be decrypted.
+     */
+    public long rejected() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * @return The number of datagrams which couldn't be sent.
+     */
+    public long failed() {
+        return this.failed.sum();
+    }
+
     public void stopListening() {
         this.close();
     }
     public void startListening() {
         if(this.closed.get()) return;
-        this.closed.set(false);
-        this.executor.submit(this::handleMessages);
+        if(this.started.compareAndSet(false, true)) this.worker.start();
     }
 
     public void close() {
-        this.closed.set(true);
-        this.executor.shutdownNow();
+        if(!this.closed.compareAndSet(false, true)) return;
+        this.memberships.forEach(MembershipKey::drop);
+        try {
+            this.selector.close();
+        } catch (Exception ignore) {}
+        try {
+            this.channel.close();
+        } catch (Exception ignore) {}
+        this.outbound.clear();
+        this.queued.set(0);
     }
-}
\ No newline at end of file
+}
@@ -7,6 +7,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Base64;
 import java.util.UUID;
 
 public class Parameter {
@@ -32,6 +33,12 @@ public class Parameter {
     public Parameter(@NotNull JsonObject object) {
         this(object, 'j');
     }
+    /**
+     * Raw bytes. The binary protocol sends them as they are, the JSON protocol sends them as a Base64 string.
+     */
+    public Parameter(byte @NotNull [] object) {
+        this(object, 'y');
+    }
     public static Parameter fromJSON(@NotNull JsonElement object) {
         if(object.isJsonPrimitive()) {
             JsonPrimitive primitive = object.getAsJsonPrimitive();
@@ -116,6 +123,13 @@ public class Parameter {
     public JsonObject getAsJsonObject() {
         return (JsonObject) this.object;
     }
+    /**
+     * Bytes which arrived over the JSON protocol are still Base64 encoded, so they're decoded here.
+     */
+    public byte[] getAsBytes() {
+        if(this.object instanceof String string) return Base64.getDecoder().decode(string);
+        return (byte[]) this.object;
+    }
     
     public Object getOriginalValue() {
         return this.object;
@@ -128,6 +142,7 @@ public class Parameter {
             case 's' -> new JsonPrimitive((String) this.object);
             case 'a' -> (JsonArray) this.object;
             case 'j' -> (JsonObject) this.object;
+            case 'y' -> new JsonPrimitive(Base64.getEncoder().encodeToString((byte[]) this.object));
             default -> throw new IllegalStateException("Unexpected value: " + type);
         };
     }
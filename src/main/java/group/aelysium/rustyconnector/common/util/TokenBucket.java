@@ -0,0 +1,46 @@
+package group.aelysium.rustyconnector.common.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket rate limiter.<br/>
+ * Tokens refill continuously at the configured rate, and the bucket holds up to one second's worth of them, so short bursts are let through straight away.
+ * Requests larger than the bucket can still go through once it's full, so nothing is ever stuck forever.
+ */
+public class TokenBucket {
+    private final LongSupplier rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param rate Supplies the number of tokens added per second. Read every time the bucket is used, so the rate can change at any point.
+     *             A rate of `0` or less disables rate limiting.
+     */
+    public TokenBucket(@NotNull LongSupplier rate) {
+        this.rate = rate;
+        this.tokens = Math.max(0, rate.getAsLong());
+    }
+
+    /**
+     * Takes tokens from the bucket if there are enough of them.
+     * @param amount The number of tokens to take.
+     * @return `0` if the tokens were taken. Otherwise, the number of nanoseconds until there will be enough of them, in which case nothing was taken.
+     */
+    public synchronized long take(long amount) {
+        long rate = this.rate.getAsLong();
+        if(rate <= 0) return 0;
+
+        long now = System.nanoTime();
+        double capacity = Math.max(rate, amount);
+        this.tokens = Math.min(capacity, this.tokens + (now - this.lastRefill) * rate / 1_000_000_000D);
+        this.lastRefill = now;
+
+        if(this.tokens >= amount) {
+            this.tokens -= amount;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((amount - this.tokens) * 1_000_000_000D / rate));
+    }
+}
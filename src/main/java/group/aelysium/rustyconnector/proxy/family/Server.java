@@ -19,7 +19,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class Server implements MetadataHolder<Object>, ISortable, Player.Connectable {
@@ -30,7 +29,8 @@ public class Server implements MetadataHolder<Object>, ISortable, Player.Connect
     private final String id;
     private final InetSocketAddress address;
     private final AtomicLong playerCount = new AtomicLong(0);
-    private final AtomicInteger timeout = new AtomicInteger(15);
+    private final int timeout;
+    private final AtomicLong deadline = new AtomicLong(0);
 
     public Server(
             @NotNull String id,
@@ -40,7 +40,8 @@ public class Server implements MetadataHolder<Object>, ISortable, Player.Connect
     ) {
         this.id = id;
         this.address = address;
-        this.timeout.set(timeout);
+        this.timeout = timeout;
+        this.setTimeout(timeout);
         this.metadata.putAll(metadata);
     }
     
@@ -71,33 +72,48 @@ public class Server implements MetadataHolder<Object>, ISortable, Player.Connect
      * @return {@link Boolean}
      */
     public boolean stale() {
-        return this.timeout.get() <= 0;
+        return System.currentTimeMillis() >= this.deadline.get();
+    }
+
+    /**
+     * @return The number of seconds that this server has to refresh in before it times out.
+     */
+    public int timeout() {
+        return this.timeout;
+    }
+
+    /**
+     * @return The time, in epoch milliseconds, that this server will become stale at unless it's refreshed.
+     */
+    public long deadline() {
+        return this.deadline.get();
+    }
+
+    /**
+     * Pushes the server's deadline back by its full {@link #timeout()}.
+     */
+    public void refresh() {
+        this.setTimeout(this.timeout);
     }
 
     /**
      * Set's the server's new timeout.
-     * @param newTimeout The new timeout.
+     * @param newTimeout The number of seconds from now that the server will become stale.
      */
     public void setTimeout(int newTimeout) {
         if(newTimeout < 0) throw new IndexOutOfBoundsException("New timeout must be at least 0!");
-        this.timeout.set(newTimeout);
+        this.deadline.set(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(newTimeout));
     }
 
     /**
-     * Decrease this server's timeout by 1.
-     * Once this value equals 0, this server will become stale and player's won't be able to join it anymore.
-     * @param amount The amount to decrease by.
-     * @return The new timeout value.
+     * Brings this server's deadline forward.
+     * Once the deadline passes, this server will become stale and player's won't be able to join it anymore.
+     * @param amount The number of seconds to bring the deadline forward by.
+     * @return The number of seconds left until the server becomes stale.
      */
     public int decreaseTimeout(int amount) {
-        if(amount > 0) amount = amount * -1;
-        int newValue = this.timeout.addAndGet(amount);
-        if(this.timeout.get() < 0) {
-            this.timeout.set(0);
-            return 0;
-        }
-
-        return newValue;
+        long deadline = this.deadline.addAndGet(-TimeUnit.SECONDS.toMillis(Math.abs(amount)));
+        return (int) Math.max(0, TimeUnit.MILLISECONDS.toSeconds(deadline - System.currentTimeMillis()));
     }
 
     /**
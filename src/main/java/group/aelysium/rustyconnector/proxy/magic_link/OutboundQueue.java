@@ -0,0 +1,316 @@
+package group.aelysium.rustyconnector.proxy.magic_link;
+
+import group.aelysium.rustyconnector.common.cache.TimingWheel;
+import group.aelysium.rustyconnector.common.magic_link.QueueDelay;
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.common.util.TokenBucket;
+import io.javalin.websocket.WsContext;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded queue of messages waiting to be sent to a single server.<br/>
+ * Messages are written one at a time using the websocket's async send methods, so whoever queued the message never waits on the socket.
+ * If the server can't keep up and the queue fills, new messages are refused and the queue is marked as congested until it drains back down to half of its capacity.
+ * <br/><br/>
+ * Messages are queued in a lane per {@link Packet.Priority}, each with its own capacity.
+ * Control messages are always written before any bulk messages which are waiting, and bulk messages are rate limited,
+ * so a server being flooded with bulk messages still receives its control messages on time.
+ */
+public class OutboundQueue implements AutoCloseable {
+    private final Queue<Message> control = new ConcurrentLinkedQueue<>();
+    private final Queue<Message> bulk = new ConcurrentLinkedQueue<>();
+    private final Map<Packet.Priority, AtomicInteger> sizes = new EnumMap<>(Map.of(
+            Packet.Priority.CONTROL, new AtomicInteger(0),
+            Packet.Priority.BULK, new AtomicInteger(0)
+    ));
+    private final Map<Packet.Priority, QueueDelay> delays = new EnumMap<>(Map.of(
+            Packet.Priority.CONTROL, new QueueDelay(),
+            Packet.Priority.BULK, new QueueDelay()
+    ));
+    private final TokenBucket bulkLimit;
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean(false);
+    private final AtomicLong throttled = new AtomicLong(0);
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicLong congestedSince = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final WsContext context;
+    private final int capacity;
+
+    /**
+     * @param context The websocket session to write into.
+     * @param capacity The maximum number of messages which can be waiting to be sent in each lane.
+     * @param bulkRate Supplies the number of bytes per second of bulk messages which can be written. `0` or less to not limit them.
+     */
+    public OutboundQueue(@NotNull WsContext context, int capacity, @NotNull LongSupplier bulkRate) {
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be larger than 0.");
+        this.context = context;
+        this.capacity = capacity;
+        this.bulkLimit = new TokenBucket(bulkRate);
+    }
+
+    /**
+     * Queues a text message.
+     * @param message The message to send.
+     * @param priority The lane to queue the message in.
+     * @return `true` if the message was queued. `false` if the queue is full or closed.
+     */
+    public boolean offer(@NotNull String message, @NotNull Packet.Priority priority) {
+        return this.offer(new Message(message, null, priority, System.nanoTime()));
+    }
+
+    /**
+     * Queues a binary frame.
+     * The frame is retained until it's been written, and then released.
+     * @param frame The frame to send.
+     * @param priority The lane to queue the frame in.
+     * @return `true` if the frame was queued. `false` if the queue is full or closed.
+     */
+    public boolean offer(@NotNull Frame frame, @NotNull Packet.Priority priority) {
+        frame.retain();
+        if(this.offer(new Message(null, frame, priority, System.nanoTime()))) return true;
+        frame.release();
+        return false;
+    }
+
+    private boolean offer(Message message) {
+        if(this.closed.get()) return false;
+        AtomicInteger size = this.sizes.get(message.priority());
+        if(size.incrementAndGet() > this.capacity) {
+            size.decrementAndGet();
+            this.dropped.incrementAndGet();
+            this.congestedSince.compareAndSet(0, System.currentTimeMillis());
+            return false;
+        }
+        this.lane(message.priority()).offer(message);
+
+        if(this.sending.compareAndSet(false, true)) this.pump();
+        return true;
+    }
+
+    private Queue<Message> lane(Packet.Priority priority) {
+        return priority == Packet.Priority.CONTROL ? this.control : this.bulk;
+    }
+
+    /**
+     * Picks the next message to write, control messages first.
+     * Bulk messages are only picked once the rate limit allows them, otherwise a pump is scheduled for when it will.
+     * @return The next message, or `null` if nothing can be written right now.
+     */
+    private Message next() {
+        Message message = this.control.poll();
+        if(message != null) return message;
+
+        message = this.bulk.peek();
+        if(message == null) return null;
+
+        long wait = this.bulkLimit.take(message.length());
+        if(wait == 0) return this.bulk.poll();
+
+        this.throttled.incrementAndGet();
+        if(this.resumeScheduled.compareAndSet(false, true)) {
+            try {
+                // Timing wheel tasks mustn't block, so the writes themselves run somewhere else.
+                TimingWheel.shared().schedule(() -> {
+                    this.resumeScheduled.set(false);
+                    try {
+                        this.executor.execute(() -> {
+                            if(this.sending.compareAndSet(false, true)) this.pump();
+                        });
+                    } catch (RejectedExecutionException ignore) {}
+                }, wait, TimeUnit.NANOSECONDS);
+            } catch (IllegalStateException e) {
+                this.resumeScheduled.set(false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes queued messages until either nothing can be written or a write doesn't complete immediately.
+     * Must only be called by whoever currently owns {@link #sending}.
+     * If a write completes asynchronously, ownership is handed to the write's callback which then carries on pumping.
+     * While bulk messages are held back by the rate limit, ownership is given up so that new control messages are still written straight away.
+     */
+    private void pump() {
+        while (true) {
+            Message message = this.next();
+            if(message == null) {
+                this.sending.set(false);
+                if(!this.control.isEmpty() || (!this.bulk.isEmpty() && !this.resumeScheduled.get()))
+                    if(this.sending.compareAndSet(false, true)) continue;
+                return;
+            }
+            this.delays.get(message.priority()).record(message.queuedAt());
+
+            AtomicBoolean handoff = new AtomicBoolean(false);
+            Runnable onComplete = () -> {
+                this.complete(message);
+                if(!handoff.compareAndSet(false, true)) this.pump();
+            };
+            WriteCallback callback = new WriteCallback() {
+                @Override
+                public void writeSuccess() {
+                    onComplete.run();
+                }
+
+                @Override
+                public void writeFailed(Throwable e) {
+                    onComplete.run();
+                }
+            };
+
+            try {
+                if(this.closed.get()) throw new IllegalStateException("Outbound queue is closed.");
+                if(message.frame() != null) this.context.session.getRemote().sendBytes(message.frame().buffer(), callback);
+                else this.context.session.getRemote().sendString(message.text(), callback);
+            } catch (Exception e) {
+                callback.writeFailed(e);
+            }
+
+            // The callback hasn't run yet, so it'll resume pumping once the write finishes.
+            if(handoff.compareAndSet(false, true)) return;
+        }
+    }
+
+    private void complete(Message message) {
+        if(message.frame() != null) message.frame().release();
+        this.sizes.get(message.priority()).decrementAndGet();
+        if(this.size(Packet.Priority.CONTROL) <= this.capacity / 2 && this.size(Packet.Priority.BULK) <= this.capacity / 2) this.congestedSince.set(0);
+    }
+
+    /**
+     * @return The number of messages waiting to be sent, across every lane.
+     */
+    public int size() {
+        return this.sizes.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    /**
+     * @return The number of messages waiting to be sent in the lane.
+     */
+    public int size(@NotNull Packet.Priority priority) {
+        return this.sizes.get(priority).get();
+    }
+
+    /**
+     * @return How long messages in the lane waited before they were written.
+     */
+    public @NotNull QueueDelay queueDelay(@NotNull Packet.Priority priority) {
+        return this.delays.get(priority);
+    }
+
+    /**
+     * @return The number of times that bulk messages were held back by the rate limit.
+     */
+    public long throttled() {
+        return this.throttled.get();
+    }
+
+    /**
+     * @return The maximum number of messages which can be waiting to be sent in each lane.
+     */
+    public int capacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return How full the fullest lane is, between `0` and `1`.
+     */
+    public double fill() {
+        return (double) this.sizes.values().stream().mapToInt(AtomicInteger::get).max().orElse(0) / this.capacity;
+    }
+
+    /**
+     * @return The number of messages which were refused because the queue was full.
+     */
+    public long dropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Whether the queue filled up and hasn't yet drained back down to half of its capacity.
+     */
+    public boolean congested() {
+        return this.congestedSince.get() != 0;
+    }
+
+    /**
+     * @return The number of milliseconds that the queue has been congested for. `0` if it isn't congested.
+     */
+    public long congestedFor() {
+        long since = this.congestedSince.get();
+        if(since == 0) return 0;
+        return System.currentTimeMillis() - since;
+    }
+
+    /**
+     * Closes the queue and releases any messages which haven't been sent.
+     */
+    @Override
+    public void close() {
+        this.closed.set(true);
+        Message message;
+        while ((message = this.control.poll()) != null) this.complete(message);
+        while ((message = this.bulk.poll()) != null) this.complete(message);
+        this.executor.shutdown();
+    }
+
+    private record Message(String text, Frame frame, Packet.Priority priority, long queuedAt) {
+        private int length() {
+            return this.frame != null ? this.frame.buffer.remaining() : this.text.length();
+        }
+    }
+
+    /**
+     * A binary frame which can be queued to multiple servers at once.
+     * The underlying buffer is recycled once every queue that it was given to has finished with it.
+     */
+    public static class Frame {
+        private final ByteBuffer buffer;
+        private final Consumer<ByteBuffer> recycler;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        /**
+         * Creates a new frame, which is referenced once by the caller.
+         * @param buffer The frame's contents. It's read from its position up to its limit.
+         * @param recycler Called with the buffer once the last reference is released.
+         */
+        public Frame(@NotNull ByteBuffer buffer, @NotNull Consumer<ByteBuffer> recycler) {
+            this.buffer = buffer;
+            this.recycler = recycler;
+        }
+
+        /**
+         * @return A view of the frame's contents with its own position and limit.
+         */
+        public @NotNull ByteBuffer buffer() {
+            return this.buffer.duplicate();
+        }
+
+        public void retain() {
+            this.references.incrementAndGet();
+        }
+
+        public void release() {
+            if(this.references.decrementAndGet() == 0) this.recycler.accept(this.buffer);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package group.aelysium.rustyconnector.proxy.magic_link;
+
+import group.aelysium.rustyconnector.common.cache.TimingWheel;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Tracks when each connected server has to ping by, as a deadline on a {@link TimingWheel}.<br/>
+ * Refreshing a server simply replaces its deadline, and nothing happens for a server until its deadline actually passes.
+ * So the work done is proportional to the number of servers which time out, rather than the number of servers connected.
+ */
+public class ServerTimeouts implements AutoCloseable {
+    private final TimingWheel wheel;
+    private final Map<String, TimingWheel.Timeout> deadlines = new ConcurrentHashMap<>();
+    private final Consumer<String> onExpire;
+
+    /**
+     * @param precision How precisely deadlines are detected. A server is timed out at most this long after its deadline passes.
+     * @param unit The unit of `precision`.
+     * @param onExpire Called with the id of each server whose deadline passes without being refreshed.
+     *                 Runs on the timing wheel's thread, so it must hand any real work off to somewhere else.
+     */
+    public ServerTimeouts(long precision, @NotNull TimeUnit unit, @NotNull Consumer<String> onExpire) {
+        this.wheel = new TimingWheel(precision, unit, 512);
+        this.onExpire = onExpire;
+    }
+
+    /**
+     * Pushes back the server's deadline, starting to track it if it wasn't being tracked already.
+     * @param id The id of the server.
+     * @param timeout How long the server has until it's timed out.
+     * @param unit The unit of `timeout`.
+     */
+    public void refresh(@NotNull String id, long timeout, @NotNull TimeUnit unit) {
+        this.deadlines.compute(id, (k, current) -> {
+            if(current != null) current.cancel();
+            return this.wheel.schedule(() -> this.expire(k), timeout, unit);
+        });
+    }
+
+    /**
+     * Stops tracking the server.
+     * @param id The id of the server.
+     */
+    public void forget(@NotNull String id) {
+        TimingWheel.Timeout timeout = this.deadlines.remove(id);
+        if(timeout != null) timeout.cancel();
+    }
+
+    private void expire(String id) {
+        // If the server was refreshed just as its old deadline expired, the new deadline will still be waiting.
+        if(this.deadlines.computeIfPresent(id, (k, t) -> t.expired() ? null : t) != null) return;
+        this.onExpire.accept(id);
+    }
+
+    /**
+     * @return The number of servers being tracked.
+     */
+    public int tracked() {
+        return this.deadlines.size();
+    }
+
+    /**
+     * @return How precisely deadlines are detected, in milliseconds.
+     */
+    public double precisionMillis() {
+        return this.wheel.tickMillis();
+    }
+
+    @Override
+    public void close() {
+        this.deadlines.values().forEach(TimingWheel.Timeout::cancel);
+        this.deadlines.clear();
+        this.wheel.close();
+    }
+}
@@ -0,0 +1,65 @@
+package group.aelysium.rustyconnector.proxy.magic_link;
+
+import group.aelysium.rustyconnector.common.crypt.Token;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out session tickets to registered servers.<br/>
+ * A server which briefly loses its connection can present its ticket in a single websocket upgrade,
+ * instead of going through the full handshake and registering all over again.
+ * <br/><br/>
+ * Tickets only live in memory, so restarting the proxy invalidates all of them.
+ * A ticket is also revoked as soon as its server is unregistered, so it can only ever resume a registration that still exists.
+ * Every ticket can only be used once. A server which resumes its session is handed a new one in reply to its next snapshot ping.
+ */
+public class SessionTickets {
+    private static final Token generator = new Token(48);
+    private final Map<String, String> tickets = new ConcurrentHashMap<>();
+
+    /**
+     * Issues a new ticket to the server, replacing any ticket it held before.
+     * @param id The id of the server.
+     * @return The ticket.
+     */
+    public @NotNull String issue(@NotNull String id) {
+        String ticket = generator.nextString();
+        this.tickets.put(id, ticket);
+        return ticket;
+    }
+
+    /**
+     * Checks the ticket that a server presented, and consumes it if it's valid.
+     * Consuming the ticket means that one which has been captured can't be replayed to repeatedly take over the server's session.
+     * @param id The id of the server.
+     * @param ticket The ticket the server presented.
+     * @return `true` if the ticket is the one that was last issued to the server, and it hadn't been used yet.
+     */
+    public boolean valid(@NotNull String id, @NotNull String ticket) {
+        String issued = this.tickets.get(id);
+        if(issued == null) return false;
+        if(!MessageDigest.isEqual(issued.getBytes(StandardCharsets.UTF_8), ticket.getBytes(StandardCharsets.UTF_8))) return false;
+
+        // Only one of any concurrent attempts to use the same ticket is able to remove it.
+        return this.tickets.remove(id, issued);
+    }
+
+    /**
+     * Revokes the server's ticket. Should be called whenever the server is unregistered.
+     * @param id The id of the server.
+     */
+    public void revoke(@NotNull String id) {
+        this.tickets.remove(id);
+    }
+
+    /**
+     * @return The number of tickets which are currently valid.
+     */
+    public int issued() {
+        return this.tickets.size();
+    }
+}
@@ -0,0 +1,70 @@
+package group.aelysium.rustyconnector.proxy.magic_link;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks which servers are subscribed to each topic.<br/>
+ * Topics are indexed in both directions, so that finding a topic's subscribers, and forgetting everything a server was subscribed to,
+ * each only touch the entries involved rather than every topic.
+ */
+public class TopicSubscriptions {
+    private final Map<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces every topic that the server is subscribed to.
+     * @param server The id of the server.
+     * @param topics The topics the server is now subscribed to.
+     */
+    public void replace(@NotNull String server, @NotNull Set<String> topics) {
+        Set<String> current = Set.copyOf(topics);
+        Set<String> previous = current.isEmpty() ? this.subscriptions.remove(server) : this.subscriptions.put(server, current);
+
+        if(previous != null) previous.forEach(topic -> {
+            if(!current.contains(topic)) this.unsubscribe(topic, server);
+        });
+        current.forEach(topic -> this.subscribers.computeIfAbsent(topic, k -> ConcurrentHashMap.newKeySet()).add(server));
+    }
+
+    /**
+     * Forgets every topic that the server was subscribed to. Should be called whenever the server is unregistered.
+     * @param server The id of the server.
+     */
+    public void forget(@NotNull String server) {
+        Set<String> previous = this.subscriptions.remove(server);
+        if(previous != null) previous.forEach(topic -> this.unsubscribe(topic, server));
+    }
+
+    /**
+     * @param topic The topic.
+     * @return The id of every server subscribed to the topic.
+     */
+    public @NotNull Set<String> subscribers(@NotNull String topic) {
+        return this.subscribers.getOrDefault(topic, Set.of());
+    }
+
+    private void unsubscribe(String topic, String server) {
+        this.subscribers.computeIfPresent(topic, (k, servers) -> {
+            servers.remove(server);
+            return servers.isEmpty() ? null : servers;
+        });
+    }
+
+    /**
+     * @return The number of topics which have at least one subscriber.
+     */
+    public int topics() {
+        return this.subscribers.size();
+    }
+
+    /**
+     * @return The number of servers subscribed to at least one topic.
+     */
+    public int servers() {
+        return this.subscriptions.size();
+    }
+}
@@ -5,16 +5,24 @@ import com.google.gson.JsonObject;
 import group.aelysium.rustyconnector.RC;
 import group.aelysium.rustyconnector.common.errors.Error;
 import group.aelysium.rustyconnector.common.util.IPV6Broadcaster;
+import group.aelysium.rustyconnector.common.util.URL;
+import group.aelysium.rustyconnector.common.magic_link.Feature;
+import group.aelysium.rustyconnector.common.magic_link.PacketBatcher;
+import group.aelysium.rustyconnector.common.magic_link.PacketCompressor;
 import group.aelysium.rustyconnector.common.magic_link.PacketCache;
+import group.aelysium.rustyconnector.common.magic_link.PacketDispatcher;
+import group.aelysium.rustyconnector.common.magic_link.ProxyAnnouncement;
 import group.aelysium.rustyconnector.common.crypt.AES;
 import group.aelysium.rustyconnector.common.crypt.SHA256;
 import group.aelysium.rustyconnector.common.crypt.Token;
 import group.aelysium.rustyconnector.common.magic_link.MagicLinkCore;
 import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.common.magic_link.packet.PacketCodec;
 import group.aelysium.rustyconnector.proxy.events.ServerTimeoutEvent;
 import group.aelysium.rustyconnector.proxy.family.Family;
 import group.aelysium.rustyconnector.proxy.magic_link.packet_handlers.*;
 import group.aelysium.rustyconnector.proxy.util.AddressUtil;
+import group.aelysium.rustyconnector.proxy.util.LiquidTimestamp;
 import io.javalin.Javalin;
 import io.javalin.http.*;
 import io.javalin.websocket.WsContext;
@@ -23,24 +31,61 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static net.kyori.adventure.text.Component.join;
 import static net.kyori.adventure.text.Component.text;
 import static net.kyori.adventure.text.JoinConfiguration.newlines;
 
 public class WebSocketMagicLink extends MagicLinkCore.Proxy {
+    /**
+     * The maximum number of messages which can be waiting to be sent to a single server.
+     */
+    protected static final int outboundCapacity = 1024;
+    /**
+     * How long, in milliseconds, a server's outbound queue can stay congested before the server is disconnected.
+     */
+    protected static final long congestionTimeout = 15_000;
+    /**
+     * Tracks when each registered server has to ping by.
+     */
+    protected final ServerTimeouts timeouts;
+    /**
+     * Lets servers which briefly lose their connection resume their registration.
+     */
+    protected final SessionTickets tickets = new SessionTickets();
+    /**
+     * Which servers are subscribed to each topic, so that topic packets are only sent to their subscribers.
+     */
+    protected final TopicSubscriptions subscriptions = new TopicSubscriptions();
+    /**
+     * Registers servers, and keeps track of the metadata and ping rate share that each of them last reported.
+     */
+    protected final HandshakePingListener pings;
+    protected final PacketBatcher<Packet.SourceIdentifier> batcher = new PacketBatcher<>(this::batchPolicy, this::sendBatch);
     protected final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicReference<Announcer> announcer = new AtomicReference<>(null);
+    private final AtomicBoolean announcing = new AtomicBoolean(false);
     protected static final Handler dummyHandler = (request) -> {throw new UnauthorizedResponse();};
     protected static final Token tokenGenerator = new Token(128);
     protected final String endpoint;
-    protected final Map<Packet.SourceIdentifier, WsContext> clients = new ConcurrentHashMap<>();
+    protected final Map<Packet.SourceIdentifier, Client> clients = new ConcurrentHashMap<>();
+    /**
+     * Every open websocket session, keyed by its session id.
+     * Sessions are identified once when they connect, so that incoming messages don't need to re-parse the upgrade headers.
+     */
+    protected final Map<String, Client> sessions = new ConcurrentHashMap<>();
     protected final InetSocketAddress address;
     private final Javalin server = Javalin.create(c -> {
         c.showJavalinBanner = false;
@@ -58,10 +103,36 @@ public class WebSocketMagicLink extends MagicLinkCore.Proxy {
             @NotNull PacketCache cache,
             @Nullable IPV6Broadcaster broadcaster
     ) {
-        super(self, aes, cache, broadcaster);
+        this(address, self, aes, cache, broadcaster, new PacketDispatcher(256, PacketDispatcher.OverflowPolicy.REJECT));
+    }
+    public WebSocketMagicLink(
+            @NotNull InetSocketAddress address,
+            @NotNull Packet.SourceIdentifier self,
+            @NotNull AES aes,
+            @NotNull PacketCache cache,
+            @Nullable IPV6Broadcaster broadcaster,
+            @NotNull PacketDispatcher dispatcher
+    ) {
+        this(address, self, aes, cache, broadcaster, dispatcher, LiquidTimestamp.from(250, TimeUnit.MILLISECONDS));
+    }
+    /**
+     * @param timeoutPrecision How precisely server timeouts are detected. A server is timed out at most this long after it misses its deadline.
+     */
+    public WebSocketMagicLink(
+            @NotNull InetSocketAddress address,
+            @NotNull Packet.SourceIdentifier self,
+            @NotNull AES aes,
+            @NotNull PacketCache cache,
+            @Nullable IPV6Broadcaster broadcaster,
+            @NotNull PacketDispatcher dispatcher,
+            @NotNull LiquidTimestamp timeoutPrecision
+    ) {
+        super(self, aes, cache, broadcaster, dispatcher);
 
         this.endpoint = tokenGenerator.nextString();
         this.address = address;
+        this.timeouts = new ServerTimeouts(timeoutPrecision.value(), timeoutPrecision.unit(), id -> this.executor.execute(() -> this.timeout(id)));
+        this.pings = new HandshakePingListener(this.timeouts, this.tickets, this::pingRate);
 
         // Register some dummy endpoints that don't do anything
         for (int i = 0; i < (new Random()).nextInt((32 - 7) + 1) + 32; i++) server.get("/"+tokenGenerator.nextString(), dummyHandler);
@@ -82,11 +153,15 @@ public class WebSocketMagicLink extends MagicLinkCore.Proxy {
                     throw new UnauthorizedResponse();
 
                 String randomData = tokenGenerator.nextString();
-                request.json(Map.of(
+                Map<String, Object> response = new HashMap<>(Map.of(
                     "endpoint", aes.encrypt(endpoint),
                     "token", aes.encrypt(now.getEpochSecond()+"-"+randomData),
-                    "signature", SHA256.hash(now.getEpochSecond()+"-"+randomData)
+                    "protocol", PacketCodec.BINARY_PROTOCOL,
+                    "features", Feature.serialize(Feature.supported())
                 ));
+                // Authenticated ciphertext can't be forged without the key, so the token doesn't need to be signed as well.
+                if(!aes.authenticated()) response.put("signature", SHA256.hash(now.getEpochSecond()+"-"+randomData));
+                request.json(response);
             } catch (Exception e) {
                 RC.Error(Error.from(e));
                 throw new UnauthorizedResponse();
@@ -98,6 +173,11 @@ public class WebSocketMagicLink extends MagicLinkCore.Proxy {
                 JsonObject xServerIdentification = gson.fromJson(Objects.requireNonNull(request.header("X-Server-Identification")), JsonObject.class);
                 Packet.SourceIdentifier identification = Packet.SourceIdentifier.fromJSON(xServerIdentification);
 
+                if(authorization.startsWith(ticketScheme)) {
+                    this.authorizeResume(identification, aes.decrypt(authorization.substring(ticketScheme.length())));
+                    return;
+                }
+
                 authorization = authorization.replaceAll("Bearer ", "");
                 authorization = aes.decrypt(authorization);
 
@@ -107,7 +187,7 @@ public class WebSocketMagicLink extends MagicLinkCore.Proxy {
                 String signature = split[1];
 
                 if (!identification.id().equals(split[2])) throw new UnauthorizedResponse("Invalid identification.");
-                if (!SHA256.hash(timestamp + "-" + token).equals(signature)) throw new UnauthorizedResponse("Invalid token.");
+                if (!aes.authenticated() && !SHA256.hash(timestamp + "-" + token).equals(signature)) throw new UnauthorizedResponse("Invalid token.");
 
                 Instant time = Instant.ofEpochSecond(timestamp);
                 if (time.plus(30, ChronoUnit.SECONDS).isBefore(Instant.now()))
@@ -125,7 +205,21 @@ public class WebSocketMagicLink extends MagicLinkCore.Proxy {
                     Context upgradeRequest = request.getUpgradeCtx$javalin();
                     Packet.SourceIdentifier target = Packet.SourceIdentifier.fromJSON(gson.fromJson(Optional.ofNullable(upgradeRequest.header("X-Server-Identification")).orElse(""), JsonObject.class));
 
-                    this.clients.putIfAbsent(target, request);
+                    int protocolVersion = PacketCodec.JSON_PROTOCOL;
+                    try {
+                        protocolVersion = Integer.parseInt(Objects.requireNonNull(upgradeRequest.header(protocolHeader)));
+                    } catch (Exception ignore) {}
+                    Set<Feature> features = Feature.parse(upgradeRequest.header(Feature.header));
+
+                    Client client = new Client(target, request, protocolVersion, features, new OutboundQueue(request, outboundCapacity, this::bulkRate), new PacketCompressor.Zlib());
+                    this.sessions.put(request.sessionId(), client);
+
+                    // A new session replaces whatever's left of the server's old session, which may not have noticed it's gone yet.
+                    Client previous = this.clients.put(target, client);
+                    if(previous != null && previous != client) {
+                        boolean resumed = Optional.ofNullable(upgradeRequest.header("Authorization")).orElse("").startsWith(ticketScheme);
+                        previous.context().closeSession(1000, resumed ? "Session resumed elsewhere." : "Session replaced by a new connection.");
+                    }
                 } catch (Exception e) {
                     RC.Error(Error.from(e));
                     request.closeSession(1011, "Unable to complete Magic Link connection.");
@@ -133,24 +227,36 @@ public class WebSocketMagicLink extends MagicLinkCore.Proxy {
             });
             config.onClose(request -> {
                 try {
-                    Context upgradeRequest = request.getUpgradeCtx$javalin();
-                    Packet.SourceIdentifier target = Packet.SourceIdentifier.fromJSON(gson.fromJson(Optional.ofNullable(upgradeRequest.header("X-Server-Identification")).orElse(""), JsonObject.class));
+                    Client client = this.sessions.remove(request.sessionId());
+                    if(client == null) return;
 
-                    this.clients.remove(target);
+                    if(this.clients.remove(client.identification(), client)) this.batcher.forget(client.identification());
+                    client.outbound().close();
+                    client.zlib().close();
                 } catch (Exception e) {
                     RC.Error(Error.from(e));
                 }
             });
             config.onMessage(request -> {
                 try {
-                    Context upgradeRequest = request.getUpgradeCtx$javalin();
-                    Packet.SourceIdentifier target = Packet.SourceIdentifier.fromJSON(gson.fromJson(Optional.ofNullable(upgradeRequest.header("X-Server-Identification")).orElse(""), JsonObject.class));
-
-                    if(!this.clients.containsKey(target)) {
+                    Client client = this.sessions.get(request.sessionId());
+                    if(client == null) {
+                        request.closeSession(1008, "Unauthorized");
+                        return;
+                    }
+                    this.handleMessage(request.message(), client.zlib());
+                } catch (Exception e) {
+                    RC.Error(Error.from(e));
+                }
+            });
+            config.onBinaryMessage(request -> {
+                try {
+                    Client client = this.sessions.get(request.sessionId());
+                    if(client == null) {
                         request.closeSession(1008, "Unauthorized");
                         return;
                     }
-                    this.handleMessage(request.message());
+                    this.handleMessage(ByteBuffer.wrap(request.data(), request.offset(), request.length()), client.zlib());
                 } catch (Exception e) {
                     RC.Error(Error.from(e));
                 }
@@ -158,10 +264,11 @@ public class WebSocketMagicLink extends MagicLinkCore.Proxy {
         });
 
         this.listen(new SendPlayerListener());
-        this.listen(new HandshakeDisconnectListener());
-        this.listen(new HandshakePingListener());
+        this.listen(new HandshakeDisconnectListener(this::forget));
+        this.listen(this.pings);
         this.listen(new ServerLockListener());
         this.listen(new ServerUnlockListener());
+        this.listen(new TopicSubscriptionListener(this.subscriptions));
 
         ClassLoader originalClassLoader = Thread.currentThread().getContextClassLoader();
         Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
@@ -179,64 +286,279 @@ public class WebSocketMagicLink extends MagicLinkCore.Proxy {
             return;
         }
 
+        this.clients.values().forEach(client -> {
+            if(client.outbound().congestedFor() < congestionTimeout) return;
+            try {
+                client.context().closeSession(1013, "Connection is congested. Re-register.");
+            } catch (Exception e) {
+                RC.Error(Error.from(e).causedBy("WebSocketMagicLink:heartbeat"));
+            }
+        });
+
+        this.executor.schedule(this::heartbeat, 3, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Checks a server's request to resume its session.
+     * @param identification The server which is resuming.
+     * @param authorization The decrypted authorization, formatted as `timestamp$ticket$id`.
+     * @throws UnauthorizedResponse If the session can't be resumed, in which case the server falls back to the full handshake.
+     */
+    private void authorizeResume(Packet.SourceIdentifier identification, String authorization) throws UnauthorizedResponse {
+        String[] split = authorization.split("\\$");
+        if(split.length != 3) throw new UnauthorizedResponse("Invalid ticket.");
+        if(!identification.id().equals(split[2])) throw new UnauthorizedResponse("Invalid identification.");
+
+        Instant time = Instant.ofEpochSecond(Long.parseLong(split[0]));
+        if(time.plus(30, ChronoUnit.SECONDS).isBefore(Instant.now())) throw new UnauthorizedResponse("Expired request.");
+
+        if(!this.tickets.valid(identification.id(), split[1])) throw new UnauthorizedResponse("Invalid ticket.");
+        if(RC.P.Server(identification.id()).isEmpty()) {
+            this.tickets.revoke(identification.id());
+            throw new UnauthorizedResponse("The server is no longer registered.");
+        }
+    }
+
+    /**
+     * Times out the server if it's still stale once its deadline has passed.
+     */
+    private void timeout(String id) {
         try {
-            RC.P.Families().modules().values().forEach(flux -> {
-                try {
-                    flux.ifPresent(f -> f.servers().forEach(server -> {
-                        try {
-                            int newValue = server.decreaseTimeout(3);
-
-                            if (newValue > 0) return;
-
-                            try {
-                                RC.EventManager().fireEvent(new ServerTimeoutEvent(server, ((Family) f)));
-                            } catch (Exception ignore) {}
-                            try {
-                                WsContext connection = this.clients.get(Packet.SourceIdentifier.server(server.id()));
-                                connection.closeSession(1013, "Stale connection. Re-register.");
-                            } catch (Exception ignore) {}
-                            f.removeServer(server);
-                        } catch (Exception e) {
-                            RC.Error(Error.from(e).causedBy("WebSocketMagicLink:heartbeat"));
-                        }
-                    }));
-                } catch (Exception e) {
-                    RC.Error(Error.from(e).causedBy("WebSocketMagicLink:heartbeat"));
-                }
-            });
+            group.aelysium.rustyconnector.proxy.family.Server server = RC.P.Server(id).orElse(null);
+            if(server == null) return;
+
+            // The server was refreshed right as its old deadline passed, so keep tracking it until its new deadline.
+            if(!server.stale()) {
+                this.timeouts.refresh(id, server.deadline() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            Family family = server.family().orElse(null);
+            try {
+                if(family != null) RC.EventManager().fireEvent(new ServerTimeoutEvent(server, family));
+            } catch (Exception ignore) {}
+            try {
+                Client client = this.clients.get(Packet.SourceIdentifier.server(server.id()));
+                client.context().closeSession(1013, "Stale connection. Re-register.");
+            } catch (Exception ignore) {}
+            if(family != null) family.removeServer(server);
+            this.forget(id);
         } catch (Exception e) {
-            RC.Error(Error.from(e).causedBy("WebSocketMagicLink:heartbeat"));
+            RC.Error(Error.from(e).causedBy("WebSocketMagicLink:timeout"));
         }
-        this.executor.schedule(this::heartbeat, 3, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Forgets everything that's tracked for a server which has been unregistered.
+     */
+    private void forget(String id) {
+        this.timeouts.forget(id);
+        this.tickets.revoke(id);
+        this.subscriptions.forget(id);
+        this.pings.forget(id);
     }
 
     @Override
     public void publish(Packet.Local packet) {
+        // Servers running different protocol versions, or without compression, need different encodings. But each encoding only needs to be encrypted once.
+        Map<Integer, byte[]> encoded = new HashMap<>(2);
+        Map<Integer, String> encrypted = new HashMap<>(2);
+        Map<Integer, OutboundQueue.Frame> frames = new HashMap<>(2);
         try {
             this.cache.cache(packet);
-            String encrypted = this.aes.encrypt(packet.toString());
             Packet.SourceIdentifier target = packet.remote();
             if(target.isEquivalent(Packet.SourceIdentifier.allAvailableProxies()) || target.isEquivalent(Packet.SourceIdentifier.allAvailableServers())) {
-                this.clients.forEach((k, v) -> {
-                    if(!k.isEquivalent(target)) return;
-                    v.send(encrypted);
-                });
+                int congested = 0;
+                for (Client client : this.clients.values()) {
+                    if(!client.identification().isEquivalent(target)) continue;
+                    if(!this.enqueue(client, packet, encoded, encrypted, frames)) congested++;
+                }
+                if(congested > 0) {
+                    packet.status(true, "Message queued for delivery, but "+congested+" congested servers were skipped.");
+                    return;
+                }
+            } else if(target.origin() == Packet.SourceIdentifier.Origin.FAMILY || target.origin() == Packet.SourceIdentifier.Origin.TOPIC) {
+                List<String> members = this.members(target);
+                int congested = 0;
+                for (String id : members) {
+                    Client client = this.clients.get(Packet.SourceIdentifier.server(id));
+                    if(client == null) continue;
+                    if(!this.multicast(client, packet, encoded, encrypted, frames)) congested++;
+                }
+                if(congested > 0) {
+                    packet.status(true, "Message queued for delivery to "+target+", but "+congested+" congested servers were skipped.");
+                    return;
+                }
             } else {
-                this.clients.get(target).send(encrypted);
+                Client client = this.clients.get(target);
+                if(!this.enqueue(client, packet, encoded, encrypted, frames)) {
+                    packet.status(false, "Unable to deliver the message because "+target+" is congested.");
+                    return;
+                }
             }
-            packet.status(true, "Message successfully delivered.");
+            packet.status(true, "Message queued for delivery.");
         } catch (Exception e) {
             packet.status(false, e.getMessage());
             RC.Error(Error.from(e));
+        } finally {
+            frames.values().forEach(OutboundQueue.Frame::release);
+        }
+    }
+
+    /**
+     * @return The id of every server that a family or topic packet should be delivered to.
+     */
+    private List<String> members(Packet.SourceIdentifier target) {
+        if(target.origin() == Packet.SourceIdentifier.Origin.TOPIC) return List.copyOf(this.subscriptions.subscribers(target.id()));
+
+        Family family = RC.P.Family(target.id()).orElse(null);
+        if(family == null) return List.of();
+        return family.servers().stream().map(group.aelysium.rustyconnector.proxy.family.Server::id).toList();
+    }
+
+    /**
+     * Queues a family or topic packet for delivery to one of its members.
+     * Servers which don't support {@link Feature#MULTICAST} wouldn't recognize a packet addressed to a family or topic,
+     * so they're sent a copy which is addressed directly to them instead. Each copy is encoded on its own, since no other server receives it.
+     * @return `true` if the packet was queued. `false` if the client's outbound queue is full.
+     */
+    private boolean multicast(Client client, Packet.Local packet, Map<Integer, byte[]> encoded, Map<Integer, String> encrypted, Map<Integer, OutboundQueue.Frame> frames) throws Exception {
+        if(client.supports(Feature.MULTICAST)) return this.enqueue(client, packet, encoded, encrypted, frames);
+
+        Packet.Local copy = new Packet.Local(packet.messageVersion(), packet.type(), packet.local(), client.identification(), packet.parameters());
+        Map<Integer, OutboundQueue.Frame> copyFrames = new HashMap<>(1);
+        try {
+            return this.enqueue(client, copy, new HashMap<>(1), new HashMap<>(1), copyFrames);
+        } finally {
+            copyFrames.values().forEach(OutboundQueue.Frame::release);
+        }
+    }
+
+    /**
+     * Queues the packet for delivery to the client, encoding and encrypting it in whichever form the client accepts if it hasn't been already.
+     * If the client accepts batches, and the packet's type is batched, the packet is handed to {@link #batcher} instead.
+     * Control packets are never batched, since that would hold them back with the bulk packets in their batch.
+     * @return `true` if the packet was queued. `false` if the client's outbound queue is full.
+     */
+    private boolean enqueue(Client client, Packet.Local packet, Map<Integer, byte[]> encoded, Map<Integer, String> encrypted, Map<Integer, OutboundQueue.Frame> frames) throws Exception {
+        // Clients with the same protocol version and compression support receive exactly the same plaintext.
+        boolean compress = client.supports(Feature.COMPRESSION);
+        int encoding = client.protocolVersion() << 1 | (compress ? 1 : 0);
+        byte[] payload = encoded.get(encoding);
+        if(payload == null) {
+            payload = this.plaintext(packet, client.protocolVersion(), compress ? client.zlib() : null);
+            encoded.put(encoding, payload);
+        }
+
+        Packet.Priority priority = packet.type().priority();
+        if(priority == Packet.Priority.BULK && client.supports(Feature.BATCHING) && this.batcher.accepts(client.identification(), packet.type()))
+            return this.batcher.send(client.identification(), packet.type(), payload);
+
+        if(client.supports(Feature.BINARY_FRAMES)) {
+            OutboundQueue.Frame frame = frames.get(encoding);
+            if(frame == null) {
+                frame = new OutboundQueue.Frame(this.encryptFrame(payload), this.buffers::release);
+                frames.put(encoding, frame);
+            }
+            return client.outbound().offer(frame, priority);
+        }
+
+        String message = encrypted.get(encoding);
+        if(message == null) {
+            message = this.aes.encrypt(payload);
+            encrypted.put(encoding, message);
+        }
+        return client.outbound().offer(message, priority);
+    }
+
+    /**
+     * Encrypts and queues plaintext which has been through {@link #batcher}.
+     */
+    private boolean sendBatch(Packet.SourceIdentifier target, byte[] plaintext) throws Exception {
+        Client client = this.clients.get(target);
+        if(client == null) return false;
+
+        if(client.supports(Feature.BINARY_FRAMES)) {
+            OutboundQueue.Frame frame = new OutboundQueue.Frame(this.encryptFrame(plaintext), this.buffers::release);
+            try {
+                return client.outbound().offer(frame, Packet.Priority.BULK);
+            } finally {
+                frame.release();
+            }
+        }
+        return client.outbound().offer(this.aes.encrypt(plaintext), Packet.Priority.BULK);
+    }
+
+    /**
+     * Starts broadcasting the proxy's MagicLink address and the number of servers connected to it, so that servers can discover the proxy
+     * instead of being configured with its address. Also answers servers which ask proxies to announce themselves as they start up.
+     * Calling this again replaces the previous address and interval.
+     * @param address The address that servers should connect to. This is the address that servers would otherwise be configured with.
+     * @param interval How often to announce the proxy.
+     * @throws IllegalStateException If the proxy doesn't have a broadcaster.
+     */
+    public void announce(@NotNull URL address, @NotNull LiquidTimestamp interval) throws IllegalStateException {
+        if(this.broadcaster == null) throw new IllegalStateException("The proxy can't announce itself without a broadcaster.");
+        if(interval.value() <= 0) throw new IllegalArgumentException("interval must be larger than 0.");
+
+        Announcer previous = this.announcer.getAndSet(new Announcer(address, interval.unit().toMillis(interval.value())));
+        if(previous != null) previous.task.cancel(false);
+        if(this.announcing.compareAndSet(false, true))
+            this.broadcaster.onMessage(message -> {
+                Announcer announcer = this.announcer.get();
+                if(announcer != null && ProxyAnnouncement.solicited(message)) announcer.solicited();
+            });
+    }
+
+    /**
+     * Broadcasts announcements for {@link #announce(URL, LiquidTimestamp)}.
+     */
+    private class Announcer {
+        /**
+         * The least time between two announcements made because servers asked for them, so that a crowd of servers starting at once only gets a few.
+         */
+        private static final long minSolicitedInterval = 1000;
+        private final URL address;
+        private final long interval;
+        private final ScheduledFuture<?> task;
+        private volatile long lastAnnounced = 0;
+
+        private Announcer(URL address, long interval) {
+            this.address = address;
+            this.interval = interval;
+            this.task = executor.scheduleAtFixedRate(this::announce, 0, interval, TimeUnit.MILLISECONDS);
+        }
+
+        private void solicited() {
+            if(System.currentTimeMillis() - this.lastAnnounced < minSolicitedInterval) return;
+            try {
+                executor.execute(this::announce);
+            } catch (RejectedExecutionException ignore) {}
+        }
+
+        private void announce() {
+            if(this.task != null && this.task.isCancelled()) return;
+            this.lastAnnounced = System.currentTimeMillis();
+            try {
+                broadcaster.sendEncrypted(new ProxyAnnouncement(self.id(), this.address, clients.size(), this.interval, this.lastAnnounced).toString());
+            } catch (Exception e) {
+                RC.Error(Error.from(e).whileAttempting("To announce the proxy to servers"));
+            }
         }
     }
 
     @Override
     public void close() {
+        Announcer announcer = this.announcer.getAndSet(null);
+        if(announcer != null) announcer.task.cancel(false);
         super.close();
+        this.batcher.close();
         this.server.stop();
+        this.sessions.values().forEach(c -> c.outbound().close());
+        this.sessions.clear();
         this.clients.clear();
         this.cache.close();
+        this.timeouts.close();
         this.executor.shutdownNow();
     }
 
@@ -247,12 +569,60 @@ public class WebSocketMagicLink extends MagicLinkCore.Proxy {
                 RC.Lang("rustyconnector-keyValue").generate("Address", AddressUtil.addressToString(this.address)),
                 RC.Lang("rustyconnector-keyValue").generate("Access Endpoint", AddressUtil.addressToString(this.address)+"/"+this.endpoint),
                 RC.Lang("rustyconnector-keyValue").generate("Total Connections", this.clients.size()),
+                RC.Lang("rustyconnector-keyValue").generate("Binary Frame Connections", this.clients.values().stream().filter(c -> c.supports(Feature.BINARY_FRAMES)).count()),
+                RC.Lang("rustyconnector-keyValue").generate("Congested Connections", this.clients.values().stream().filter(c -> c.outbound().congested()).count()),
+                RC.Lang("rustyconnector-keyValue").generate("Compression Savings", this.compressionSavings()),
+                RC.Lang("rustyconnector-keyValue").generate("Batched Packets", this.batcher.batched()+" total, "+this.batcher.pending()+" waiting, "+this.batcher.failed()+" undelivered"),
+                RC.Lang("rustyconnector-keyValue").generate("Outbound Queue Fill", this.clients.values().stream().mapToInt(c -> c.outbound().size()).sum()+" queued, "+String.format("%.0f%%", this.clients.values().stream().mapToDouble(c -> c.outbound().fill()).max().orElse(0) * 100)+" fullest"),
+                RC.Lang("rustyconnector-keyValue").generate("Outbound Control Delay", this.outboundDelay(Packet.Priority.CONTROL)),
+                RC.Lang("rustyconnector-keyValue").generate("Outbound Bulk Delay", this.outboundDelay(Packet.Priority.BULK)+", throttled "+this.clients.values().stream().mapToLong(c -> c.outbound().throttled()).sum()+" times ("+this.bulkRate+" bytes/s per connection)"),
+                RC.Lang("rustyconnector-keyValue").generate("Inbound Control Delay", this.dispatcher.queueDelay(Packet.Priority.CONTROL)),
+                RC.Lang("rustyconnector-keyValue").generate("Inbound Bulk Delay", this.dispatcher.queueDelay(Packet.Priority.BULK)),
+                RC.Lang("rustyconnector-keyValue").generate("Session Tickets", this.tickets.issued()),
+                RC.Lang("rustyconnector-keyValue").generate("Topic Subscriptions", this.subscriptions.topics()+" topics across "+this.subscriptions.servers()+" servers"),
+                RC.Lang("rustyconnector-keyValue").generate("Announcing", Optional.ofNullable(this.announcer.get()).map(a -> a.address+" every "+a.interval+"ms").orElse("No")),
+                RC.Lang("rustyconnector-keyValue").generate("Streams", this.streams.sending()+" sending, "+this.streams.receiving()+" receiving, "+this.streams.bytesSent()+" bytes sent, "+this.streams.bytesReceived()+" bytes received, "+this.streams.canceled()+" canceled"),
+                RC.Lang("rustyconnector-keyValue").generate("Tracked Server Timeouts", this.timeouts.tracked()+" (precision "+String.format("%.0fms", this.timeouts.precisionMillis())+")"),
                 RC.Lang("rustyconnector-keyValue").generate("Packet Cache Size", this.cache.size()),
                 RC.Lang("rustyconnector-keyValue").generate("Packets Pending Responses", this.packetsAwaitingReply.size()),
                 RC.Lang("rustyconnector-keyValue").generate("Packets Pending Responses", this.packetsAwaitingReply.expiration()),
+                RC.Lang("rustyconnector-keyValue").generate("Dispatch Queue Depth", this.dispatcher.queueDepth()+" (max "+this.dispatcher.maxQueueDepth()+" per source, "+this.dispatcher.overflowPolicy()+")"),
+                RC.Lang("rustyconnector-keyValue").generate("Deepest Dispatch Queue", this.dispatcher.deepestQueue().map(e -> e.getKey()+" ("+e.getValue()+")").orElse("None")),
+                RC.Lang("rustyconnector-keyValue").generate("Dropped Packets", this.dispatcher.dropped()),
+                RC.Lang("rustyconnector-keyValue").generate("Listener Latency", String.format("%.2fms average, %.2fms max", this.dispatcher.averageLatency() / 1_000_000D, this.dispatcher.maxLatency() / 1_000_000D)),
                 RC.Lang("rustyconnector-keyValue").generate("Total Listeners Per Packet",
                         text(String.join(", ", this.listeners.entrySet().stream().map(e -> e.getKey() + " ("+e.getValue().size()+")").toList()))
                 )
         );
     }
+
+    /**
+     * Describes how long messages of the priority waited to be written, on the connection where they waited the longest.
+     */
+    private String outboundDelay(Packet.Priority priority) {
+        long average = this.clients.values().stream().mapToLong(c -> c.outbound().queueDelay(priority).average()).max().orElse(0);
+        long max = this.clients.values().stream().mapToLong(c -> c.outbound().queueDelay(priority).max()).max().orElse(0);
+        return String.format("%.2fms worst average, %.2fms max", average / 1_000_000D, max / 1_000_000D);
+    }
+
+    /**
+     * A server which is connected to this proxy's MagicLink.
+     * @param identification The source identifier that the server connected with.
+     * @param context The websocket session used to talk to the server.
+     * @param protocolVersion The highest protocol version that the server is able to decode.
+     * @param features The optional features that both this proxy and the server support.
+     * @param outbound The messages waiting to be sent to the server.
+     */
+    protected record Client(
+            @NotNull Packet.SourceIdentifier identification,
+            @NotNull WsContext context,
+            int protocolVersion,
+            @NotNull Set<Feature> features,
+            @NotNull OutboundQueue outbound,
+            @NotNull PacketCompressor.Zlib zlib
+    ) {
+        public boolean supports(@NotNull Feature feature) {
+            return this.features.contains(feature);
+        }
+    }
 }
\ No newline at end of file
@@ -5,13 +5,25 @@ import group.aelysium.rustyconnector.common.magic_link.MagicLinkCore;
 import group.aelysium.rustyconnector.common.magic_link.packet.PacketListener;
 import group.aelysium.rustyconnector.proxy.family.Server;
 
+import java.util.function.Consumer;
+
 public class HandshakeDisconnectListener {
+    private final Consumer<String> forget;
+
+    /**
+     * @param forget Forgets everything MagicLink tracks for a server, given the server's id.
+     */
+    public HandshakeDisconnectListener(Consumer<String> forget) {
+        this.forget = forget;
+    }
+
     @PacketListener(MagicLinkCore.Packets.Disconnect.class)
     public PacketListener.Response handle(MagicLinkCore.Packets.Disconnect packet) {
         Server server = RC.P.Server(packet.local().id()).orElseThrow();
 
         RC.P.Kernel().unregisterServer(server);
+        this.forget.accept(server.id());
 
         return PacketListener.Response.success("Successfully disconnected from the proxy.");
     }
-}
\ No newline at end of file
+}
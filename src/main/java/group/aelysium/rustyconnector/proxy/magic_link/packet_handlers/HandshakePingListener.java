@@ -1,5 +1,7 @@
 package group.aelysium.rustyconnector.proxy.magic_link.packet_handlers;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import group.aelysium.rustyconnector.RC;
 import group.aelysium.ara.Flux;
 import group.aelysium.rustyconnector.common.errors.Error;
@@ -8,24 +10,83 @@ import group.aelysium.rustyconnector.common.magic_link.packet.PacketListener;
 import group.aelysium.rustyconnector.common.util.Parameter;
 import group.aelysium.rustyconnector.proxy.family.Family;
 import group.aelysium.rustyconnector.proxy.family.Server;
+import group.aelysium.rustyconnector.proxy.magic_link.ServerTimeouts;
+import group.aelysium.rustyconnector.proxy.magic_link.SessionTickets;
 import group.aelysium.rustyconnector.proxy.magic_link.WebSocketMagicLink;
 import group.aelysium.rustyconnector.proxy.util.AddressUtil;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
 
 public class HandshakePingListener {
+    private final ServerTimeouts timeouts;
+    private final SessionTickets tickets;
+    /**
+     * The last metadata that each server reported, along with its version.
+     * Delta pings are applied on top of this, so that the proxy can tell when it's missed a change.
+     */
+    private final Map<String, Reported> reported = new ConcurrentHashMap<>();
+
+    private final DoubleSupplier pingRate;
+    /**
+     * The share of the ping rate, in seconds between pings, that each server was last told about.
+     */
+    private final Map<String, Double> shares = new ConcurrentHashMap<>();
+
+    /**
+     * @param timeouts The deadlines that pings refresh.
+     * @param tickets Issues session tickets to servers as they register.
+     * @param pingRate The total number of pings per second that the proxy wants to receive, which is handed out to servers in every response.
+     */
+    public HandshakePingListener(ServerTimeouts timeouts, SessionTickets tickets, DoubleSupplier pingRate) {
+        this.timeouts = timeouts;
+        this.tickets = tickets;
+        this.pingRate = pingRate;
+    }
+
     @PacketListener(MagicLinkCore.Packets.Ping.class)
     public PacketListener.Response handle(WebSocketMagicLink.Packets.Ping packet) {
         try {
             Server server = RC.P.Server(packet.local().id()).orElseThrow();
 
-            server.setTimeout(15);
+            server.refresh();
+            this.timeouts.refresh(server.id(), server.timeout(), TimeUnit.SECONDS);
             server.setPlayerCount(packet.playerCount());
+            if(!this.sync(server, packet))
+                return PacketListener.Response.error(
+                        "The proxy's copy of the server's metadata is out of date. Send a full snapshot.",
+                        Map.of(MagicLinkCore.Packets.Ping.Parameters.RESYNC, new Parameter(true))
+                ).asReply();
+            // Servers send snapshots when they've just (re)connected, so that's when they're handed a fresh ticket.
+            // Servers which predate delta pings send a snapshot every time, and wouldn't use a ticket anyway.
+            if(packet.snapshot() && packet.metadataVersion() != null) {
+                this.shares.put(server.id(), this.share());
+                Map<String, Parameter> parameters = new HashMap<>(this.schedule());
+                parameters.put(MagicLinkCore.Packets.Ping.Parameters.TICKET, new Parameter(this.tickets.issue(server.id())));
+                return PacketListener.Response.success("Refreshed the server's timeout!", parameters).asReply();
+            }
+
+            // Servers are only told about their share of the ping rate again once it's changed enough to matter, so that pings don't all need replies.
+            double share = this.share();
+            Double handed = this.shares.get(server.id());
+            if(handed == null || Math.abs(share - handed) > handed * 0.2) {
+                this.shares.put(server.id(), share);
+                return PacketListener.Response.success("Refreshed the server's timeout!", this.schedule()).asReply();
+            }
             return PacketListener.Response.success("Refreshed the server's timeout!");
         } catch (Exception ignore) {}
 
+        if(!packet.snapshot())
+            return PacketListener.Response.error(
+                    "The server isn't registered. Send a full snapshot to register.",
+                    Map.of(MagicLinkCore.Packets.Ping.Parameters.RESYNC, new Parameter(true))
+            ).asReply();
+
         try {
             Flux<Family> familyFlux = RC.P.Families().find(packet.targetFamily());
             Family family = familyFlux.get(10, TimeUnit.SECONDS);
@@ -48,17 +109,118 @@ public class HandshakePingListener {
                 metadata,
                 15
             );
-            RC.P.Kernel().registerServer(familyFlux, configuration);
+            Server server = RC.P.Kernel().registerServer(familyFlux, configuration);
+            this.timeouts.refresh(server.id(), server.timeout(), TimeUnit.SECONDS);
+            this.shares.put(server.id(), this.share());
+            if(packet.metadataVersion() != null) this.reported.put(server.id(), new Reported(packet.metadataVersion(), packet.metadataJSON().deepCopy(), false));
 
+            Map<String, Parameter> parameters = new HashMap<>(this.schedule());
+            parameters.put(MagicLinkCore.Packets.Ping.Parameters.TICKET, new Parameter(this.tickets.issue(server.id())));
             return PacketListener.Response.success(
                     "Connected to the proxy! Registered into the family `"+family.id()+"` using the configuration `"+packet.targetFamily()+"`.",
-                    Map.of(
-                            "i", new Parameter(10)
-                    )
+                    parameters
             ).asReply();
         } catch(Exception e) {
             RC.Error(Error.from(e));
             return PacketListener.Response.error("Attempt to connect to proxy failed! " + e.getMessage()).asReply();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Applies the metadata carried by a registered server's ping.
+     * @return `false` if the ping doesn't follow on from the last metadata the server reported, and a full snapshot is needed.
+     */
+    boolean sync(Server server, MagicLinkCore.Packets.Ping packet) {
+        Integer version = packet.metadataVersion();
+        if(version == null) return true; // The server predates delta pings, so its metadata isn't tracked.
+
+        JsonObject metadata;
+        if(packet.snapshot()) {
+            metadata = packet.metadataJSON().deepCopy();
+
+            // Anything the server reported before, but has since dropped, would otherwise linger on the proxy forever.
+            // Metadata the server never reported itself, such as what it inherited from its family, is left alone.
+            Reported last = this.reported.get(server.id());
+            if(last != null)
+                for (String key : last.metadata().keySet())
+                    if(!metadata.has(key)) server.removeMetadata(key);
+
+            metadata.entrySet().forEach(e -> this.store(server, e.getKey(), e.getValue()));
+        } else {
+            Reported last = this.reported.get(server.id());
+            if(last == null || last.stale()) return false;
+
+            JsonObject changed = packet.metadataJSON();
+            List<String> removed = packet.removedMetadata();
+            boolean changes = !changed.isEmpty() || !removed.isEmpty();
+            if(version != last.version() + (changes ? 1 : 0)) {
+                this.reported.put(server.id(), last.asStale());
+                return false;
+            }
+
+            metadata = last.metadata();
+            if(changes) {
+                metadata = metadata.deepCopy();
+                for (Map.Entry<String, JsonElement> entry : changed.entrySet()) {
+                    metadata.add(entry.getKey(), entry.getValue());
+                    this.store(server, entry.getKey(), entry.getValue());
+                }
+                for (String key : removed) {
+                    metadata.remove(key);
+                    server.removeMetadata(key);
+                }
+            }
+        }
+
+        if(!Objects.equals(packet.metadataHash(), MagicLinkCore.Packets.Ping.hash(metadata))) {
+            // The metadata which was applied is still what the server last reported, so the next snapshot can tell what's been dropped since.
+            this.reported.put(server.id(), new Reported(version, metadata, true));
+            return false;
+        }
+        this.reported.put(server.id(), new Reported(version, metadata, false));
+        return true;
+    }
+
+    /**
+     * Forgets everything tracked for the server. Should be called whenever the server is unregistered.
+     * @param id The id of the server.
+     */
+    public void forget(String id) {
+        this.reported.remove(id);
+        this.shares.remove(id);
+    }
+
+    /**
+     * The parameters which servers size their ping intervals from.
+     */
+    private Map<String, Parameter> schedule() {
+        return Map.of(
+                MagicLinkCore.Packets.Ping.Parameters.INTERVAL, new Parameter(10),
+                MagicLinkCore.Packets.Ping.Parameters.PING_RATE, new Parameter(this.pingRate.getAsDouble()),
+                MagicLinkCore.Packets.Ping.Parameters.SERVERS, new Parameter(Math.max(1, this.timeouts.tracked()))
+        );
+    }
+
+    /**
+     * @return How many seconds each server should wait between pings for all of them to stay within the ping rate.
+     */
+    private double share() {
+        double rate = this.pingRate.getAsDouble();
+        if(rate <= 0) return 0;
+        return Math.max(1, this.timeouts.tracked()) / rate;
+    }
+
+    private void store(Server server, String key, JsonElement value) {
+        server.removeMetadata(key);
+        server.storeMetadata(key, Parameter.fromJSON(value).getOriginalValue());
+    }
+
+    /**
+     * @param stale Whether a delta was missed since this was reported, in which case only a snapshot can be applied on top of it.
+     */
+    private record Reported(int version, JsonObject metadata, boolean stale) {
+        private Reported asStale() {
+            return new Reported(this.version, this.metadata, true);
+        }
+    }
+}
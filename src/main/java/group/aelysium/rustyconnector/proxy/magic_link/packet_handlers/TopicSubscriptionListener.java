@@ -0,0 +1,30 @@
+package group.aelysium.rustyconnector.proxy.magic_link.packet_handlers;
+
+import group.aelysium.rustyconnector.RC;
+import group.aelysium.rustyconnector.common.errors.Error;
+import group.aelysium.rustyconnector.common.magic_link.MagicLinkCore;
+import group.aelysium.rustyconnector.common.magic_link.packet.PacketListener;
+import group.aelysium.rustyconnector.proxy.magic_link.TopicSubscriptions;
+
+public class TopicSubscriptionListener {
+    private final TopicSubscriptions subscriptions;
+
+    public TopicSubscriptionListener(TopicSubscriptions subscriptions) {
+        this.subscriptions = subscriptions;
+    }
+
+    @PacketListener(MagicLinkCore.Packets.TopicSubscriptions.class)
+    public PacketListener.Response handle(MagicLinkCore.Packets.TopicSubscriptions packet) {
+        try {
+            // Only registered servers can receive packets, so there's no point indexing anyone else.
+            if(RC.P.Server(packet.local().id()).isEmpty())
+                return PacketListener.Response.error("The server isn't registered to this proxy.");
+
+            this.subscriptions.replace(packet.local().id(), packet.topics());
+            return PacketListener.Response.success("Successfully updated the server's topic subscriptions.");
+        } catch (Exception e) {
+            RC.Error(Error.from(e));
+            return PacketListener.Response.error("There was an issue updating the server's topic subscriptions. "+e.getMessage());
+        }
+    }
+}
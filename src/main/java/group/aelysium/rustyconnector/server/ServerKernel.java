@@ -1,12 +1,12 @@
 package group.aelysium.rustyconnector.server;
 
 import group.aelysium.rustyconnector.RC;
-import group.aelysium.rustyconnector.common.magic_link.packet.PacketListener;
 import group.aelysium.rustyconnector.common.RCKernel;
 import group.aelysium.rustyconnector.common.magic_link.MagicLinkCore;
 import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
 import group.aelysium.rustyconnector.common.util.Parameter;
 import group.aelysium.rustyconnector.proxy.util.AddressUtil;
+import group.aelysium.rustyconnector.proxy.util.LiquidTimestamp;
 import net.kyori.adventure.text.Component;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -16,6 +16,7 @@ import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static net.kyori.adventure.text.Component.*;
 import static net.kyori.adventure.text.Component.text;
@@ -23,6 +24,10 @@ import static net.kyori.adventure.text.JoinConfiguration.newlines;
 import static net.kyori.adventure.text.format.NamedTextColor.DARK_GRAY;
 
 public class ServerKernel extends RCKernel<ServerAdapter> {
+    /**
+     * How long to wait for the proxy to respond to requests made by this server.
+     */
+    public static final LiquidTimestamp requestTimeout = LiquidTimestamp.from(15, TimeUnit.SECONDS);
     private final String targetFamily;
     private final InetSocketAddress address;
 
@@ -76,34 +81,24 @@ public class ServerKernel extends RCKernel<ServerAdapter> {
 
     /**
      * Locks this Server so that players can't join it via the family's load balancer.
+     * @return A future that completes to the response received from the proxy, or completes exceptionally if no response is received in time.
      */
     public CompletableFuture<MagicLinkCore.Packets.Response> lock() {
-        CompletableFuture<MagicLinkCore.Packets.Response> response = new CompletableFuture<>();
-        Packet.New()
+        return Packet.New()
                 .identification(Packet.Type.from("RC","SL"))
                 .addressTo(Packet.SourceIdentifier.allAvailableProxies())
-                .send()
-                .onReply(MagicLinkCore.Packets.Response.class, packet -> {
-                    response.complete(packet);
-                    return PacketListener.Response.success("Successfully indicated the status of the server's lock request");
-                });
-        return response;
+                .request(MagicLinkCore.Packets.Response.class, requestTimeout);
     }
 
     /**
      * Unlocks this Server so that players can join it via the family's load balancer.
+     * @return A future that completes to the response received from the proxy, or completes exceptionally if no response is received in time.
      */
     public CompletableFuture<MagicLinkCore.Packets.Response> unlock() {
-        CompletableFuture<MagicLinkCore.Packets.Response> response = new CompletableFuture<>();
-        Packet.New()
+        return Packet.New()
                 .identification(Packet.Type.from("RC","SU"))
                 .addressTo(Packet.SourceIdentifier.allAvailableProxies())
-                .send()
-                .onReply(MagicLinkCore.Packets.Response.class, packet -> {
-                    response.complete(packet);
-                    return PacketListener.Response.success("Successfully indicated the status of the server's unlock request");
-                });
-        return response;
+                .request(MagicLinkCore.Packets.Response.class, requestTimeout);
     }
     
     /**
@@ -112,17 +107,12 @@ public class ServerKernel extends RCKernel<ServerAdapter> {
      * @param playerID The id of the player to send.
      * @param target The id of the family or server to send the player to.
      * @param flags A set of flags to use.
-     * @return A future that completes to the response received from the proxy.
+     * @return A future that completes to the response received from the proxy, or completes exceptionally if no response is received in time.
      */
     public CompletableFuture<MagicLinkCore.Packets.Response> sendID(String playerID, String target, Set<MagicLinkCore.Packets.SendPlayer.Flag> flags) {
-        CompletableFuture<MagicLinkCore.Packets.Response> response = new CompletableFuture<>();
-        MagicLinkCore.Packets.SendPlayer
-            .sendID(playerID, target, flags)
-            .onReply(MagicLinkCore.Packets.Response.class, packet -> {
-                response.complete(packet);
-                return PacketListener.Response.success("Successfully indicated the status of the server's send request.");
-            });
-        return response;
+        return MagicLinkCore.Packets.SendPlayer
+            .prepareID(playerID, target, flags)
+            .request(MagicLinkCore.Packets.Response.class, requestTimeout);
     }
     
     /**
@@ -131,17 +121,12 @@ public class ServerKernel extends RCKernel<ServerAdapter> {
      * @param playerUsername The username of the player to send.
      * @param target The id of the family or server to send the player to.
      * @param flags A set of flags to use.
-     * @return A future that completes to the response received from the proxy.
+     * @return A future that completes to the response received from the proxy, or completes exceptionally if no response is received in time.
      */
     public CompletableFuture<MagicLinkCore.Packets.Response> sendUsername(String playerUsername, String target, Set<MagicLinkCore.Packets.SendPlayer.Flag> flags) {
-        CompletableFuture<MagicLinkCore.Packets.Response> response = new CompletableFuture<>();
-        MagicLinkCore.Packets.SendPlayer
-            .sendUsername(playerUsername, target, flags)
-            .onReply(MagicLinkCore.Packets.Response.class, packet -> {
-                response.complete(packet);
-                return PacketListener.Response.success("Successfully indicated the status of the server's send request.");
-            });
-        return response;
+        return MagicLinkCore.Packets.SendPlayer
+            .prepareUsername(playerUsername, target, flags)
+            .request(MagicLinkCore.Packets.Response.class, requestTimeout);
     }
 
     @Override
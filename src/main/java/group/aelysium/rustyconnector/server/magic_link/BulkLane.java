@@ -0,0 +1,223 @@
+package group.aelysium.rustyconnector.server.magic_link;
+
+import group.aelysium.rustyconnector.RC;
+import group.aelysium.rustyconnector.common.cache.TimingWheel;
+import group.aelysium.rustyconnector.common.errors.Error;
+import group.aelysium.rustyconnector.common.magic_link.QueueDelay;
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.common.util.TokenBucket;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds back bulk packets so that they're only handed to the websocket as fast as the bulk rate allows.<br/>
+ * The websocket sends everything it's given in order, so without this a burst of bulk packets would sit in its send queue ahead of any control packets sent after them.
+ * Control packets skip this lane entirely, so they only ever wait behind the bulk packets which the rate limit already let through.
+ */
+public class BulkLane implements AutoCloseable {
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final TokenBucket limit;
+    private final QueueDelay delay = new QueueDelay();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final int capacity;
+    private final Consumer<Packet.Local> onDrop;
+
+    /**
+     * @param capacity The maximum number of packets which can be waiting.
+     * @param rate Supplies the number of bytes per second which can be let through. `0` or less to not limit them.
+     * @param onDrop Called with each packet that's still waiting when the lane is closed, so that it can be failed.
+     */
+    public BulkLane(int capacity, @NotNull LongSupplier rate, @NotNull Consumer<Packet.Local> onDrop) {
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be larger than 0.");
+        this.capacity = capacity;
+        this.limit = new TokenBucket(rate);
+        this.onDrop = onDrop;
+    }
+
+    /**
+     * Queues a write, which runs as soon as the rate limit allows it.
+     * @param length The number of bytes that the write sends.
+     * @param packet The packet being written, or `null` if the write is a batch of packets.
+     * @param write Sends the packet. Returns `false` if the connection was lost, in which case the lane counts it as undelivered,
+     *              and it's up to the write to buffer or fail the packet.
+     * @return `true` if the write was queued. `false` if the lane is full or closed.
+     */
+    public boolean offer(int length, @Nullable Packet.Local packet, @NotNull Write write) {
+        if(this.closed.get()) return false;
+        if(this.size.incrementAndGet() > this.capacity) {
+            this.size.decrementAndGet();
+            return false;
+        }
+        this.entries.offer(new Entry(length, packet, write, System.nanoTime()));
+
+        if(this.draining.compareAndSet(false, true)) this.drain();
+        return true;
+    }
+
+    /**
+     * Runs queued writes until the lane is empty or the rate limit holds it back, in which case it resumes once the limit allows.
+     * Must only be called by whoever currently owns {@link #draining}.
+     */
+    private void drain() {
+        while (true) {
+            Entry entry = this.entries.peek();
+            long wait = entry == null ? 0 : this.limit.take(entry.length);
+            if(entry == null || wait > 0) {
+                if(wait > 0) this.resume(wait);
+                this.draining.set(false);
+                if(!this.entries.isEmpty() && !this.resumeScheduled.get() && this.draining.compareAndSet(false, true)) continue;
+                return;
+            }
+
+            // Removed by identity rather than polled, in case the entry was taken out of the lane while it was waiting for the rate limit.
+            if(!this.entries.remove(entry)) continue;
+            this.size.decrementAndGet();
+            this.delay.record(entry.queuedAt);
+            try {
+                if(!entry.write.write()) this.failed.increment();
+            } catch (Exception e) {
+                this.failed.increment();
+                RC.Error(Error.from(e).whileAttempting("To send a bulk packet."));
+            }
+        }
+    }
+
+    private void resume(long wait) {
+        this.throttled.increment();
+        if(!this.resumeScheduled.compareAndSet(false, true)) return;
+        try {
+            // Timing wheel tasks mustn't block, so the writes themselves run somewhere else.
+            TimingWheel.shared().schedule(() -> {
+                this.resumeScheduled.set(false);
+                try {
+                    this.executor.execute(() -> {
+                        if(this.draining.compareAndSet(false, true)) this.drain();
+                    });
+                } catch (RejectedExecutionException ignore) {}
+            }, wait, TimeUnit.NANOSECONDS);
+        } catch (IllegalStateException e) {
+            this.resumeScheduled.set(false);
+        }
+    }
+
+    /**
+     * @return The number of packets waiting.
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return How long packets waited before they were handed to the websocket.
+     */
+    public @NotNull QueueDelay queueDelay() {
+        return this.delay;
+    }
+
+    /**
+     * @return The number of times that packets were held back by the rate limit.
+     */
+    public long throttled() {
+        return this.throttled.sum();
+    }
+
+    /**
+     * @return The number of packets which weren't sent, because the connection was lost or the lane was closed before they could be.
+     */
+    public long failed() {
+        return this.failed.sum();
+    }
+
+    /**
+     * Takes every packet which is still waiting out of the lane, oldest first, without writing it.
+     * This is for moving packets to another connection. Batches were encoded for this connection, so they're only counted as undelivered.
+     * @param receiver Given each packet, and when it was queued in {@link System#nanoTime()}.
+     */
+    public void drainTo(@NotNull BiConsumer<Packet.Local, Long> receiver) {
+        Entry entry;
+        while ((entry = this.entries.poll()) != null) {
+            this.size.decrementAndGet();
+            if(entry.packet == null) {
+                this.failed.increment();
+                continue;
+            }
+            try {
+                receiver.accept(entry.packet, entry.queuedAt);
+            } catch (Exception e) {
+                RC.Error(Error.from(e).whileAttempting("To move a bulk packet which was never sent."));
+            }
+        }
+    }
+
+    /**
+     * Closes the lane, and hands every packet which is still waiting to `onDrop`.
+     * Batches can't be failed packet by packet, so they're only counted as undelivered.
+     */
+    @Override
+    public void close() {
+        this.closed.set(true);
+        Entry entry;
+        while ((entry = this.entries.poll()) != null) {
+            this.size.decrementAndGet();
+            this.failed.increment();
+            if(entry.packet == null) continue;
+            try {
+                this.onDrop.accept(entry.packet);
+            } catch (Exception e) {
+                RC.Error(Error.from(e).whileAttempting("To fail a bulk packet which was never sent."));
+            }
+        }
+        this.executor.shutdown();
+    }
+
+    /**
+     * Sends a single packet.
+     */
+    @FunctionalInterface
+    public interface Write {
+        /**
+         * @return `false` if the packet couldn't be sent because there's no connection.
+         */
+        boolean write() throws Exception;
+    }
+
+    /**
+     * Compared by identity, so that an entry can be removed from the lane exactly once.
+     */
+    private static final class Entry {
+        private final int length;
+        private final @Nullable Packet.Local packet;
+        private final Write write;
+        private final long queuedAt;
+
+        private Entry(int length, @Nullable Packet.Local packet, Write write, long queuedAt) {
+            this.length = length;
+            this.packet = packet;
+            this.write = write;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
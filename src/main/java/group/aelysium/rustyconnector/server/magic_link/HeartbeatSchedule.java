@@ -0,0 +1,108 @@
+package group.aelysium.rustyconnector.server.magic_link;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long the server waits between pings.<br/>
+ * The interval shrinks whenever the server's state changes, more so the faster its player count is moving, and grows back while the server is idle.
+ * It never grows past the longest interval that the proxy allows, and never shrinks below the server's share of the proxy's ping rate.
+ * <br/><br/>
+ * Every interval is jittered, so that servers which all connected at once, such as after a proxy restart, drift apart instead of pinging in lockstep.
+ */
+public class HeartbeatSchedule {
+    /**
+     * The shortest interval, in milliseconds, that a server will ever ping on.
+     */
+    public static final long MIN_INTERVAL = 1000;
+    /**
+     * How far, as a fraction of the interval, each interval may be jittered either way.
+     */
+    public static final double JITTER = 0.2;
+    /**
+     * How much the interval grows by after each ping where nothing changed.
+     */
+    private static final double BACKOFF = 1.25;
+
+    private volatile long max = TimeUnit.SECONDS.toMillis(10);
+    private volatile long floor = MIN_INTERVAL;
+    private long interval = MIN_INTERVAL;
+    private int players = -1;
+
+    /**
+     * Updates the longest interval that the proxy allows between pings.
+     * @param seconds The interval in seconds.
+     */
+    public void maxInterval(int seconds) {
+        this.max = Math.max(MIN_INTERVAL, TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    /**
+     * Updates the server's share of the proxy's ping rate.
+     * @param pingRate The total number of pings per second that the proxy wants to receive. `0` if the proxy doesn't limit pings.
+     * @param servers The number of servers sharing the ping rate.
+     */
+    public void budget(double pingRate, int servers) {
+        if(pingRate <= 0) {
+            this.floor = MIN_INTERVAL;
+            return;
+        }
+        this.floor = Math.max(MIN_INTERVAL, (long) (Math.max(1, servers) / pingRate * 1000));
+    }
+
+    /**
+     * Works out how long to wait before the next ping.
+     * Only the heartbeat calls this, so it's never called concurrently.
+     * @param playerCount The server's current player count.
+     * @param changed Whether anything else about the server changed since its last ping.
+     * @return The delay in milliseconds.
+     */
+    public long next(int playerCount, boolean changed) {
+        // The interval is kept far enough under the max that jittering it can never push a ping past it.
+        long max = (long) (this.max / (1 + JITTER));
+        long floor = Math.min(this.floor, max);
+
+        int moved = this.players < 0 ? 0 : Math.abs(playerCount - this.players);
+        this.players = playerCount;
+
+        if(moved > 0 || changed) this.interval = this.interval / (2 + moved);
+        else this.interval = (long) (this.interval * BACKOFF);
+        this.interval = Math.clamp(this.interval, floor, max);
+
+        return jitter(this.interval);
+    }
+
+    /**
+     * Works out how long to wait before the first ping after connecting.
+     * This is a random point within the shortest allowed interval, so that servers which reconnect together don't also register together.
+     * @return The delay in milliseconds.
+     */
+    public long initial() {
+        return ThreadLocalRandom.current().nextLong(Math.min(this.floor, this.max) + 1);
+    }
+
+    /**
+     * Forgets how active the server has been. Should be called whenever the server loses its connection to the proxy.
+     * The server's share of the ping rate is kept, so that its next {@link #initial()} ping is spread out as far as its budget was.
+     */
+    public void reset() {
+        this.interval = MIN_INTERVAL;
+        this.players = -1;
+    }
+
+    /**
+     * @return The current interval, before jitter, in milliseconds.
+     */
+    public long interval() {
+        return this.interval;
+    }
+
+    private static long jitter(long interval) {
+        return (long) (interval * (1 - JITTER + ThreadLocalRandom.current().nextDouble() * 2 * JITTER));
+    }
+
+    @Override
+    public String toString() {
+        return this.interval+"ms (between "+Math.min(this.floor, this.max)+"ms and "+this.max+"ms, jittered by up to "+(int) (JITTER * 100)+"%)";
+    }
+}
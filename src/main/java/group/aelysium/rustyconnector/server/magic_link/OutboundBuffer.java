@@ -0,0 +1,219 @@
+package group.aelysium.rustyconnector.server.magic_link;
+
+import group.aelysium.rustyconnector.RC;
+import group.aelysium.rustyconnector.common.cache.TimingWheel;
+import group.aelysium.rustyconnector.common.errors.Error;
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Holds packets published while the server has no connection to the proxy, so that they can be sent, in order, once it reconnects.<br/>
+ * The buffer is bounded, and packets published while it's full are dropped straight away.
+ * Every buffered packet also has its own time to live, and packets which are still buffered once it passes are expired,
+ * so that nothing waits on a packet which will never be sent.
+ */
+public class OutboundBuffer implements AutoCloseable {
+    private final ConcurrentLinkedDeque<Entry> entries = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final int capacity;
+    private final Consumer<Packet.Local> onExpire;
+    private final LongAdder buffered = new LongAdder();
+    private final LongAdder flushed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * @param capacity The maximum number of packets that can be buffered at once.
+     * @param onExpire Called with each packet that's dropped or expires before it could be sent.
+     */
+    public OutboundBuffer(int capacity, @NotNull Consumer<Packet.Local> onExpire) {
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be larger than 0.");
+        this.capacity = capacity;
+        this.onExpire = onExpire;
+    }
+
+    /**
+     * Buffers the packet.
+     * @param packet The packet to buffer.
+     * @param ttl How long the packet can wait to be sent.
+     * @param unit The unit of `ttl`.
+     * @return `true` if the packet was buffered. `false` if the buffer is full, in which case the packet has been dropped.
+     */
+    public boolean offer(@NotNull Packet.Local packet, long ttl, @NotNull TimeUnit unit) {
+        if(this.size.incrementAndGet() > this.capacity) {
+            this.size.decrementAndGet();
+            this.dropped.increment();
+            this.fail(packet);
+            return false;
+        }
+
+        Entry entry = new Entry(packet, System.nanoTime() + unit.toNanos(ttl));
+        entry.timeout = TimingWheel.shared().schedule(() -> this.expire(entry), ttl, unit);
+        this.entries.offerLast(entry);
+        this.buffered.increment();
+        return true;
+    }
+
+    /**
+     * Sends every buffered packet, oldest first, until the buffer is empty or a packet can't be sent.
+     * A packet which can't be sent stays at the front of the buffer for the next flush.
+     * @param sender Sends a packet. Returns `false` if the packet couldn't be sent because the connection was lost again.
+     */
+    public void flush(@NotNull Predicate<Packet.Local> sender) {
+        Entry entry;
+        while ((entry = this.entries.pollFirst()) != null) {
+            if(!entry.claim()) continue;
+
+            boolean sent;
+            try {
+                sent = sender.test(entry.packet);
+            } catch (Exception e) {
+                RC.Error(Error.from(e).whileAttempting("To flush a buffered packet."));
+                sent = false;
+            }
+
+            if(!sent) {
+                entry.claimed.set(false);
+                this.entries.offerFirst(entry);
+                // The entry may have passed its time to live while it was being sent.
+                if(entry.timeout.expired()) this.expire(entry);
+                return;
+            }
+
+            entry.timeout.cancel();
+            this.size.decrementAndGet();
+            this.flushed.increment();
+        }
+    }
+
+    /**
+     * Moves every buffered packet into another buffer, oldest first, keeping whatever is left of each packet's time to live.
+     * Packets whose time to live has already passed are expired instead, and any which the other buffer has no room for are dropped by it.
+     * @param target The buffer to move the packets into.
+     */
+    public void transferTo(@NotNull OutboundBuffer target) {
+        Entry entry;
+        while ((entry = this.entries.pollFirst()) != null) {
+            if(!entry.claim()) continue;
+            entry.timeout.cancel();
+            this.size.decrementAndGet();
+
+            long remaining = entry.expiresAt - System.nanoTime();
+            if(remaining <= 0) {
+                this.expired.increment();
+                this.fail(entry.packet);
+                continue;
+            }
+            target.offer(entry.packet, remaining, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void expire(Entry entry) {
+        if(!entry.claim()) return;
+        this.entries.remove(entry);
+        this.size.decrementAndGet();
+        this.expired.increment();
+        this.fail(entry.packet);
+    }
+
+    private void fail(Packet.Local packet) {
+        try {
+            this.executor.execute(() -> {
+                try {
+                    this.onExpire.accept(packet);
+                } catch (Exception e) {
+                    RC.Error(Error.from(e).whileAttempting("To expire a buffered packet."));
+                }
+            });
+        } catch (RejectedExecutionException ignore) {}
+    }
+
+    /**
+     * @return The number of packets currently buffered.
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return The total number of packets which have been buffered.
+     */
+    public long buffered() {
+        return this.buffered.sum();
+    }
+
+    /**
+     * @return The total number of buffered packets which were eventually sent.
+     */
+    public long flushed() {
+        return this.flushed.sum();
+    }
+
+    /**
+     * @return The total number of packets which were dropped because the buffer was full.
+     */
+    public long dropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * @return The total number of buffered packets which expired before they could be sent.
+     */
+    public long expired() {
+        return this.expired.sum();
+    }
+
+    /**
+     * Expires every buffered packet.
+     */
+    @Override
+    public void close() {
+        Entry entry;
+        while ((entry = this.entries.pollFirst()) != null) {
+            if(!entry.claim()) continue;
+            entry.timeout.cancel();
+            this.size.decrementAndGet();
+            this.expired.increment();
+            this.onExpire.accept(entry.packet);
+        }
+        this.executor.shutdown();
+    }
+
+    private static class Entry {
+        private final Packet.Local packet;
+        /**
+         * When the packet's time to live passes, in {@link System#nanoTime()}.
+         */
+        private final long expiresAt;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private TimingWheel.Timeout timeout;
+
+        private Entry(Packet.Local packet, long expiresAt) {
+            this.packet = packet;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Claims the entry, so that it's either sent or expired, never both.
+         */
+        private boolean claim() {
+            return this.claimed.compareAndSet(false, true);
+        }
+    }
+}
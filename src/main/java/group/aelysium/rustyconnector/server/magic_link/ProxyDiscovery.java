@@ -0,0 +1,222 @@
+package group.aelysium.rustyconnector.server.magic_link;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import group.aelysium.rustyconnector.RC;
+import group.aelysium.rustyconnector.common.errors.Error;
+import group.aelysium.rustyconnector.common.magic_link.ProxyAnnouncement;
+import group.aelysium.rustyconnector.common.util.IPV6Broadcaster;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Finds proxies by listening for the {@link ProxyAnnouncement}s they broadcast.<br/>
+ * Every proxy which has been heard from is written to a cache file, so that after a restart the server can reconnect
+ * straight away to the proxy it last knew about, instead of waiting for the next round of announcements.
+ */
+public class ProxyDiscovery implements AutoCloseable {
+    /**
+     * How long cached proxies are remembered for without being heard from.
+     */
+    private static final long maxCacheAge = TimeUnit.DAYS.toMillis(1);
+    /**
+     * How often the cache is rewritten just to keep its timestamps current, if nothing else about the proxies has changed.
+     */
+    private static final long refreshInterval = TimeUnit.MINUTES.toMillis(1);
+
+    private final IPV6Broadcaster broadcaster;
+    private final @Nullable Path cacheFile;
+    private final Map<String, ProxyAnnouncement> proxies = new ConcurrentHashMap<>();
+    private final List<Consumer<ProxyAnnouncement>> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(Thread.ofVirtual().factory());
+    private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final LongAdder announcements = new LongAdder();
+    private volatile long lastSaved = 0;
+
+    /**
+     * @param broadcaster The broadcaster to listen for announcements on.
+     * @param cacheFile The file to cache discovered proxies in. `null` to not cache them.
+     */
+    public ProxyDiscovery(@NotNull IPV6Broadcaster broadcaster, @Nullable Path cacheFile) {
+        this.broadcaster = broadcaster;
+        this.cacheFile = cacheFile;
+
+        this.load();
+        this.broadcaster.onMessage(this::handle);
+        if(this.proxies.values().stream().noneMatch(ProxyAnnouncement::fresh)) this.solicit();
+    }
+
+    /**
+     * Asks every proxy to announce itself now, instead of waiting for their next announcements.
+     */
+    public void solicit() {
+        try {
+            this.broadcaster.sendEncrypted(ProxyAnnouncement.solicitation());
+        } catch (Exception e) {
+            RC.Error(Error.from(e).whileAttempting("To ask proxies to announce themselves"));
+        }
+    }
+
+    private void load() {
+        if(this.cacheFile == null || !Files.exists(this.cacheFile)) return;
+        try {
+            JsonArray cached = JsonParser.parseString(Files.readString(this.cacheFile, StandardCharsets.UTF_8)).getAsJsonArray();
+            long now = System.currentTimeMillis();
+            for (JsonElement element : cached) {
+                ProxyAnnouncement announcement = ProxyAnnouncement.fromJSON(element.getAsJsonObject());
+                if(announcement == null || now - announcement.announcedAt() > maxCacheAge) continue;
+                this.proxies.merge(announcement.proxy(), announcement, (a, b) -> a.announcedAt() >= b.announcedAt() ? a : b);
+            }
+        } catch (Exception e) {
+            RC.Error(Error.from(e).whileAttempting("To load the discovered proxies cached in "+this.cacheFile));
+        }
+    }
+
+    /**
+     * Listeners run on the broadcaster's thread, so anything slow is handed off.
+     */
+    private void handle(String message) {
+        if(this.closed.get()) return;
+        ProxyAnnouncement announcement = ProxyAnnouncement.parse(message);
+        if(announcement == null) return;
+        announcement = announcement.received();
+        this.announcements.increment();
+
+        ProxyAnnouncement previous = this.proxies.put(announcement.proxy(), announcement);
+        boolean moved = previous == null || !previous.address().toString().equals(announcement.address().toString());
+        if(moved || announcement.announcedAt() - this.lastSaved > refreshInterval) this.save();
+
+        for (Consumer<ProxyAnnouncement> listener : this.listeners) {
+            try {
+                listener.accept(announcement);
+            } catch (Exception e) {
+                RC.Error(Error.from(e).whileAttempting("To handle the announcement of the proxy "+announcement.proxy()));
+            }
+        }
+    }
+
+    /**
+     * Writes the cache file in the background. Saves requested while one is already waiting are merged into it.
+     */
+    private void save() {
+        if(this.cacheFile == null) return;
+        if(!this.saveScheduled.compareAndSet(false, true)) return;
+        try {
+            this.writer.execute(() -> {
+                this.saveScheduled.set(false);
+                this.write();
+            });
+        } catch (RejectedExecutionException e) {
+            this.saveScheduled.set(false);
+        }
+    }
+
+    private void write() {
+        if(this.cacheFile == null) return;
+        JsonArray cached = new JsonArray();
+        this.proxies.values().forEach(p -> cached.add(p.toJSON()));
+
+        try {
+            Path directory = this.cacheFile.toAbsolutePath().getParent();
+            if(directory != null) Files.createDirectories(directory);
+
+            // Written next to the cache and then moved over it, so that a crash mid-write never leaves a corrupted cache behind.
+            Path temporary = this.cacheFile.resolveSibling(this.cacheFile.getFileName()+".tmp");
+            Files.writeString(temporary, cached.toString(), StandardCharsets.UTF_8);
+            try {
+                Files.move(temporary, this.cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, this.cacheFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            this.lastSaved = System.currentTimeMillis();
+        } catch (IOException e) {
+            RC.Error(Error.from(e).whileAttempting("To cache the discovered proxies in "+this.cacheFile));
+        }
+    }
+
+    /**
+     * Picks the proxy that a server should connect to.
+     * Of the proxies which are still announcing themselves, the one with the fewest servers is picked, with ties broken randomly
+     * so that servers starting at the same time spread out. If none are, the most recently heard from proxy in the cache is picked.
+     * @return The proxy to connect to, if any have been discovered.
+     */
+    public @NotNull Optional<ProxyAnnouncement> leastLoaded() {
+        List<ProxyAnnouncement> candidates = new ArrayList<>();
+        int lowest = Integer.MAX_VALUE;
+        for (ProxyAnnouncement proxy : this.proxies.values()) {
+            if(!proxy.fresh()) continue;
+            if(proxy.load() < lowest) {
+                lowest = proxy.load();
+                candidates.clear();
+            }
+            if(proxy.load() == lowest) candidates.add(proxy);
+        }
+        if(!candidates.isEmpty()) return Optional.of(candidates.get(ThreadLocalRandom.current().nextInt(candidates.size())));
+
+        return this.proxies.values().stream().max(Comparator.comparingLong(ProxyAnnouncement::announcedAt));
+    }
+
+    /**
+     * @param proxy The id of the proxy.
+     * @return The proxy's latest announcement, if it's been discovered.
+     */
+    public @NotNull Optional<ProxyAnnouncement> proxy(@NotNull String proxy) {
+        return Optional.ofNullable(this.proxies.get(proxy));
+    }
+
+    /**
+     * @return The latest announcement of every proxy which has been discovered, including those only known from the cache.
+     */
+    public @NotNull List<ProxyAnnouncement> proxies() {
+        return List.copyOf(this.proxies.values());
+    }
+
+    /**
+     * Runs the listener whenever a proxy announces itself.
+     * Listeners run on the broadcaster's thread, so they should be quick.
+     */
+    public void onAnnouncement(@NotNull Consumer<ProxyAnnouncement> listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * @return The number of announcements which have been received.
+     */
+    public long announcements() {
+        return this.announcements.sum();
+    }
+
+    public @NotNull IPV6Broadcaster broadcaster() {
+        return this.broadcaster;
+    }
+
+    /**
+     * Stops listening for announcements, and writes the cache one last time.
+     * The broadcaster is left open, since it may be used for other things.
+     */
+    @Override
+    public void close() {
+        if(!this.closed.compareAndSet(false, true)) return;
+        this.writer.shutdown();
+        try {
+            if(!this.writer.awaitTermination(5, TimeUnit.SECONDS)) this.writer.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.write();
+    }
+}
@@ -0,0 +1,61 @@
+package group.aelysium.rustyconnector.server.magic_link;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponential backoff with decorrelated jitter, for reconnecting to the proxy.<br/>
+ * Each delay is picked at random between the base delay and three times the previous delay, and then capped.
+ * So delays grow quickly while the proxy stays unreachable, but servers which lost their connection at the same moment don't retry at the same moment.
+ */
+public class ReconnectBackoff {
+    private final long base;
+    private final long cap;
+    private long last;
+    private int attempts = 0;
+
+    /**
+     * @param base The shortest delay.
+     * @param cap The longest delay.
+     * @param unit The unit of `base` and `cap`.
+     */
+    public ReconnectBackoff(long base, long cap, @NotNull TimeUnit unit) {
+        if(base <= 0) throw new IllegalArgumentException("base must be positive.");
+        if(cap < base) throw new IllegalArgumentException("cap can't be less than base.");
+        this.base = unit.toMillis(base);
+        this.cap = unit.toMillis(cap);
+        this.last = this.base;
+    }
+
+    /**
+     * @return How long to wait before the next attempt, in milliseconds.
+     */
+    public synchronized long next() {
+        this.attempts++;
+        long upper = Math.min(this.cap, this.last * 3);
+        this.last = upper <= this.base ? this.base : ThreadLocalRandom.current().nextLong(this.base, upper + 1);
+        return this.last;
+    }
+
+    /**
+     * Starts over from the base delay. Should be called once a connection succeeds.
+     */
+    public synchronized void reset() {
+        this.last = this.base;
+        this.attempts = 0;
+    }
+
+    /**
+     * @return The number of attempts made since the last {@link #reset()}.
+     */
+    public synchronized int attempts() {
+        return this.attempts;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return this.attempts+" attempts, last delay "+this.last+"ms (between "+this.base+"ms and "+this.cap+"ms)";
+    }
+}
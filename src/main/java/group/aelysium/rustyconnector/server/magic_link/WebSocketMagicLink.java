@@ -1,12 +1,18 @@
 package group.aelysium.rustyconnector.server.magic_link;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import group.aelysium.rustyconnector.RC;
 import group.aelysium.rustyconnector.common.errors.Error;
 import group.aelysium.rustyconnector.common.magic_link.packet.PacketListener;
 import group.aelysium.rustyconnector.common.util.IPV6Broadcaster;
+import group.aelysium.rustyconnector.common.magic_link.Feature;
+import group.aelysium.rustyconnector.common.magic_link.PacketBatcher;
+import group.aelysium.rustyconnector.common.magic_link.PacketCompressor;
 import group.aelysium.rustyconnector.common.magic_link.PacketCache;
+import group.aelysium.rustyconnector.common.magic_link.PacketDispatcher;
+import group.aelysium.rustyconnector.common.magic_link.ProxyAnnouncement;
 import group.aelysium.rustyconnector.common.magic_link.MagicLinkCore;
 import group.aelysium.rustyconnector.common.util.Parameter;
 import group.aelysium.rustyconnector.common.util.URL;
@@ -16,6 +22,7 @@ import group.aelysium.rustyconnector.server.events.ConnectedEvent;
 import group.aelysium.rustyconnector.server.events.DisconnectedEvent;
 import group.aelysium.rustyconnector.common.crypt.AES;
 import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.common.magic_link.packet.PacketCodec;
 import group.aelysium.rustyconnector.server.magic_link.handlers.HandshakeStalePingListener;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.NamedTextColor;
@@ -26,35 +33,69 @@ import org.java_websocket.handshake.ServerHandshake;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static net.kyori.adventure.text.Component.join;
 import static net.kyori.adventure.text.Component.text;
 import static net.kyori.adventure.text.JoinConfiguration.newlines;
 
+/**
+ * Connects the server to one or more proxies.<br/>
+ * Each proxy gets its own {@link Link}, which registers, pings, buffers and reconnects independently of the others.
+ * Packets addressed to a specific proxy are only sent over the link to that proxy, everything else is sent over every link.
+ */
 public class WebSocketMagicLink extends MagicLinkCore.Server {
     protected final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
-    protected final ScheduledExecutorService connectionExecutor = Executors.newSingleThreadScheduledExecutor();
-    private final LiquidTimestamp retryDelay = LiquidTimestamp.from(10, TimeUnit.SECONDS);
     private final AtomicBoolean disposed = new AtomicBoolean(false);
-    private final AtomicBoolean connectionClosed = new AtomicBoolean(false);
-    private final AtomicBoolean stopHeartbeat = new AtomicBoolean(true);
-    private final AtomicBoolean registered = new AtomicBoolean(false);
-    private final AtomicReference<WebSocketClient> client = new AtomicReference<>(null);
-    private final URL address;
-    
+    private final PacketBatcher<Link> batcher = new PacketBatcher<>(this::batchPolicy, Link::sendBatch);
+    /**
+     * How long packets are buffered for while there's no connection, if their type doesn't have its own time to live.
+     * This is the same as {@link ServerKernel#requestTimeout}, so that a buffered request is never sent, and acted on by the proxy,
+     * after whoever made it has already timed out and given up on it.
+     */
+    private static final LiquidTimestamp defaultBufferTTL = ServerKernel.requestTimeout;
+    private final Map<Packet.Type, LiquidTimestamp> bufferTTLs = new ConcurrentHashMap<>(Map.of(
+            // Pings and disconnects only mean anything at the moment they're sent.
+            Packet.Type.from("RC", "P"), LiquidTimestamp.from(0, TimeUnit.SECONDS),
+            Packet.Type.from("RC", "D"), LiquidTimestamp.from(0, TimeUnit.SECONDS)
+    ));
+    /**
+     * Every packet which is buffered by at least one link. The same packet is buffered by each link it couldn't be sent over straight away,
+     * so it's only failed once none of them are holding it anymore, and none of them, or any other link, sent it.
+     */
+    private final Map<Packet.Local, Delivery> deliveries = new ConcurrentHashMap<>();
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    /**
+     * Picks the proxy to connect to, if the server wasn't given any addresses. `null` otherwise.
+     */
+    private final @Nullable ProxyDiscovery discovery;
+    /**
+     * The link to the proxy picked by {@link #discovery}.
+     */
+    private volatile @Nullable Link discovered = null;
+    private final ExecutorService discoveryExecutor = Executors.newSingleThreadExecutor(Thread.ofVirtual().factory());
+
     public WebSocketMagicLink(
             @NotNull URL address,
             @NotNull Packet.SourceIdentifier self,
@@ -62,249 +103,929 @@ public class WebSocketMagicLink extends MagicLinkCore.Server {
             @NotNull PacketCache cache,
             @Nullable IPV6Broadcaster broadcaster
     ) {
-        super(self, aes, cache, broadcaster);
-        this.address = address.appendPath(MagicLinkCore.endpoint);
-        
+        this(address, self, aes, cache, broadcaster, new PacketDispatcher(256, PacketDispatcher.OverflowPolicy.REJECT));
+    }
+    public WebSocketMagicLink(
+            @NotNull URL address,
+            @NotNull Packet.SourceIdentifier self,
+            @NotNull AES aes,
+            @NotNull PacketCache cache,
+            @Nullable IPV6Broadcaster broadcaster,
+            @NotNull PacketDispatcher dispatcher
+    ) {
+        this(List.of(address), self, aes, cache, broadcaster, dispatcher);
+    }
+
+    /**
+     * @param addresses The Magic Link address of every proxy that the server should connect to.
+     */
+    public WebSocketMagicLink(
+            @NotNull List<URL> addresses,
+            @NotNull Packet.SourceIdentifier self,
+            @NotNull AES aes,
+            @NotNull PacketCache cache,
+            @Nullable IPV6Broadcaster broadcaster,
+            @NotNull PacketDispatcher dispatcher
+    ) {
+        super(self, aes, cache, broadcaster, dispatcher);
+        if(addresses.isEmpty()) throw new IllegalArgumentException("At least one proxy address is required.");
+        this.discovery = null;
+        addresses.forEach(a -> this.links.add(new Link(a.appendPath(MagicLinkCore.endpoint))));
+
         this.listen(new HandshakeStalePingListener());
-        
+
         this.connect();
     }
 
     /**
-     * Attempts to establish a connection to the MagicLink instance running on the proxy.
+     * Connects the server to whichever proxy the discovery picks, rather than to a configured address.
+     * If discovery already knows of a proxy, including one it only knows from its cache, the server connects to it straight away.
+     * Otherwise, it connects as soon as the first proxy announces itself.
+     * If the proxy stops announcing itself before the server has registered to it, the server moves on to another one.
+     * @param discovery Finds proxies to connect to. It's closed along with this MagicLink.
      */
-    public void connect() throws ExceptionInInitializerError {
-        if(this.disposed.get()) return;
-        if(this.client.get() != null && this.client.get().isOpen()) throw new ExceptionInInitializerError("Unable to connect because there's already a websocket connection active.");
-        
+    public WebSocketMagicLink(
+            @NotNull ProxyDiscovery discovery,
+            @NotNull Packet.SourceIdentifier self,
+            @NotNull AES aes,
+            @NotNull PacketCache cache,
+            @NotNull PacketDispatcher dispatcher
+    ) {
+        super(self, aes, cache, discovery.broadcaster(), dispatcher);
+        this.discovery = discovery;
+
+        this.listen(new HandshakeStalePingListener());
+
+        discovery.onAnnouncement(a -> {
+            try {
+                this.discoveryExecutor.execute(this::rediscover);
+            } catch (RejectedExecutionException ignore) {}
+        });
+        this.rediscover();
+    }
+
+    /**
+     * Connects to the proxy picked by {@link #discovery}, unless the server is already registered to, or still hearing from, the proxy it's connected to.
+     */
+    private synchronized void rediscover() {
+        if(this.disposed.get() || this.discovery == null) return;
+
+        Link current = this.discovered;
+        if(current != null) {
+            if(current.registered.get()) return;
+            if(current.proxy != null && this.discovery.proxy(current.proxy).map(ProxyAnnouncement::fresh).orElse(false)) return;
+        }
+
+        ProxyAnnouncement picked = this.discovery.leastLoaded().orElse(null);
+        if(picked == null) return;
+        URL address = picked.address().appendPath(MagicLinkCore.endpoint);
+        if(current != null && current.address.toString().equals(address.toString())) return;
+
+        Link link = new Link(address);
+        link.proxy = picked.proxy();
+        this.links.add(link);
+        this.discovered = link;
+        if(current != null) {
+            this.links.remove(current);
+            // Whatever was waiting for the old proxy is sent to the new one instead of failing.
+            // Packets held back by the bulk rate were queued before anything was buffered, so they go first.
+            current.bulk.drainTo(link::requeue);
+            current.buffer.transferTo(link.buffer);
+            current.close();
+        }
+
         try {
-            String websocketEndpoint;
-            String[] bearer = new String[3];
-            try (HttpClient client = HttpClient.newHttpClient()) {
-                HttpRequest request = HttpRequest.newBuilder()
-                    .uri(this.address.toURI())
-                    .header("Authorization", "Bearer " + aes.encrypt(((Long) Instant.now().getEpochSecond()).toString()))
-                    .timeout(Duration.of(10, ChronoUnit.SECONDS))
-                    .GET()
-                    .build();
-                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
-                
-                if(response.statusCode() == 401) throw new RuntimeException("The your aes.private is invalid. Make sure the server has the same aes.private as the proxy!");
-                if(response.statusCode() != 200) throw new RuntimeException("Magic Link response: " + response.body());
-                
-                Gson gson = new Gson();
-                JsonObject object = gson.fromJson(response.body(), JsonObject.class);
-                websocketEndpoint = aes.decrypt(object.get("endpoint").getAsString());
-                bearer[0] = aes.decrypt(object.get("token").getAsString());
-                bearer[1] = object.get("signature").getAsString();
-                bearer[2] = this.self.id(); // Including the id in the bearer as well as "X-Server-Identification" is intentional.
-            }
+            RC.Adapter().log(Component.text("Discovered the proxy "+picked.proxy()+" at "+picked.address()+" with "+picked.load()+" servers. Connecting to it."));
+        } catch (Exception ignore) {}
+        link.connectionExecutor.execute(link::connect);
+    }
 
-            Map<String, String> headers = Map.of(
-                    "Authorization", "Bearer " + aes.encrypt(String.join("$", bearer)),
-                    "X-Server-Identification", this.self.toJSON().toString()
-            );
+    /**
+     * Attempts to establish a connection to every proxy which the server isn't already connected to.
+     * Proxies are connected to in parallel, and this method returns once each of them has been attempted once.
+     */
+    public void connect() {
+        if(this.disposed.get()) return;
 
-            URL websocketURL = this.address.copy();
-            if(websocketURL.protocol().equals(URL.Protocol.HTTP)) websocketURL = websocketURL.changeProtocol(URL.Protocol.WS);
-            if(websocketURL.protocol().equals(URL.Protocol.HTTPS)) websocketURL = websocketURL.changeProtocol(URL.Protocol.WSS);
-            websocketURL = websocketURL.clearPath().appendPath(websocketEndpoint);
-            
-            WebSocketClient client = new WebSocketClient(websocketURL.toURI(), new Draft_6455(), headers, 1000 * (60 * 15)) {
-                @Override
-                public void onOpen(ServerHandshake handshake) {
-                    WebSocketMagicLink.this.stopHeartbeat.set(false);
-                    WebSocketMagicLink.this.connectionClosed.set(false);
-                    WebSocketMagicLink.this.heartbeat();
-                }
-                
-                @Override
-                public void onMessage(String message) {
-                    WebSocketMagicLink.this.handleMessage(message);
-                }
-                
-                @Override
-                public void onClose(int code, String reason, boolean remote) {
-                    if(WebSocketMagicLink.this.connectionClosed.get()) return;
-                    try {
-                        if (code == 1008)
-                            RC.Adapter().log(Component.text("Unable to authenticate with Magic Link to the proxy. Trying again after " + retryDelay.value() + " " + retryDelay.unit() + "."));
-                        else
-                            RC.Adapter().log(Component.text("Unable to refresh connection with Magic Link on the proxy. Trying again after " + retryDelay.value() + " " + retryDelay.unit() + "."));
-                        
-                    } catch (Exception ignore) {}
-                    
-                    WebSocketMagicLink.this.reset();
-                }
-                
-                @Override
-                public void onError(Exception e) {
-                    RC.Error(Error.from(e));
-                    if(e instanceof WebsocketNotConnectedException)
-                        WebSocketMagicLink.this.closeConnection();
-                }
-            };
-            client.setConnectionLostTimeout(0);
-            
-            if(client.connectBlocking()) {
-                this.client.set(client);
-                return;
-            }
-        } catch (Exception e) {
-            RC.Error(Error.from(e));
+        List<Future<?>> attempts = new ArrayList<>();
+        for (Link link : this.links) {
+            if(link.open()) continue;
+            attempts.add(link.connectionExecutor.submit(link::connect));
+        }
+        for (Future<?> attempt : attempts) {
+            try {
+                attempt.get();
+            } catch (Exception ignore) {} // Each link handles its own failures.
         }
-        
-        RC.Adapter().log(Component.text("Unable to refresh connection with Magic Link on the proxy. Trying again after " + retryDelay.value() + " " + retryDelay.unit() + "."));
-        this.reset();
     }
-    
+
+    /**
+     * @return The link to each proxy that the server connects to.
+     */
+    public @NotNull List<Link> links() {
+        return this.links;
+    }
+
     @Override
     public void publish(Packet.Local packet) {
+        // Proxies running different protocol versions, or without compression, need different encodings. But each encoding only needs to be encrypted once.
+        Map<Integer, byte[]> encoded = new HashMap<>(2);
+        Map<Integer, String> encrypted = new HashMap<>(2);
+        Map<Integer, ByteBuffer> frames = new HashMap<>(2);
         try {
-            if (this.client.get() == null) return;
             this.cache.cache(packet);
-            this.client.get().send(this.aes.encrypt(packet.toString()));
-            packet.status(true, "Message successfully delivered.");
-        } catch (WebsocketNotConnectedException ignore) {
-            // Theoretically the websocket disconnect should be getting handled elsewhere
+
+            List<Link> links = this.route(packet.remote());
+            if(links.isEmpty()) {
+                packet.status(false, "Unable to deliver the message because the server isn't connected to "+packet.remote()+".");
+                return;
+            }
+
+            LiquidTimestamp ttl = this.bufferTTL(packet.type());
+            // Publishing holds the packet until every link has either sent or buffered it, so that it can't fail part way through.
+            if(ttl.value() > 0) this.deliveries.put(packet, new Delivery());
+            int sent = 0;
+            int buffered = 0;
+            for (Link link : links) {
+                if(ttl.value() <= 0) {
+                    if(link.transmit(packet, encoded, encrypted, frames)) sent++;
+                    continue;
+                }
+
+                // Once anything is buffered, everything after it is buffered too, so that packets are never sent out of order.
+                if(link.flushable() && link.buffer.size() == 0 && link.transmit(packet, encoded, encrypted, frames)) sent++;
+                else {
+                    this.hold(packet);
+                    if(link.buffer(packet, ttl)) buffered++;
+                }
+            }
+
+            if(sent == links.size()) packet.status(true, "Message successfully delivered.");
+            else if(sent + buffered == links.size()) packet.status(true, "Message buffered until the connection to the proxy is restored.");
+            else if(sent + buffered > 0) packet.status(true, "Message delivered to "+sent+" and buffered for "+buffered+" of "+links.size()+" proxies.");
+            else packet.status(false, "Unable to deliver the message because there's no connection to the proxy.");
+
+            // Every link that buffered the packet may have already given up on it.
+            if(ttl.value() > 0 && this.release(packet, sent > 0)) this.fail(packet);
         } catch (Exception e) {
             packet.status(false, e.getMessage());
             RC.Error(Error.from(e));
+        } finally {
+            frames.values().forEach(this.buffers::release);
         }
     }
 
+    /**
+     * Picks the links that a packet should be sent over.
+     * Packets addressed to a specific proxy only go to that proxy. If no link is known to lead to it yet,
+     * the packet goes to every link which hasn't learned which proxy it leads to, since any of them might.
+     */
+    private List<Link> route(Packet.SourceIdentifier target) {
+        if(target.origin() != Packet.SourceIdentifier.Origin.PROXY || target.id() == null) return this.links;
+
+        for (Link link : this.links)
+            if(target.id().equals(link.proxy)) return List.of(link);
+        return this.links.stream().filter(l -> l.proxy == null).toList();
+    }
+
+    /**
+     * Called by a link's {@link OutboundBuffer} with each packet that it dropped, or which expired, while buffered.
+     * The packet only fails if no other link has sent it, or is still holding on to it.
+     */
+    private void expire(Packet.Local packet) {
+        if(this.release(packet, false)) this.fail(packet);
+    }
+
+    private void fail(Packet.Local packet) {
+        packet.status(false, "Unable to deliver the message because the connection to the proxy wasn't restored in time.");
+        this.failRequest(packet, new TimeoutException("The connection to the proxy wasn't restored in time to send "+packet.type()+"."));
+    }
+
+    /**
+     * Records that something has stopped holding on to a packet, either because it was sent or because it was given up on.
+     * @param packet The packet.
+     * @param sent Whether the packet was sent.
+     * @return `true` if nothing is holding on to the packet anymore, and it was never sent.
+     */
+    private boolean release(Packet.Local packet, boolean sent) {
+        AtomicBoolean unsent = new AtomicBoolean(!sent);
+        this.deliveries.computeIfPresent(packet, (k, delivery) -> {
+            if(sent) delivery.sent = true;
+            if(delivery.holding.decrementAndGet() > 0) {
+                unsent.set(false);
+                return delivery;
+            }
+            unsent.set(!delivery.sent);
+            return null;
+        });
+        return unsent.get();
+    }
+
+    /**
+     * Records that another link is holding on to a packet, tracking it if nothing was already.
+     */
+    private void hold(Packet.Local packet) {
+        this.deliveries.compute(packet, (k, delivery) -> {
+            if(delivery == null) return new Delivery();
+            delivery.holding.incrementAndGet();
+            return delivery;
+        });
+    }
+
+    /**
+     * Sets how long packets of a specific type are buffered for while the server has no connection to the proxy.
+     * @param type The type of packet.
+     * @param ttl How long each packet can wait to be sent. `0` to never buffer the type, so that its packets fail straight away instead.
+     */
+    public void bufferFor(@NotNull Packet.Type type, @NotNull LiquidTimestamp ttl) {
+        this.bufferTTLs.put(type, ttl);
+    }
+
+    private LiquidTimestamp bufferTTL(Packet.Type type) {
+        return this.bufferTTLs.getOrDefault(type, defaultBufferTTL);
+    }
+
     /**
      * Whether the server is successfully registered to the Proxy.
-     * @return `true` if the server is registered. `false` otherwise.
+     * @return `true` if the server is registered to at least one proxy. `false` otherwise.
      */
     public boolean registered() {
-        return this.registered.get();
+        for (Link link : this.links)
+            if(link.registered.get()) return true;
+        return false;
     }
 
-    private void heartbeat() {
-        if(this.disposed.get()) return;
-        if(this.stopHeartbeat.get()) return;
-        
-        Packet.Builder.PrepareForSending packetBuilder = null;
-        try {
-            ServerKernel kernel = RC.S.Kernel();
-            
-            JsonObject metadata = new JsonObject();
-            kernel.metadata().forEach((k, v) -> metadata.add(k, v.toJSON()));
-            
-            packetBuilder = Packet.New()
-                .identification(Packet.Type.from("RC", "P"))
-                .parameter(MagicLinkCore.Packets.Ping.Parameters.TARGET_FAMILY, kernel.targetFamily())
-                .parameter(MagicLinkCore.Packets.Ping.Parameters.ADDRESS, kernel.address().getHostName() + ":" + kernel.address().getPort())
-                .parameter(MagicLinkCore.Packets.Ping.Parameters.METADATA, new Parameter(metadata))
-                .parameter(MagicLinkCore.Packets.Ping.Parameters.PLAYER_COUNT, new Parameter(kernel.playerCount())
-                );
-        } catch (WebsocketNotConnectedException ignore) {
-            return; // Theoretically the websocket disconnect should be getting handled elsewhere
-        } catch (Exception ignore) {
-            if(this.disposed.get()) return;
-            if(this.stopHeartbeat.get()) return;
-            this.heartbeatExecutor.schedule(this::heartbeat, this.delay.get(), TimeUnit.SECONDS);
-            return;
-        }
-        
+    @Override
+    public void setDelay(int delay) {
+        super.setDelay(delay);
+        if(this.links != null) this.links.forEach(l -> l.delay.set(delay));
+    }
+
+    @Override
+    protected void topicsChanged() {
+        for (Link link : this.links)
+            if(link.registered.get()) link.sendTopics();
+    }
+
+    @Override
+    protected @Nullable String family() {
         try {
-            Packet.Local packet = packetBuilder.addressTo(Packet.SourceIdentifier.allAvailableProxies()).send();
-            
-            packet.onReply(Packets.Response.class, p -> {
-                if (p.successful()) {
-                    boolean canceled = RC.S.EventManager().fireEvent(new ConnectedEvent()).get(1, TimeUnit.MINUTES);
-                    if (canceled) return PacketListener.Response.canceled();
-                    
-                    if (!WebSocketMagicLink.this.registered.get()) {
-                        int interval = p.parameters().get("i").getAsInt();
-                        RC.Adapter().log(RC.Lang("rustyconnector-magicLinkHandshake").generate());
-                        WebSocketMagicLink.this.setDelay(interval);
-                        WebSocketMagicLink.this.registered.set(true);
-                    }
-                    return PacketListener.Response.success("Successfully informed the server of its registration.");
-                }
-                
-                RC.S.Adapter().log(Component.text(p.message(), NamedTextColor.RED));
-                RC.S.Adapter().log(Component.text("Waiting 1 minute before trying again...", NamedTextColor.GRAY));
-                WebSocketMagicLink.this.setDelay(60);
-                WebSocketMagicLink.this.registered.set(false);
-                return PacketListener.Response.success("Successfully informed the server of its failure to register.");
-            });
-        } catch (WebsocketNotConnectedException ignore) {
-            return; // Theoretically the websocket disconnect should be getting handled elsewhere
+            return RC.S.Kernel().targetFamily();
         } catch (Exception e) {
-            RC.Error(Error.from(e));
+            return null;
         }
-        
-        if(this.disposed.get()) return;
-        if(this.stopHeartbeat.get()) return;
-        this.heartbeatExecutor.schedule(this::heartbeat, this.delay.get(), TimeUnit.SECONDS);
     }
-    
+
     /**
-     * Resets the MagicLink connection to start from the beginning.
-     * This method will for MagicLink to re-authenticate.
+     * Resets every MagicLink connection to start from the beginning.
+     * This method will force MagicLink to re-authenticate, rather than resuming its sessions.
      */
     public void reset() {
         if(disposed.get()) return;
-        
-        this.closeConnection();
-        
-        this.connectionExecutor.schedule(this::connect, this.retryDelay.value(), this.retryDelay.unit());
-    }
-    
-    private void closeConnection() {
-        this.connectionClosed.set(true);
-        this.registered.set(false);
-        this.stopHeartbeat.set(true);
-        
-        try {
-            this.client.get().closeConnection(1000, "Normal closure.");
-        } catch (Exception e) {
-            RC.Error(Error.from(e).whileAttempting("To close the websocket connection used by MagicLink"));
-        }
-        this.client.set(null);
+        this.links.forEach(Link::reset);
     }
 
     @Override
     public void close() {
         disposed.set(true);
-        
+        this.streams.close();
+
         try {
             Packet.New()
                 .identification(Packet.Type.from("RC","D"))
                 .addressTo(Packet.SourceIdentifier.allAvailableProxies())
                 .send();
         } catch (Exception ignore) {}
-        
-        this.closeConnection();
-        
+
+        this.batcher.close();
+        this.links.forEach(Link::close);
+        this.discoveryExecutor.shutdownNow();
+        if(this.discovery != null) this.discovery.close();
+
         try {
             RC.S.EventManager().fireEvent(new DisconnectedEvent());
         } catch (Exception ignore) {}
-        
-        try {
-            this.connectionExecutor.shutdownNow();
-        } catch (Exception ignore) {}
+
         try {
             this.heartbeatExecutor.shutdownNow();
         } catch (Exception ignore) {}
     }
-    
+
     @Override
     public @Nullable Component details() {
-        return join(
-                newlines(),
-                RC.Lang("rustyconnector-keyValue").generate("Target Address", this.address),
+        List<Component> lines = new ArrayList<>(List.of(
                 RC.Lang("rustyconnector-keyValue").generate("Packet Cache Size", this.cache.size()),
                 RC.Lang("rustyconnector-keyValue").generate("Packets Pending Responses", this.packetsAwaitingReply.size()),
                 RC.Lang("rustyconnector-keyValue").generate("Packets Pending Responses", this.packetsAwaitingReply.expiration()),
-                RC.Lang("rustyconnector-keyValue").generate("Ping Delay", this.retryDelay),
-                RC.Lang("rustyconnector-keyValue").generate("Is Registered", this.registered.get()),
-                RC.Lang("rustyconnector-keyValue").generate("Total Listeners Per Packet",
-                        text(String.join(", ", this.listeners.entrySet().stream().map(e -> e.getKey() + " ("+e.getValue().size()+")").toList()))
-                )
-        );
+                RC.Lang("rustyconnector-keyValue").generate("Compression Savings", this.compressionSavings()),
+                RC.Lang("rustyconnector-keyValue").generate("Batched Packets", this.batcher.batched()+" total, "+this.batcher.pending()+" waiting, "+this.batcher.failed()+" undelivered"),
+                RC.Lang("rustyconnector-keyValue").generate("Dispatch Queue Depth", this.dispatcher.queueDepth()+" (max "+this.dispatcher.maxQueueDepth()+" per source, "+this.dispatcher.overflowPolicy()+")"),
+                RC.Lang("rustyconnector-keyValue").generate("Deepest Dispatch Queue", this.dispatcher.deepestQueue().map(e -> e.getKey()+" ("+e.getValue()+")").orElse("None")),
+                RC.Lang("rustyconnector-keyValue").generate("Dropped Packets", this.dispatcher.dropped()),
+                RC.Lang("rustyconnector-keyValue").generate("Listener Latency", String.format("%.2fms average, %.2fms max", this.dispatcher.averageLatency() / 1_000_000D, this.dispatcher.maxLatency() / 1_000_000D)),
+                RC.Lang("rustyconnector-keyValue").generate("Bulk Rate", this.bulkRate+" bytes/s per proxy"),
+                RC.Lang("rustyconnector-keyValue").generate("Inbound Control Delay", this.dispatcher.queueDelay(Packet.Priority.CONTROL)),
+                RC.Lang("rustyconnector-keyValue").generate("Inbound Bulk Delay", this.dispatcher.queueDelay(Packet.Priority.BULK)),
+                RC.Lang("rustyconnector-keyValue").generate("Topics", this.topics.isEmpty() ? "None" : String.join(", ", this.topics)),
+                RC.Lang("rustyconnector-keyValue").generate("Streams", this.streams.sending()+" sending, "+this.streams.receiving()+" receiving, "+this.streams.bytesSent()+" bytes sent, "+this.streams.bytesReceived()+" bytes received, "+this.streams.canceled()+" canceled"),
+                RC.Lang("rustyconnector-keyValue").generate("Is Registered", this.registered())
+        ));
+        if(this.discovery != null) lines.add(RC.Lang("rustyconnector-keyValue").generate("Discovered Proxies", this.discovery.proxies().size()+" known, "+this.discovery.proxies().stream().filter(ProxyAnnouncement::fresh).count()+" announcing, "+this.discovery.announcements()+" announcements received"));
+        for (Link link : this.links) lines.addAll(link.details());
+        lines.add(RC.Lang("rustyconnector-keyValue").generate("Total Listeners Per Packet",
+                text(String.join(", ", this.listeners.entrySet().stream().map(e -> e.getKey() + " ("+e.getValue().size()+")").toList()))
+        ));
+        return join(newlines(), lines);
+    }
+
+    /**
+     * The server's connection to a single proxy.
+     */
+    public class Link {
+        private final URL address;
+        private final ScheduledExecutorService connectionExecutor = Executors.newSingleThreadScheduledExecutor();
+        private final ReconnectBackoff backoff = new ReconnectBackoff(1, 60, TimeUnit.SECONDS);
+        /**
+         * The session ticket last issued by the proxy, and the websocket endpoint it was issued for.
+         * Lets the server resume its registration with a single upgrade request if it briefly loses its connection.
+         */
+        private final AtomicReference<String> ticket = new AtomicReference<>(null);
+        private volatile String sessionEndpoint = null;
+        /**
+         * The id of the proxy on the other end, learned from its first reply. `null` until then.
+         */
+        private volatile String proxy = null;
+        private final AtomicBoolean connectionClosed = new AtomicBoolean(false);
+        private final AtomicBoolean stopHeartbeat = new AtomicBoolean(true);
+        private final AtomicBoolean registered = new AtomicBoolean(false);
+        private final AtomicReference<WebSocketClient> client = new AtomicReference<>(null);
+        private final AtomicInteger protocolVersion = new AtomicInteger(PacketCodec.JSON_PROTOCOL);
+        private final AtomicReference<Set<Feature>> features = new AtomicReference<>(Set.of());
+        private final AtomicInteger delay = new AtomicInteger(WebSocketMagicLink.this.delay.get());
+        private final OutboundBuffer buffer = new OutboundBuffer(1024, WebSocketMagicLink.this::expire);
+        private final BulkLane bulk = new BulkLane(1024, WebSocketMagicLink.this::bulkRate, p -> this.abandon(p, "the connection to the proxy was closed before it could be sent"));
+        private final PacketCompressor.Zlib zlib = new PacketCompressor.Zlib();
+        private final AtomicBoolean resync = new AtomicBoolean(true);
+        private final HeartbeatSchedule schedule = new HeartbeatSchedule();
+        /**
+         * The metadata sent in the last ping, and its version. Only ever touched by the heartbeat.
+         */
+        private JsonObject reportedMetadata = null;
+        private int metadataVersion = 0;
+
+        private Link(@NotNull URL address) {
+            this.address = address;
+        }
+
+        public @NotNull URL address() {
+            return this.address;
+        }
+
+        /**
+         * @return The id of the proxy on the other end, if it's replied to the server yet.
+         */
+        public @NotNull Optional<String> proxy() {
+            return Optional.ofNullable(this.proxy);
+        }
+
+        public boolean registered() {
+            return this.registered.get();
+        }
+
+        private boolean open() {
+            WebSocketClient client = this.client.get();
+            return client != null && client.isOpen();
+        }
+
+        /**
+         * Attempts to establish a connection to the MagicLink instance running on the proxy.
+         * If the server holds a session ticket, it first tries to resume its session. Otherwise, or if that fails, it goes through the full handshake.
+         */
+        private void connect() {
+            if(WebSocketMagicLink.this.disposed.get()) return;
+            if(this.open()) return;
+
+            try {
+                // Tickets are single use from the server's side. If resuming fails, the proxy has most likely restarted, so the ticket is dead anyway.
+                String ticket = this.ticket.getAndSet(null);
+                String sessionEndpoint = this.sessionEndpoint;
+                if(ticket != null && sessionEndpoint != null) {
+                    String authorization = ticketScheme + aes.encrypt(Instant.now().getEpochSecond() + "$" + ticket + "$" + self.id());
+                    if(this.open(sessionEndpoint, authorization, true)) return;
+                    RC.Adapter().log(Component.text("Unable to resume the Magic Link session with "+this.address+". Reconnecting from the beginning."));
+                }
+
+                String websocketEndpoint;
+                String[] bearer = new String[3];
+                try (HttpClient client = HttpClient.newHttpClient()) {
+                    HttpRequest request = HttpRequest.newBuilder()
+                        .uri(this.address.toURI())
+                        .header("Authorization", "Bearer " + aes.encrypt(((Long) Instant.now().getEpochSecond()).toString()))
+                        .timeout(Duration.of(10, ChronoUnit.SECONDS))
+                        .GET()
+                        .build();
+                    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+
+                    if(response.statusCode() == 401) throw new RuntimeException("The your aes.private is invalid. Make sure the server has the same aes.private as the proxy!");
+                    if(response.statusCode() != 200) throw new RuntimeException("Magic Link response: " + response.body());
+
+                    Gson gson = new Gson();
+                    JsonObject object = gson.fromJson(response.body(), JsonObject.class);
+                    websocketEndpoint = aes.decrypt(object.get("endpoint").getAsString());
+                    bearer[0] = aes.decrypt(object.get("token").getAsString());
+                    bearer[1] = object.has("signature") ? object.get("signature").getAsString() : ""; // Proxies using authenticated encryption don't sign their tokens.
+                    bearer[2] = self.id(); // Including the id in the bearer as well as "X-Server-Identification" is intentional.
+
+                    // Proxies which predate the binary codec don't advertise a protocol version.
+                    this.protocolVersion.set(object.has("protocol") ? object.get("protocol").getAsInt() : PacketCodec.JSON_PROTOCOL);
+                    this.features.set(Feature.parse(object.has("features") ? object.get("features").getAsString() : null));
+                }
+
+                this.sessionEndpoint = websocketEndpoint;
+                if(this.open(websocketEndpoint, "Bearer " + aes.encrypt(String.join("$", bearer)), false)) return;
+            } catch (Exception e) {
+                RC.Error(Error.from(e));
+            }
+
+            this.retry("Unable to refresh connection with Magic Link on "+this.address+".");
+        }
+
+        /**
+         * Opens the websocket connection to the proxy.
+         * @param websocketEndpoint The websocket endpoint handed out by the proxy.
+         * @param authorization The value of the upgrade's `Authorization` header.
+         * @param resuming Whether the server is resuming a session that's still registered on the proxy.
+         * @return `true` if the connection was opened. `false` otherwise.
+         */
+        private boolean open(String websocketEndpoint, String authorization, boolean resuming) throws Exception {
+            Map<String, String> headers = Map.of(
+                    "Authorization", authorization,
+                    "X-Server-Identification", self.toJSON().toString(),
+                    protocolHeader, String.valueOf(PacketCodec.BINARY_PROTOCOL),
+                    Feature.header, Feature.serialize(Feature.supported())
+            );
+
+            URL websocketURL = this.address.copy();
+            if(websocketURL.protocol().equals(URL.Protocol.HTTP)) websocketURL = websocketURL.changeProtocol(URL.Protocol.WS);
+            if(websocketURL.protocol().equals(URL.Protocol.HTTPS)) websocketURL = websocketURL.changeProtocol(URL.Protocol.WSS);
+            websocketURL = websocketURL.clearPath().appendPath(websocketEndpoint);
+
+            Link link = this;
+            WebSocketClient client = new WebSocketClient(websocketURL.toURI(), new Draft_6455(), headers, 1000 * (60 * 15)) {
+                @Override
+                public void onOpen(ServerHandshake handshake) {
+                    link.backoff.reset();
+                    // A resumed session is still registered on the proxy, so the server carries on without registering again.
+                    if(resuming) {
+                        link.registered.set(true);
+                        link.connectionExecutor.execute(link::flush);
+                        link.connectionExecutor.execute(link::sendTopics);
+                    }
+                    link.stopHeartbeat.set(false);
+                    link.connectionClosed.set(false);
+                    heartbeatExecutor.schedule(link::heartbeat, link.schedule.initial(), TimeUnit.MILLISECONDS);
+                }
+
+                @Override
+                public void onMessage(String message) {
+                    WebSocketMagicLink.this.handleMessage(message, link.zlib);
+                }
+
+                @Override
+                public void onMessage(ByteBuffer message) {
+                    WebSocketMagicLink.this.handleMessage(message, link.zlib);
+                }
+
+                @Override
+                public void onClose(int code, String reason, boolean remote) {
+                    if(link.connectionClosed.get()) return;
+                    if (code == 1008)
+                        link.retry("Unable to authenticate with Magic Link on "+link.address+".");
+                    else
+                        link.retry("Unable to refresh connection with Magic Link on "+link.address+".");
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    RC.Error(Error.from(e));
+                    if(e instanceof WebsocketNotConnectedException)
+                        link.closeConnection();
+                }
+            };
+            client.setConnectionLostTimeout(0);
+
+            if(!client.connectBlocking()) return false;
+            this.client.set(client);
+            return true;
+        }
+
+        /**
+         * Encodes and sends the packet over this link, encoding and encrypting it in whichever form the proxy accepts if it hasn't been already.
+         * If the proxy accepts batches, and the packet's type is batched, the packet is handed to {@link #batcher} instead.
+         * Control packets are sent straight away. Bulk packets are handed to {@link #bulk}, which sends them once the bulk rate allows.
+         * @return `true` if the packet was sent or queued. `false` if there's no connection to send it through, or the bulk lane is full.
+         */
+        private boolean transmit(Packet.Local packet, Map<Integer, byte[]> encoded, Map<Integer, String> encrypted, Map<Integer, ByteBuffer> frames) throws Exception {
+            WebSocketClient client = this.client.get();
+            if(client == null || !client.isOpen()) return false;
+
+            // Proxies with the same protocol version and compression support receive exactly the same plaintext.
+            Set<Feature> features = this.features.get();
+            boolean compress = features.contains(Feature.COMPRESSION);
+            int encoding = this.protocolVersion.get() << 1 | (compress ? 1 : 0);
+            byte[] payload = encoded.get(encoding);
+            if(payload == null) {
+                payload = plaintext(packet, this.protocolVersion.get(), compress ? this.zlib : null);
+                encoded.put(encoding, payload);
+            }
+
+            boolean control = packet.type().priority() == Packet.Priority.CONTROL;
+            if(!control && features.contains(Feature.BATCHING) && batcher.accepts(this, packet.type()))
+                return batcher.send(this, packet.type(), payload);
+
+            if(features.contains(Feature.BINARY_FRAMES)) {
+                ByteBuffer frame = frames.get(encoding);
+                if(frame == null) {
+                    frame = encryptFrame(payload);
+                    frames.put(encoding, frame);
+                }
+                // Sending consumes the buffer, so each link reads from its own view of the frame.
+                if(control) return this.write(client, frame.duplicate());
+
+                // The shared frame is released once it's been published, so a queued write needs its own copy.
+                ByteBuffer copy = ByteBuffer.allocate(frame.remaining()).put(frame.duplicate()).flip();
+                long queuedAt = System.nanoTime();
+                return this.bulk.offer(copy.remaining(), packet, () -> this.writeQueued(client, copy, packet, queuedAt));
+            }
+
+            String message = encrypted.get(encoding);
+            if(message == null) {
+                message = aes.encrypt(payload);
+                encrypted.put(encoding, message);
+            }
+            if(control) return this.write(client, message);
+
+            String queued = message;
+            long queuedAt = System.nanoTime();
+            return this.bulk.offer(queued.length(), packet, () -> this.writeQueued(client, queued, packet, queuedAt));
+        }
+
+        /**
+         * Hands a text message or a binary frame to the websocket.
+         * @return `false` if there's no connection to send it through.
+         */
+        private boolean write(@Nullable WebSocketClient client, @NotNull Object message) {
+            if(client == null || !client.isOpen()) return false;
+            try {
+                if(message instanceof ByteBuffer frame) client.send(frame);
+                else client.send((String) message);
+            } catch (WebsocketNotConnectedException ignore) {
+                return false; // Theoretically the websocket disconnect should be getting handled elsewhere
+            }
+            return true;
+        }
+
+        /**
+         * Writes a packet which {@link #bulk} held back, but only over the connection it was queued for.
+         * The packet's plaintext was encoded for that connection, so if the link has reconnected since, the write is skipped.
+         * A packet which isn't written is handed back to {@link #requeue(Packet.Local, long)}.
+         * @param client The connection that the packet was queued for.
+         * @param packet The packet being written, or `null` if it's a batch.
+         * @param queuedAt When the packet was queued, in {@link System#nanoTime()}.
+         * @return `false` if the packet wasn't written.
+         */
+        private boolean writeQueued(@NotNull WebSocketClient client, @NotNull Object message, @Nullable Packet.Local packet, long queuedAt) {
+            if(client == this.client.get() && this.write(client, message)) return true;
+            if(packet != null) this.requeue(packet, queuedAt);
+            return false;
+        }
+
+        /**
+         * Puts a packet, which was queued but never written, into {@link #buffer} so that it's sent once this link is connected.
+         * The packet only gets whatever is left of its type's time to live since it was queued.
+         * If its type isn't buffered, its time to live has passed, or the buffer is full, it fails instead.
+         * @param queuedAt When the packet was queued, in {@link System#nanoTime()}.
+         */
+        private void requeue(Packet.Local packet, long queuedAt) {
+            LiquidTimestamp ttl = bufferTTL(packet.type());
+            long remaining = ttl.unit().toNanos(ttl.value()) - (System.nanoTime() - queuedAt);
+            if(remaining <= 0) {
+                this.abandon(packet, "the connection to the proxy was lost before it could be sent");
+                return;
+            }
+
+            hold(packet);
+            // If the buffer is full it drops the packet, which releases it again.
+            if(this.buffer(packet, remaining, TimeUnit.NANOSECONDS)) packet.status(true, "Message buffered until the connection to the proxy is restored.");
+        }
+
+        /**
+         * Fails a packet which was queued on this link but never written, unless another link has sent it or is still holding on to it.
+         * @param reason Why the packet wasn't sent, to finish the sentence "Unable to deliver the message because".
+         */
+        private void abandon(Packet.Local packet, String reason) {
+            hold(packet);
+            if(!release(packet, false)) return;
+            packet.status(false, "Unable to deliver the message because "+reason+".");
+            failRequest(packet, new IOException("Unable to send "+packet.type()+" because "+reason+"."));
+        }
+
+        /**
+         * Sends a packet over this link only, rather than to every proxy it's addressed to.
+         */
+        private void send(Packet.Local packet) throws Exception {
+            cache.cache(packet);
+
+            Map<Integer, ByteBuffer> frames = new HashMap<>(1);
+            try {
+                if(this.transmit(packet, new HashMap<>(1), new HashMap<>(1), frames)) packet.status(true, "Message successfully delivered.");
+                else packet.status(false, "Unable to deliver the message because there's no connection to the proxy.");
+            } finally {
+                frames.values().forEach(buffers::release);
+            }
+        }
+
+        /**
+         * Encrypts plaintext which has been through {@link #batcher}, and queues it into {@link #bulk}.
+         * Only bulk packets are ever batched.
+         * @return `false` if there's no connection to send it through, or the bulk lane is full.
+         */
+        private boolean sendBatch(byte[] plaintext) throws Exception {
+            WebSocketClient client = this.client.get();
+            if(client == null) return false;
+
+            if(this.features.get().contains(Feature.BINARY_FRAMES)) {
+                ByteBuffer frame = ByteBuffer.allocate(aes.encryptedLength(plaintext.length));
+                aes.encrypt(ByteBuffer.wrap(plaintext), frame);
+                frame.flip();
+                return this.bulk.offer(frame.remaining(), null, () -> this.writeQueued(client, frame, null, 0));
+            }
+
+            String message = aes.encrypt(plaintext);
+            return this.bulk.offer(message.length(), null, () -> this.writeQueued(client, message, null, 0));
+        }
+
+        /**
+         * @return `true` if the packet was buffered. `false` if the buffer is full.
+         */
+        private boolean buffer(Packet.Local packet, LiquidTimestamp ttl) {
+            return this.buffer(packet, ttl.value(), ttl.unit());
+        }
+
+        private boolean buffer(Packet.Local packet, long ttl, TimeUnit unit) {
+            if(!this.buffer.offer(packet, ttl, unit)) return false;
+
+            // The buffer may have just been flushed, in which case nothing else would send this packet.
+            if(this.flushable()) this.connectionExecutor.execute(this::flush);
+            return true;
+        }
+
+        /**
+         * Whether buffered packets can be sent. This is once the server has a connection, and is registered to the proxy.
+         */
+        private boolean flushable() {
+            return this.open() && this.registered.get();
+        }
+
+        /**
+         * Sends every buffered packet, in the order they were published.
+         */
+        private void flush() {
+            if(!this.flushable()) return;
+            this.buffer.flush(packet -> {
+                Map<Integer, ByteBuffer> frames = new HashMap<>(1);
+                try {
+                    if(!this.transmit(packet, new HashMap<>(1), new HashMap<>(1), frames)) return false;
+                    packet.status(true, "Message successfully delivered.");
+                    release(packet, true);
+                    return true;
+                } catch (WebsocketNotConnectedException e) {
+                    return false;
+                } catch (Exception e) {
+                    packet.status(false, e.getMessage());
+                    RC.Error(Error.from(e));
+                    if(release(packet, false)) failRequest(packet, e);
+                    return true; // The packet can't be encoded, so retrying it would just hold up every packet behind it.
+                } finally {
+                    frames.values().forEach(buffers::release);
+                }
+            });
+        }
+
+        /**
+         * Tells the proxy every topic the server is subscribed to.
+         */
+        private void sendTopics() {
+            JsonArray topics = new JsonArray();
+            WebSocketMagicLink.this.topics.forEach(topics::add);
+
+            try {
+                String proxy = this.proxy;
+                this.send(Packet.New()
+                        .identification(Packet.Type.from("RC", "TS"))
+                        .parameter(Packets.TopicSubscriptions.Parameters.TOPICS, new Parameter(topics))
+                        .addressTo(proxy == null ? Packet.SourceIdentifier.allAvailableProxies() : Packet.SourceIdentifier.proxy(proxy))
+                        .build());
+            } catch (Exception e) {
+                RC.Error(Error.from(e).whileAttempting("To send the server's topic subscriptions to "+this.address));
+            }
+        }
+
+        private void heartbeat() {
+            if(WebSocketMagicLink.this.disposed.get()) return;
+            if(this.stopHeartbeat.get()) return;
+
+            Packet.Builder.PrepareForSending packetBuilder = null;
+            boolean changed = false;
+            int playerCount = 0;
+            try {
+                ServerKernel kernel = RC.S.Kernel();
+                playerCount = kernel.playerCount();
+
+                JsonObject metadata = new JsonObject();
+                kernel.metadata().forEach((k, v) -> metadata.add(k, v.toJSON()));
+
+                packetBuilder = Packet.New()
+                    .identification(Packet.Type.from("RC", "P"))
+                    .parameter(MagicLinkCore.Packets.Ping.Parameters.PLAYER_COUNT, new Parameter(playerCount));
+
+                // Full snapshots are only sent when registering, or when the proxy asks for one. Otherwise only what's changed is sent.
+                JsonObject reported = this.reportedMetadata;
+                if(reported == null || !this.registered.get() || this.resync.getAndSet(false)) {
+                    this.metadataVersion++;
+                    packetBuilder
+                        .parameter(MagicLinkCore.Packets.Ping.Parameters.TARGET_FAMILY, kernel.targetFamily())
+                        .parameter(MagicLinkCore.Packets.Ping.Parameters.ADDRESS, kernel.address().getHostName() + ":" + kernel.address().getPort())
+                        .parameter(MagicLinkCore.Packets.Ping.Parameters.METADATA, new Parameter(metadata));
+                } else {
+                    JsonObject updated = new JsonObject();
+                    metadata.entrySet().forEach(e -> {
+                        if(!e.getValue().equals(reported.get(e.getKey()))) updated.add(e.getKey(), e.getValue());
+                    });
+                    JsonArray removed = new JsonArray();
+                    reported.keySet().forEach(k -> {
+                        if(!metadata.has(k)) removed.add(k);
+                    });
+
+                    changed = !updated.isEmpty() || !removed.isEmpty();
+                    if(changed) this.metadataVersion++;
+                    if(!updated.isEmpty()) packetBuilder.parameter(MagicLinkCore.Packets.Ping.Parameters.METADATA, new Parameter(updated));
+                    if(!removed.isEmpty()) packetBuilder.parameter(MagicLinkCore.Packets.Ping.Parameters.REMOVED_METADATA, new Parameter(removed));
+                }
+                packetBuilder
+                    .parameter(MagicLinkCore.Packets.Ping.Parameters.VERSION, new Parameter(this.metadataVersion))
+                    .parameter(MagicLinkCore.Packets.Ping.Parameters.HASH, new Parameter(MagicLinkCore.Packets.Ping.hash(metadata)));
+                this.reportedMetadata = metadata;
+            } catch (WebsocketNotConnectedException ignore) {
+                return; // Theoretically the websocket disconnect should be getting handled elsewhere
+            } catch (Exception ignore) {
+                this.scheduleHeartbeat(TimeUnit.SECONDS.toMillis(this.delay.get()));
+                return;
+            }
+
+            try {
+                String proxy = this.proxy;
+                Packet.Local packet = packetBuilder
+                        .addressTo(proxy == null ? Packet.SourceIdentifier.allAvailableProxies() : Packet.SourceIdentifier.proxy(proxy))
+                        .build();
+
+                packet.onReply(Packets.Response.class, p -> {
+                    if(p.local().origin() == Packet.SourceIdentifier.Origin.PROXY) this.proxy = p.local().id();
+
+                    if (p.successful()) {
+                        boolean canceled = RC.S.EventManager().fireEvent(new ConnectedEvent()).get(1, TimeUnit.MINUTES);
+                        if (canceled) return PacketListener.Response.canceled();
+
+                        Parameter interval = p.parameters().get(MagicLinkCore.Packets.Ping.Parameters.INTERVAL);
+                        if(interval != null) {
+                            this.delay.set(interval.getAsInt());
+                            this.schedule.maxInterval(interval.getAsInt());
+                        }
+                        // Proxies which predate ping budgets don't hand out a ping rate.
+                        if(p.parameters().containsKey(MagicLinkCore.Packets.Ping.Parameters.PING_RATE))
+                            this.schedule.budget(
+                                    p.parameters().get(MagicLinkCore.Packets.Ping.Parameters.PING_RATE).getAsDouble(),
+                                    p.parameters().get(MagicLinkCore.Packets.Ping.Parameters.SERVERS).getAsInt()
+                            );
+
+                        Parameter ticket = p.parameters().get(MagicLinkCore.Packets.Ping.Parameters.TICKET);
+                        if(ticket != null) this.ticket.set(ticket.getAsString());
+
+                        if (!this.registered.get()) {
+                            RC.Adapter().log(RC.Lang("rustyconnector-magicLinkHandshake").generate());
+                            this.registered.set(true);
+                            this.connectionExecutor.execute(this::flush);
+                            // Always sent, even when empty, so that a proxy which remembered old topics for this server forgets them.
+                            this.connectionExecutor.execute(this::sendTopics);
+                        }
+                        return PacketListener.Response.success("Successfully informed the server of its registration.");
+                    }
+
+                    if(p.parameters().containsKey(MagicLinkCore.Packets.Ping.Parameters.RESYNC)) {
+                        this.resync.set(true);
+                        return PacketListener.Response.success("Sending a full snapshot in the next ping.");
+                    }
+
+                    RC.S.Adapter().log(Component.text(p.message(), NamedTextColor.RED));
+                    RC.S.Adapter().log(Component.text("Waiting 1 minute before trying again...", NamedTextColor.GRAY));
+                    this.delay.set(60);
+                    this.registered.set(false);
+                    return PacketListener.Response.success("Successfully informed the server of its failure to register.");
+                });
+                this.send(packet);
+            } catch (WebsocketNotConnectedException ignore) {
+                return; // Theoretically the websocket disconnect should be getting handled elsewhere
+            } catch (Exception e) {
+                RC.Error(Error.from(e));
+            }
+
+            // Until the server is registered it just retries on the fixed delay. Once registered, it adapts to how much is changing.
+            if(this.registered.get()) this.scheduleHeartbeat(this.schedule.next(playerCount, changed));
+            else this.scheduleHeartbeat(TimeUnit.SECONDS.toMillis(this.delay.get()));
+        }
+
+        private void scheduleHeartbeat(long delay) {
+            if(WebSocketMagicLink.this.disposed.get()) return;
+            if(this.stopHeartbeat.get()) return;
+            heartbeatExecutor.schedule(this::heartbeat, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Resets the connection to start from the beginning, forcing it to re-authenticate rather than resuming its session.
+         */
+        private void reset() {
+            this.ticket.set(null);
+            this.retry("Resetting the connection with Magic Link on "+this.address+".");
+        }
+
+        /**
+         * Closes the connection, and tries to reconnect once the {@link #backoff} allows it.
+         * @param reason Why the server is reconnecting.
+         */
+        private void retry(String reason) {
+            if(WebSocketMagicLink.this.disposed.get()) return;
+
+            this.closeConnection();
+
+            long delay = this.backoff.next();
+            try {
+                RC.Adapter().log(Component.text(reason + " Trying again after " + delay + " milliseconds."));
+            } catch (Exception ignore) {}
+
+            this.connectionExecutor.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void closeConnection() {
+            this.connectionClosed.set(true);
+            this.registered.set(false);
+            this.resync.set(true);
+            this.schedule.reset();
+            this.stopHeartbeat.set(true);
+
+            try {
+                WebSocketClient client = this.client.get();
+                if(client != null) client.closeConnection(1000, "Normal closure.");
+            } catch (Exception e) {
+                RC.Error(Error.from(e).whileAttempting("To close the websocket connection used by MagicLink"));
+            }
+            this.client.set(null);
+        }
+
+        private void close() {
+            this.closeConnection();
+            this.buffer.close();
+            this.bulk.close();
+            this.zlib.close();
+
+            try {
+                this.connectionExecutor.shutdownNow();
+            } catch (Exception ignore) {}
+        }
+
+        private List<Component> details() {
+            return List.of(
+                    RC.Lang("rustyconnector-keyValue").generate("Target Address", this.address),
+                    RC.Lang("rustyconnector-keyValue").generate("Proxy", this.proxy == null ? "Unknown" : this.proxy),
+                    RC.Lang("rustyconnector-keyValue").generate("Is Registered", this.registered.get()),
+                    RC.Lang("rustyconnector-keyValue").generate("Protocol Version", this.protocolVersion.get()),
+                    RC.Lang("rustyconnector-keyValue").generate("Features", Feature.serialize(this.features.get())),
+                    RC.Lang("rustyconnector-keyValue").generate("Heartbeat Interval", this.schedule),
+                    RC.Lang("rustyconnector-keyValue").generate("Reconnect Backoff", this.backoff),
+                    RC.Lang("rustyconnector-keyValue").generate("Outbound Buffer", this.buffer.size()+"/"+this.buffer.capacity()+" waiting, "+this.buffer.buffered()+" buffered, "+this.buffer.flushed()+" flushed, "+this.buffer.dropped()+" dropped, "+this.buffer.expired()+" expired"),
+                    RC.Lang("rustyconnector-keyValue").generate("Bulk Lane", this.bulk.size()+"/"+this.bulk.capacity()+" waiting, "+this.bulk.queueDelay()+", throttled "+this.bulk.throttled()+" times, "+this.bulk.failed()+" undelivered"),
+                    RC.Lang("rustyconnector-keyValue").generate("Holds Session Ticket", this.ticket.get() != null)
+            );
+        }
+    }
+
+    /**
+     * Tracks a packet across every link that it was buffered on.
+     */
+    private static class Delivery {
+        /**
+         * How many links are still buffering the packet, plus one while it's being published.
+         */
+        private final AtomicInteger holding = new AtomicInteger(1);
+        private volatile boolean sent = false;
     }
 }
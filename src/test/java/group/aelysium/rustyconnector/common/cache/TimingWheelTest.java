@@ -0,0 +1,101 @@
+package group.aelysium.rustyconnector.common.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+    private TimingWheel wheel;
+
+    @BeforeEach
+    void setUp() {
+        // A small wheel, so that the longer timeouts have to wait out several rotations.
+        this.wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.wheel.close();
+    }
+
+    @Test
+    void runsTasksAfterTheirDelay() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        this.wheel.schedule(latch::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void runsTasksInDeadlineOrderAcrossRotations() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        this.wheel.schedule(() -> { order.add(3); latch.countDown(); }, 60, TimeUnit.MILLISECONDS);
+        this.wheel.schedule(() -> { order.add(1); latch.countDown(); }, 5, TimeUnit.MILLISECONDS);
+        this.wheel.schedule(() -> { order.add(2); latch.countDown(); }, 30, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 2, 3), order);
+    }
+
+    @Test
+    void canceledTasksNeverRun() throws InterruptedException {
+        AtomicBoolean ran = new AtomicBoolean(false);
+        TimingWheel.Timeout timeout = this.wheel.schedule(() -> ran.set(true), 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.canceled());
+        assertEquals(0, this.wheel.pending());
+
+        Thread.sleep(60);
+        assertFalse(ran.get());
+        assertFalse(timeout.expired());
+    }
+
+    @Test
+    void expiredTasksCantBeCanceled() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = this.wheel.schedule(latch::countDown, 1, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(timeout.expired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    void countsPendingTimeouts() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(2);
+        this.wheel.schedule(latch::countDown, 10, TimeUnit.MILLISECONDS);
+        this.wheel.schedule(latch::countDown, 10, TimeUnit.MILLISECONDS);
+        assertEquals(2, this.wheel.pending());
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(0, this.wheel.pending());
+    }
+
+    @Test
+    void keepsRunningAfterATaskThrows() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        this.wheel.schedule(() -> { throw new IllegalStateException("Expected by the test."); }, 1, TimeUnit.MILLISECONDS);
+        this.wheel.schedule(latch::countDown, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void rejectsTasksOnceClosed() {
+        this.wheel.close();
+        assertThrows(IllegalStateException.class, () -> this.wheel.schedule(() -> {}, 1, TimeUnit.MILLISECONDS));
+    }
+}
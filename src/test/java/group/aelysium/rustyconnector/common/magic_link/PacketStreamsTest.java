@@ -0,0 +1,230 @@
+package group.aelysium.rustyconnector.common.magic_link;
+
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.common.magic_link.packet.PacketCodec;
+import group.aelysium.rustyconnector.common.util.Parameter;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacketStreamsTest {
+    private static final String CHANNEL = "test";
+    private static final Packet.SourceIdentifier SERVER = Packet.SourceIdentifier.server("server-1");
+    private static final Packet.SourceIdentifier PROXY = Packet.SourceIdentifier.proxy("proxy-1");
+
+    private Loopback sender;
+    private Loopback receiver;
+    private final BlockingQueue<PacketStreams.Incoming> opened = new LinkedBlockingQueue<>();
+
+    /**
+     * Hands every packet straight to the peer's handlers, in the order they're published.
+     */
+    private static class Loopback extends PacketStreams {
+        private final Packet.SourceIdentifier self;
+        private Loopback peer;
+        private final AtomicLong chunks = new AtomicLong(0);
+        private final AtomicLong granted = new AtomicLong(0);
+        private final AtomicLong furthestAhead = new AtomicLong(0);
+        private final List<Long> windows = new CopyOnWriteArrayList<>();
+        private final List<String> cancels = new CopyOnWriteArrayList<>();
+        /**
+         * Chunks are refused once this many have been sent. `-1` to never refuse them.
+         */
+        private volatile long refuseAfter = -1;
+
+        private Loopback(Packet.SourceIdentifier self) {
+            super(null);
+            this.self = self;
+        }
+
+        @Override
+        protected void publish(@NotNull Packet.Type type, @NotNull Packet.SourceIdentifier target, @NotNull Map<String, Parameter> parameters) throws IOException {
+            if(type.toString().equals("RC-SC") && this.refuseAfter >= 0 && this.chunks.get() >= this.refuseAfter)
+                throw new IOException("The bulk lane is full.");
+            Packet.Remote packet = new Packet.Remote(PacketCodec.JSON_PROTOCOL, type, this.self, target, parameters);
+            switch (type.toString()) {
+                case "RC-SO" -> this.peer.handle(new MagicLinkCore.Packets.StreamOpen(packet));
+                case "RC-SC" -> {
+                    long sent = this.chunks.incrementAndGet();
+                    this.furthestAhead.accumulateAndGet(sent - this.granted.get(), Math::max);
+                    this.peer.handle(new MagicLinkCore.Packets.StreamChunk(packet));
+                }
+                case "RC-SW" -> {
+                    MagicLinkCore.Packets.StreamWindow window = new MagicLinkCore.Packets.StreamWindow(packet);
+                    this.windows.add(window.consumed());
+                    this.peer.granted.accumulateAndGet(window.consumed(), Math::max);
+                    this.peer.handle(window);
+                }
+                case "RC-SX" -> {
+                    MagicLinkCore.Packets.StreamCancel cancel = new MagicLinkCore.Packets.StreamCancel(packet);
+                    this.cancels.add(cancel.reason());
+                    this.peer.handle(cancel);
+                }
+                default -> throw new IllegalArgumentException(type.toString());
+            }
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.sender = new Loopback(SERVER);
+        this.receiver = new Loopback(PROXY);
+        this.sender.peer = this.receiver;
+        this.receiver.peer = this.sender;
+        this.receiver.listen(CHANNEL, this.opened::add);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.sender.close();
+        this.receiver.close();
+    }
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return payload;
+    }
+
+    private PacketStreams.Incoming open() throws InterruptedException {
+        PacketStreams.Incoming stream = this.opened.poll(2, TimeUnit.SECONDS);
+        assertNotNull(stream);
+        return stream;
+    }
+
+    /**
+     * Waits until the sender has stopped sending chunks, which it does once it's a full window ahead.
+     */
+    private void settle() throws InterruptedException {
+        long last;
+        do {
+            last = this.sender.chunks.get();
+            Thread.sleep(50);
+        } while (this.sender.chunks.get() != last);
+    }
+
+    @Test
+    void streamsPayloadsLargerThanTheWindow() throws Exception {
+        byte[] payload = payload(PacketStreams.CHUNK_SIZE * PacketStreams.WINDOW * 3 + 123);
+        CompletableFuture<Void> sent = this.sender.send(PROXY, CHANNEL, new ByteArrayInputStream(payload), payload.length);
+
+        PacketStreams.Incoming stream = this.open();
+        assertEquals(payload.length, stream.length());
+        assertEquals(SERVER, stream.source());
+
+        byte[] received;
+        try (InputStream input = stream.inputStream()) {
+            received = input.readAllBytes();
+        }
+        assertArrayEquals(payload, received);
+        sent.get(2, TimeUnit.SECONDS);
+
+        assertEquals(payload.length, this.sender.bytesSent());
+        assertEquals(payload.length, this.receiver.bytesReceived());
+        assertEquals(0, this.sender.sending());
+        assertEquals(0, this.receiver.receiving());
+    }
+
+    @Test
+    void theSenderStopsOnceItsAWindowAhead() throws Exception {
+        byte[] payload = payload(PacketStreams.CHUNK_SIZE * PacketStreams.WINDOW * 2);
+        CompletableFuture<Void> sent = this.sender.send(PROXY, CHANNEL, new ByteArrayInputStream(payload), payload.length);
+        PacketStreams.Incoming stream = this.open();
+
+        this.settle();
+        assertEquals(PacketStreams.WINDOW, this.sender.chunks.get());
+        assertFalse(sent.isDone());
+
+        try (InputStream input = stream.inputStream()) {
+            input.readAllBytes();
+        }
+        sent.get(2, TimeUnit.SECONDS);
+        assertTrue(this.sender.furthestAhead.get() <= PacketStreams.WINDOW);
+    }
+
+    @Test
+    void theWindowMovesForwardInHalves() throws Exception {
+        int chunks = PacketStreams.WINDOW * 2;
+        // One byte more than a whole number of chunks, so the last chunk is a partial one.
+        byte[] payload = payload(PacketStreams.CHUNK_SIZE * (chunks - 1) + 1);
+        CompletableFuture<Void> sent = this.sender.send(PROXY, CHANNEL, new ByteArrayInputStream(payload), payload.length);
+
+        try (InputStream input = this.open().inputStream()) {
+            input.readAllBytes();
+        }
+        sent.get(2, TimeUnit.SECONDS);
+
+        int half = PacketStreams.WINDOW / 2;
+        List<Long> expected = new ArrayList<>();
+        for (long consumed = half; consumed <= chunks; consumed += half) expected.add(consumed);
+        assertEquals(expected, this.receiver.windows);
+    }
+
+    @Test
+    void closingTheStreamEarlyCancelsTheSender() throws Exception {
+        byte[] payload = payload(PacketStreams.CHUNK_SIZE * PacketStreams.WINDOW * 2);
+        CompletableFuture<Void> sent = this.sender.send(PROXY, CHANNEL, new ByteArrayInputStream(payload), payload.length);
+
+        PacketStreams.Incoming stream = this.open();
+        this.settle();
+        stream.close();
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> sent.get(2, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, failure.getCause());
+        assertEquals(List.of("The receiver closed the stream."), this.receiver.cancels);
+        assertEquals(0, this.receiver.receiving());
+    }
+
+    @Test
+    void aChunkWhichCantBeSentFailsTheStreamStraightAway() throws Exception {
+        this.sender.refuseAfter = 2;
+        byte[] payload = payload(PacketStreams.CHUNK_SIZE * PacketStreams.WINDOW);
+        long start = System.nanoTime();
+        CompletableFuture<Void> sent = this.sender.send(PROXY, CHANNEL, new ByteArrayInputStream(payload), payload.length);
+
+        PacketStreams.Incoming stream = this.open();
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> sent.get(2, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, failure.getCause());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(PacketStreams.TIMEOUT));
+
+        // The receiver is told, rather than waiting out the timeout for a chunk that will never come.
+        assertEquals(List.of("The bulk lane is full."), this.sender.cancels);
+        assertFalse(stream.isOpen());
+        assertEquals(0, this.sender.sending());
+    }
+
+    @Test
+    void overrunningTheWindowCancelsTheStream() throws Exception {
+        this.receiver.handle(new MagicLinkCore.Packets.StreamOpen(new Packet.Remote(PacketCodec.JSON_PROTOCOL, Packet.Type.from("RC", "SO"), SERVER, PROXY, Map.of(
+                MagicLinkCore.Packets.StreamOpen.Parameters.STREAM, new Parameter("overrun"),
+                MagicLinkCore.Packets.StreamOpen.Parameters.CHANNEL, new Parameter(CHANNEL),
+                MagicLinkCore.Packets.StreamOpen.Parameters.LENGTH, new Parameter(-1L)
+        ))));
+        PacketStreams.Incoming stream = this.open();
+
+        for (long sequence = 0; sequence <= PacketStreams.WINDOW; sequence++)
+            this.receiver.handle(new MagicLinkCore.Packets.StreamChunk(new Packet.Remote(PacketCodec.JSON_PROTOCOL, Packet.Type.from("RC", "SC"), SERVER, PROXY, Map.of(
+                    MagicLinkCore.Packets.StreamChunk.Parameters.STREAM, new Parameter("overrun"),
+                    MagicLinkCore.Packets.StreamChunk.Parameters.SEQUENCE, new Parameter(sequence),
+                    MagicLinkCore.Packets.StreamChunk.Parameters.DATA, new Parameter(new byte[]{1}),
+                    MagicLinkCore.Packets.StreamChunk.Parameters.LAST, new Parameter(false)
+            ))));
+
+        assertEquals(List.of("The sender overran its window."), this.receiver.cancels);
+        assertFalse(stream.isOpen());
+        assertThrows(IOException.class, () -> stream.inputStream().readAllBytes());
+    }
+}
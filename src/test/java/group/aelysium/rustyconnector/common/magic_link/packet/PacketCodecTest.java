@@ -0,0 +1,148 @@
+package group.aelysium.rustyconnector.common.magic_link.packet;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import group.aelysium.rustyconnector.common.crypt.NanoID;
+import group.aelysium.rustyconnector.common.util.Parameter;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacketCodecTest {
+    private static Packet.Local packet(Packet.Type type) {
+        Packet.SourceIdentifier local = Packet.SourceIdentifier.server("server-1");
+        local.replyEndpoint(NanoID.randomNanoID());
+
+        JsonArray array = new JsonArray();
+        array.add(1);
+        array.add("two");
+        JsonObject object = new JsonObject();
+        object.addProperty("nested", true);
+
+        return new Packet.NakedBuilder()
+                .type(type)
+                .local(local)
+                .remote(Packet.SourceIdentifier.proxy("proxy-1"))
+                .parameter("string", "hello")
+                .parameter("int", new Parameter(42))
+                .parameter("long", new Parameter(123L))
+                .parameter("boolean", new Parameter(true))
+                .parameter("array", new Parameter(array))
+                .parameter("object", new Parameter(object))
+                .parameter("bytes", new Parameter(new byte[]{0, 1, 2, (byte) 0xFF}))
+                .buildLocal();
+    }
+
+    private static void assertSamePacket(Packet expected, Packet actual) {
+        assertEquals(expected.type(), actual.type());
+        assertEquals(expected.local().id(), actual.local().id());
+        assertEquals(expected.local().origin(), actual.local().origin());
+        assertEquals(expected.local().replyEndpoint(), actual.local().replyEndpoint());
+        assertEquals(expected.remote().id(), actual.remote().id());
+        assertEquals(expected.remote().origin(), actual.remote().origin());
+        assertEquals(expected.parameters().keySet(), actual.parameters().keySet());
+
+        assertEquals("hello", actual.parameters().get("string").getAsString());
+        assertEquals(42, actual.parameters().get("int").getAsInt());
+        assertEquals(123L, actual.parameters().get("long").getAsLong());
+        assertTrue(actual.parameters().get("boolean").getAsBoolean());
+        assertEquals(expected.parameters().get("array").getAsJsonArray(), actual.parameters().get("array").getAsJsonArray());
+        assertEquals(expected.parameters().get("object").getAsJsonObject(), actual.parameters().get("object").getAsJsonObject());
+        assertArrayEquals(new byte[]{0, 1, 2, (byte) 0xFF}, actual.parameters().get("bytes").getAsBytes());
+    }
+
+    @Test
+    void binaryRoundTrip() {
+        Packet.Local packet = packet(new Packet.Type("RC-P"));
+
+        byte[] encoded = PacketCodec.encode(packet, PacketCodec.BINARY_PROTOCOL);
+        assertEquals(PacketCodec.BINARY_PROTOCOL, encoded[0]);
+
+        Packet.Remote decoded = PacketCodec.decode(encoded);
+        assertEquals(PacketCodec.BINARY_PROTOCOL, decoded.messageVersion());
+        assertSamePacket(packet, decoded);
+    }
+
+    @Test
+    void binaryKeepsWideNumbers() {
+        Packet.Local packet = new Packet.NakedBuilder()
+                .type(new Packet.Type("RC-P"))
+                .local(Packet.SourceIdentifier.server("server-1"))
+                .remote(Packet.SourceIdentifier.allAvailableProxies())
+                .parameter("long", new Parameter(Long.MAX_VALUE))
+                .parameter("short", new Parameter((short) -7))
+                .parameter("double", new Parameter(1.5D))
+                .buildLocal();
+
+        Packet.Remote decoded = PacketCodec.decode(PacketCodec.encode(packet, PacketCodec.BINARY_PROTOCOL));
+        assertEquals(Long.MAX_VALUE, decoded.parameters().get("long").getAsLong());
+        assertEquals((short) -7, decoded.parameters().get("short").getAsShort());
+        assertEquals(1.5D, decoded.parameters().get("double").getAsDouble());
+        assertNull(decoded.remote().id());
+    }
+
+    @Test
+    void binaryRoundTripWithCustomType() {
+        Packet.Local packet = packet(new Packet.Type("CUSTOM-TYPE"));
+
+        Packet.Remote decoded = PacketCodec.decode(PacketCodec.encode(packet, PacketCodec.BINARY_PROTOCOL));
+        assertSamePacket(packet, decoded);
+    }
+
+    @Test
+    void jsonRoundTrip() {
+        Packet.Local packet = packet(new Packet.Type("RC-P"));
+
+        byte[] encoded = PacketCodec.encode(packet, PacketCodec.JSON_PROTOCOL);
+        JsonObject json = JsonParser.parseString(new String(encoded, StandardCharsets.UTF_8)).getAsJsonObject();
+        assertEquals(PacketCodec.JSON_PROTOCOL, json.get(Packet.Parameters.PROTOCOL_VERSION).getAsInt());
+
+        Packet.Remote decoded = PacketCodec.decode(encoded);
+        assertEquals(PacketCodec.JSON_PROTOCOL, decoded.messageVersion());
+        assertSamePacket(packet, decoded);
+    }
+
+    @Test
+    void jsonIsStampedWithThePeersVersion() {
+        Packet.Local packet = new Packet.NakedBuilder()
+                .type(new Packet.Type("RC-P"))
+                .local(Packet.SourceIdentifier.server("server-1"))
+                .remote(Packet.SourceIdentifier.proxy("proxy-1"))
+                .protocolVersion(PacketCodec.BINARY_PROTOCOL)
+                .buildLocal();
+
+        byte[] encoded = PacketCodec.encode(packet, PacketCodec.JSON_PROTOCOL);
+        assertEquals(PacketCodec.JSON_PROTOCOL, PacketCodec.decode(encoded).messageVersion());
+    }
+
+    @Test
+    void bytesParameterSurvivesJson() {
+        Parameter bytes = new Parameter(new byte[]{5, 4, 3, 2, 1});
+        assertEquals('y', bytes.type());
+
+        // JSON has no bytes type, so they arrive as a Base64 string which is decoded on access.
+        Parameter parsed = Parameter.fromJSON(bytes.toJSON());
+        assertArrayEquals(new byte[]{5, 4, 3, 2, 1}, parsed.getAsBytes());
+    }
+
+    @Test
+    void bytesParameterKeepsItsTypeInBinary() {
+        Packet.Local packet = packet(new Packet.Type("RC-P"));
+
+        Packet.Remote decoded = PacketCodec.decode(PacketCodec.encode(packet, PacketCodec.BINARY_PROTOCOL));
+        assertEquals('y', decoded.parameters().get("bytes").type());
+    }
+
+    @Test
+    void rejectsEmptyAndTruncatedPayloads() {
+        assertThrows(IllegalArgumentException.class, () -> PacketCodec.decode(new byte[0]));
+
+        byte[] encoded = PacketCodec.encode(packet(new Packet.Type("RC-P")), PacketCodec.BINARY_PROTOCOL);
+        byte[] truncated = new byte[encoded.length / 2];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        assertThrows(IllegalArgumentException.class, () -> PacketCodec.decode(truncated));
+    }
+}
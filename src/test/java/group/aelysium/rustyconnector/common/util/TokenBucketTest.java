@@ -0,0 +1,80 @@
+package group.aelysium.rustyconnector.common.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+    @Test
+    void letsABurstOfUpToOneSecondThroughStraightAway() {
+        TokenBucket bucket = new TokenBucket(() -> 1000);
+
+        assertEquals(0, bucket.take(600));
+        assertEquals(0, bucket.take(400));
+        assertTrue(bucket.take(100) > 0);
+    }
+
+    @Test
+    void reportsHowLongUntilThereAreEnoughTokens() {
+        TokenBucket bucket = new TokenBucket(() -> 1000);
+        assertEquals(0, bucket.take(1000));
+
+        long wait = bucket.take(500);
+        // 500 tokens at 1000 per second take half a second to refill, less whatever refilled since the bucket was emptied.
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(400), "waited "+wait);
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(500), "waited "+wait);
+    }
+
+    @Test
+    void refusedRequestsTakeNothing() {
+        TokenBucket bucket = new TokenBucket(() -> 1000);
+        assertEquals(0, bucket.take(900));
+
+        assertTrue(bucket.take(500) > 0);
+        assertEquals(0, bucket.take(100));
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(() -> 10_000);
+        assertEquals(0, bucket.take(10_000));
+        assertTrue(bucket.take(1000) > 0);
+
+        Thread.sleep(150);
+        assertEquals(0, bucket.take(1000));
+    }
+
+    @Test
+    void requestsLargerThanTheBucketStillGoThrough() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(() -> 100_000);
+        assertEquals(0, bucket.take(100_000));
+
+        long wait = bucket.take(150_000);
+        assertTrue(wait > 0);
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(1500), "waited "+wait);
+
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(wait) + 10);
+        assertEquals(0, bucket.take(150_000));
+    }
+
+    @Test
+    void aRateOfZeroDisablesTheLimit() {
+        TokenBucket bucket = new TokenBucket(() -> 0);
+        for (int i = 0; i < 100; i++)
+            assertEquals(0, bucket.take(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    void readsTheRateEveryTime() {
+        AtomicLong rate = new AtomicLong(100);
+        TokenBucket bucket = new TokenBucket(rate::get);
+        assertEquals(0, bucket.take(100));
+        assertTrue(bucket.take(100) > 0);
+
+        rate.set(0);
+        assertEquals(0, bucket.take(100));
+    }
+}
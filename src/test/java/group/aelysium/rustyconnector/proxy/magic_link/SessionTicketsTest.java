@@ -0,0 +1,78 @@
+package group.aelysium.rustyconnector.proxy.magic_link;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionTicketsTest {
+    @Test
+    void acceptsTheIssuedTicketOnce() {
+        SessionTickets tickets = new SessionTickets();
+        String ticket = tickets.issue("server-1");
+
+        assertTrue(tickets.valid("server-1", ticket));
+        assertFalse(tickets.valid("server-1", ticket));
+        assertEquals(0, tickets.issued());
+    }
+
+    @Test
+    void rejectsWrongTicketsWithoutConsumingTheRealOne() {
+        SessionTickets tickets = new SessionTickets();
+        String ticket = tickets.issue("server-1");
+
+        assertFalse(tickets.valid("server-1", "not-the-ticket"));
+        assertFalse(tickets.valid("server-2", ticket));
+        assertTrue(tickets.valid("server-1", ticket));
+    }
+
+    @Test
+    void reissuingReplacesTheOldTicket() {
+        SessionTickets tickets = new SessionTickets();
+        String first = tickets.issue("server-1");
+        String second = tickets.issue("server-1");
+
+        assertNotEquals(first, second);
+        assertFalse(tickets.valid("server-1", first));
+        assertTrue(tickets.valid("server-1", second));
+    }
+
+    @Test
+    void revokedTicketsAreInvalid() {
+        SessionTickets tickets = new SessionTickets();
+        String ticket = tickets.issue("server-1");
+        tickets.revoke("server-1");
+
+        assertFalse(tickets.valid("server-1", ticket));
+    }
+
+    @Test
+    void onlyOneConcurrentResumeSucceeds() throws InterruptedException {
+        SessionTickets tickets = new SessionTickets();
+        String ticket = tickets.issue("server-1");
+
+        AtomicInteger accepted = new AtomicInteger(0);
+        CountDownLatch start = new CountDownLatch(1);
+        try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            for (int i = 0; i < 8; i++)
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if(tickets.valid("server-1", ticket)) accepted.incrementAndGet();
+                });
+            start.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(1, accepted.get());
+    }
+}
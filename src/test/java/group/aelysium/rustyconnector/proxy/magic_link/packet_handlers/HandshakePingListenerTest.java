@@ -0,0 +1,140 @@
+package group.aelysium.rustyconnector.proxy.magic_link.packet_handlers;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import group.aelysium.rustyconnector.common.magic_link.MagicLinkCore;
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.proxy.family.Server;
+import group.aelysium.rustyconnector.proxy.magic_link.ServerTimeouts;
+import group.aelysium.rustyconnector.proxy.magic_link.SessionTickets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HandshakePingListenerTest {
+    private ServerTimeouts timeouts;
+    private HandshakePingListener listener;
+    private Server server;
+
+    @BeforeEach
+    void setUp() {
+        this.timeouts = new ServerTimeouts(10, TimeUnit.MILLISECONDS, id -> {});
+        this.listener = new HandshakePingListener(this.timeouts, new SessionTickets(), () -> 100);
+        this.server = new Server("server-1", new InetSocketAddress("127.0.0.1", 25565), Map.of(), 15);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.timeouts.close();
+    }
+
+    private static MagicLinkCore.Packets.Ping ping(boolean snapshot, int version, JsonObject metadata, JsonObject changed, List<String> removed) {
+        JsonObject parameters = new JsonObject();
+        parameters.add(MagicLinkCore.Packets.Ping.Parameters.ADDRESS, new JsonPrimitive("127.0.0.1:25565"));
+        parameters.add(MagicLinkCore.Packets.Ping.Parameters.PLAYER_COUNT, new JsonPrimitive(0));
+        if(snapshot) parameters.add(MagicLinkCore.Packets.Ping.Parameters.TARGET_FAMILY, new JsonPrimitive("lobby"));
+        parameters.add(MagicLinkCore.Packets.Ping.Parameters.METADATA, changed);
+        if(!removed.isEmpty()) {
+            JsonArray array = new JsonArray();
+            removed.forEach(array::add);
+            parameters.add(MagicLinkCore.Packets.Ping.Parameters.REMOVED_METADATA, array);
+        }
+        parameters.add(MagicLinkCore.Packets.Ping.Parameters.VERSION, new JsonPrimitive(version));
+        parameters.add(MagicLinkCore.Packets.Ping.Parameters.HASH, new JsonPrimitive(MagicLinkCore.Packets.Ping.hash(metadata)));
+
+        JsonObject packet = new JsonObject();
+        packet.add("v", new JsonPrimitive(3));
+        packet.add("i", new JsonPrimitive("RC-P"));
+        packet.add("s", Packet.SourceIdentifier.server("server-1").toJSON());
+        packet.add("t", Packet.SourceIdentifier.allAvailableProxies().toJSON());
+        packet.add("p", parameters);
+        return new MagicLinkCore.Packets.Ping(Packet.parseIncoming(packet.toString()));
+    }
+
+    private static MagicLinkCore.Packets.Ping snapshot(int version, JsonObject metadata) {
+        return ping(true, version, metadata, metadata, List.of());
+    }
+
+    private static MagicLinkCore.Packets.Ping delta(int version, JsonObject metadata, JsonObject changed, List<String> removed) {
+        return ping(false, version, metadata, changed, removed);
+    }
+
+    private static JsonObject metadata(Object... entries) {
+        JsonObject object = new JsonObject();
+        for (int i = 0; i < entries.length; i += 2) object.add((String) entries[i], new JsonPrimitive(entries[i + 1].toString()));
+        return object;
+    }
+
+    @Test
+    void appliesDeltasOnTopOfTheSnapshot() {
+        assertTrue(this.listener.sync(this.server, snapshot(0, metadata("motd", "hello", "map", "spawn"))));
+
+        assertTrue(this.listener.sync(this.server, delta(1, metadata("motd", "goodbye"), metadata("motd", "goodbye"), List.of("map"))));
+        assertEquals("goodbye", this.server.fetchMetadata("motd").orElse(null));
+        assertTrue(this.server.fetchMetadata("map").isEmpty());
+    }
+
+    @Test
+    void unchangedPingsKeepTheSameVersion() {
+        JsonObject metadata = metadata("motd", "hello");
+        assertTrue(this.listener.sync(this.server, snapshot(4, metadata)));
+        assertTrue(this.listener.sync(this.server, delta(4, metadata, new JsonObject(), List.of())));
+    }
+
+    @Test
+    void missedDeltasRequireASnapshot() {
+        assertTrue(this.listener.sync(this.server, snapshot(0, metadata("motd", "hello"))));
+
+        // Version 1 never arrived.
+        assertFalse(this.listener.sync(this.server, delta(2, metadata("motd", "again"), metadata("motd", "again"), List.of())));
+        // Even deltas which would line up again aren't accepted until a snapshot has been applied.
+        assertFalse(this.listener.sync(this.server, delta(3, metadata("motd", "third"), metadata("motd", "third"), List.of())));
+
+        assertTrue(this.listener.sync(this.server, snapshot(3, metadata("motd", "third"))));
+        assertTrue(this.listener.sync(this.server, delta(4, metadata("motd", "fourth"), metadata("motd", "fourth"), List.of())));
+    }
+
+    @Test
+    void mismatchedHashesRequireASnapshot() {
+        assertTrue(this.listener.sync(this.server, snapshot(0, metadata("motd", "hello"))));
+        assertFalse(this.listener.sync(this.server, delta(1, metadata("motd", "something else"), metadata("motd", "goodbye"), List.of())));
+        assertFalse(this.listener.sync(this.server, delta(1, metadata("motd", "goodbye"), new JsonObject(), List.of())));
+    }
+
+    @Test
+    void snapshotsRemoveMetadataTheServerDropped() {
+        assertTrue(this.listener.sync(this.server, snapshot(0, metadata("motd", "hello", "map", "spawn"))));
+
+        // A delta is missed, during which the server dropped "map".
+        assertFalse(this.listener.sync(this.server, delta(2, metadata("motd", "hello"), new JsonObject(), List.of("map"))));
+        assertTrue(this.listener.sync(this.server, snapshot(2, metadata("motd", "hello"))));
+
+        assertTrue(this.server.fetchMetadata("map").isEmpty());
+        assertEquals("hello", this.server.fetchMetadata("motd").orElse(null));
+    }
+
+    @Test
+    void snapshotsLeaveMetadataTheServerNeverReported() {
+        assertTrue(this.listener.sync(this.server, snapshot(0, metadata("motd", "hello"))));
+        assertTrue(this.listener.sync(this.server, snapshot(1, metadata("map", "spawn"))));
+
+        assertTrue(this.server.fetchMetadata("motd").isEmpty());
+        assertEquals(30, this.server.fetchMetadata("softCap").orElse(null));
+    }
+
+    @Test
+    void forgottenServersNeedASnapshot() {
+        assertTrue(this.listener.sync(this.server, snapshot(0, metadata("motd", "hello"))));
+        this.listener.forget(this.server.id());
+
+        assertFalse(this.listener.sync(this.server, delta(1, metadata("motd", "bye"), metadata("motd", "bye"), List.of())));
+    }
+}
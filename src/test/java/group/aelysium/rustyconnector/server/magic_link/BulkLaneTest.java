@@ -0,0 +1,94 @@
+package group.aelysium.rustyconnector.server.magic_link;
+
+import group.aelysium.rustyconnector.common.crypt.NanoID;
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.common.magic_link.packet.PacketCodec;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkLaneTest {
+    private final List<Packet.Local> dropped = new CopyOnWriteArrayList<>();
+    private BulkLane lane;
+
+    private BulkLane lane(long rate) {
+        this.lane = new BulkLane(8, () -> rate, this.dropped::add);
+        return this.lane;
+    }
+
+    private static Packet.Local packet() {
+        Packet.SourceIdentifier local = Packet.SourceIdentifier.server("server-1");
+        local.replyEndpoint(NanoID.randomNanoID());
+        return new Packet.Local(PacketCodec.JSON_PROTOCOL, new Packet.Type("RC-P"), local, Packet.SourceIdentifier.proxy("proxy-1"), Map.of());
+    }
+
+    @AfterEach
+    void tearDown() {
+        if(this.lane != null) this.lane.close();
+    }
+
+    @Test
+    void writesStraightAwayWhenUnlimited() {
+        BulkLane lane = this.lane(0);
+        List<Integer> written = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int index = i;
+            assertTrue(lane.offer(10, packet(), () -> written.add(index)));
+        }
+
+        assertEquals(List.of(0, 1, 2), written);
+        assertEquals(0, lane.size());
+    }
+
+    @Test
+    void holdsWritesBackToTheRate() {
+        BulkLane lane = this.lane(1);
+        List<Integer> written = new CopyOnWriteArrayList<>();
+        assertTrue(lane.offer(100, packet(), () -> written.add(0)));
+
+        assertTrue(written.isEmpty());
+        assertEquals(1, lane.size());
+        assertEquals(1, lane.throttled());
+    }
+
+    @Test
+    void refusesWritesOnceFull() {
+        BulkLane lane = this.lane(1);
+        for (int i = 0; i < lane.capacity(); i++) assertTrue(lane.offer(100, packet(), () -> true));
+
+        assertFalse(lane.offer(100, packet(), () -> true));
+        assertEquals(lane.capacity(), lane.size());
+    }
+
+    @Test
+    void countsWritesWhichCouldntBeSent() {
+        BulkLane lane = this.lane(0);
+        lane.offer(10, packet(), () -> false);
+        lane.offer(10, packet(), () -> true);
+
+        assertEquals(1, lane.failed());
+    }
+
+    @Test
+    void closingHandsEveryWaitingPacketToOnDrop() {
+        BulkLane lane = this.lane(1);
+        Packet.Local first = packet();
+        Packet.Local second = packet();
+        lane.offer(100, first, () -> true);
+        lane.offer(100, null, () -> true);
+        lane.offer(100, second, () -> true);
+
+        lane.close();
+
+        // The batch in the middle has no single packet to fail, so it's only counted.
+        assertEquals(List.of(first, second), this.dropped);
+        assertEquals(0, lane.size());
+        assertEquals(3, lane.failed());
+        assertFalse(lane.offer(10, packet(), () -> true));
+    }
+}
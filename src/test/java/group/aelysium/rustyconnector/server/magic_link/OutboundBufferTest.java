@@ -0,0 +1,201 @@
+package group.aelysium.rustyconnector.server.magic_link;
+
+import group.aelysium.rustyconnector.common.crypt.NanoID;
+import group.aelysium.rustyconnector.common.magic_link.packet.Packet;
+import group.aelysium.rustyconnector.common.magic_link.packet.PacketCodec;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundBufferTest {
+    private final List<Packet.Local> expired = new CopyOnWriteArrayList<>();
+    private final CountDownLatch expiring = new CountDownLatch(1);
+    private OutboundBuffer buffer;
+
+    private OutboundBuffer buffer(int capacity) {
+        this.buffer = new OutboundBuffer(capacity, p -> {
+            this.expired.add(p);
+            this.expiring.countDown();
+        });
+        return this.buffer;
+    }
+
+    private static Packet.Local packet() {
+        Packet.SourceIdentifier local = Packet.SourceIdentifier.server("server-1");
+        local.replyEndpoint(NanoID.randomNanoID());
+        return new Packet.Local(PacketCodec.JSON_PROTOCOL, new Packet.Type("RC-P"), local, Packet.SourceIdentifier.proxy("proxy-1"), Map.of());
+    }
+
+    @AfterEach
+    void tearDown() {
+        if(this.buffer != null) this.buffer.close();
+    }
+
+    @Test
+    void flushesInTheOrderPacketsWereBuffered() {
+        OutboundBuffer buffer = this.buffer(8);
+        List<Packet.Local> packets = List.of(packet(), packet(), packet());
+        packets.forEach(p -> assertTrue(buffer.offer(p, 10, TimeUnit.SECONDS)));
+
+        List<Packet.Local> sent = new ArrayList<>();
+        buffer.flush(sent::add);
+
+        assertEquals(packets, sent);
+        assertEquals(0, buffer.size());
+        assertEquals(3, buffer.buffered());
+        assertEquals(3, buffer.flushed());
+    }
+
+    @Test
+    void packetsWhichCantBeSentStayAtTheFront() {
+        OutboundBuffer buffer = this.buffer(8);
+        Packet.Local first = packet();
+        Packet.Local second = packet();
+        buffer.offer(first, 10, TimeUnit.SECONDS);
+        buffer.offer(second, 10, TimeUnit.SECONDS);
+
+        buffer.flush(p -> false);
+        assertEquals(2, buffer.size());
+
+        List<Packet.Local> sent = new ArrayList<>();
+        buffer.flush(sent::add);
+        assertEquals(List.of(first, second), sent);
+    }
+
+    @Test
+    void dropsPacketsOnceFull() throws InterruptedException {
+        OutboundBuffer buffer = this.buffer(2);
+        assertTrue(buffer.offer(packet(), 10, TimeUnit.SECONDS));
+        assertTrue(buffer.offer(packet(), 10, TimeUnit.SECONDS));
+
+        Packet.Local overflow = packet();
+        assertFalse(buffer.offer(overflow, 10, TimeUnit.SECONDS));
+
+        assertTrue(this.expiring.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(overflow), this.expired);
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.dropped());
+    }
+
+    @Test
+    void expiresPacketsOnceTheirTimeToLivePasses() throws InterruptedException {
+        OutboundBuffer buffer = this.buffer(8);
+        Packet.Local packet = packet();
+        buffer.offer(packet, 30, TimeUnit.MILLISECONDS);
+
+        assertTrue(this.expiring.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(packet), this.expired);
+        assertEquals(0, buffer.size());
+        assertEquals(1, buffer.expired());
+
+        List<Packet.Local> sent = new ArrayList<>();
+        buffer.flush(sent::add);
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    void flushedPacketsNeverExpire() throws InterruptedException {
+        OutboundBuffer buffer = this.buffer(8);
+        buffer.offer(packet(), 30, TimeUnit.MILLISECONDS);
+        buffer.flush(p -> true);
+
+        assertFalse(this.expiring.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, buffer.expired());
+    }
+
+    @Test
+    void closingExpiresEveryBufferedPacket() {
+        OutboundBuffer buffer = this.buffer(8);
+        Packet.Local first = packet();
+        Packet.Local second = packet();
+        buffer.offer(first, 10, TimeUnit.SECONDS);
+        buffer.offer(second, 10, TimeUnit.SECONDS);
+
+        buffer.close();
+
+        assertEquals(List.of(first, second), this.expired);
+        assertEquals(0, buffer.size());
+        assertEquals(2, buffer.expired());
+    }
+
+    @Test
+    void transferringMovesPacketsInOrderWithWhatsLeftOfTheirTimeToLive() throws InterruptedException {
+        OutboundBuffer buffer = this.buffer(8);
+        List<Packet.Local> moved = new CopyOnWriteArrayList<>();
+        CountDownLatch movedExpired = new CountDownLatch(1);
+        OutboundBuffer target = new OutboundBuffer(8, p -> {
+            moved.add(p);
+            movedExpired.countDown();
+        });
+        try {
+            Packet.Local shortLived = packet();
+            Packet.Local longLived = packet();
+            buffer.offer(shortLived, 50, TimeUnit.MILLISECONDS);
+            buffer.offer(longLived, 10, TimeUnit.SECONDS);
+
+            buffer.transferTo(target);
+            assertEquals(0, buffer.size());
+            assertEquals(2, target.size());
+
+            // The short lived packet expires from the new buffer, instead of getting a fresh time to live.
+            assertTrue(movedExpired.await(2, TimeUnit.SECONDS));
+            assertEquals(List.of(shortLived), moved);
+
+            List<Packet.Local> sent = new ArrayList<>();
+            target.flush(sent::add);
+            assertEquals(List.of(longLived), sent);
+
+            // Nothing fails in the old buffer, since nothing was lost.
+            assertFalse(this.expiring.await(100, TimeUnit.MILLISECONDS));
+            assertEquals(0, buffer.expired());
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    void bulkPacketsInFlightMoveAheadOfBufferedOnesWhenSwitchingProxies() {
+        // The old link: one packet held back by the bulk rate, and one buffered after the connection dropped.
+        List<Packet.Local> dropped = new CopyOnWriteArrayList<>();
+        BulkLane lane = new BulkLane(8, () -> 1, dropped::add);
+        OutboundBuffer buffer = this.buffer(8);
+        OutboundBuffer target = new OutboundBuffer(8, p -> {});
+        try {
+            Packet.Local inFlight = packet();
+            Packet.Local buffered = packet();
+            List<Packet.Local> written = new ArrayList<>();
+            assertTrue(lane.offer(100, inFlight, () -> written.add(inFlight)));
+            buffer.offer(buffered, 10, TimeUnit.SECONDS);
+
+            // What rediscovering a proxy does with the old link before closing it.
+            List<Long> remaining = new ArrayList<>();
+            lane.drainTo((packet, queuedAt) -> {
+                long ttl = TimeUnit.SECONDS.toNanos(10) - (System.nanoTime() - queuedAt);
+                remaining.add(ttl);
+                target.offer(packet, ttl, TimeUnit.NANOSECONDS);
+            });
+            buffer.transferTo(target);
+            lane.close();
+
+            assertTrue(written.isEmpty());
+            assertTrue(dropped.isEmpty());
+            assertEquals(0, lane.size());
+            assertTrue(remaining.getFirst() > 0 && remaining.getFirst() < TimeUnit.SECONDS.toNanos(10));
+
+            List<Packet.Local> sent = new ArrayList<>();
+            target.flush(sent::add);
+            assertEquals(List.of(inFlight, buffered), sent);
+        } finally {
+            lane.close();
+            target.close();
+        }
+    }
+}
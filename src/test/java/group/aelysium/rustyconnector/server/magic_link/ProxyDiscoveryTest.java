@@ -0,0 +1,133 @@
+package group.aelysium.rustyconnector.server.magic_link;
+
+import com.google.gson.JsonArray;
+import group.aelysium.rustyconnector.common.crypt.AES;
+import group.aelysium.rustyconnector.common.magic_link.ProxyAnnouncement;
+import group.aelysium.rustyconnector.common.util.IPV6Broadcaster;
+import group.aelysium.rustyconnector.common.util.URL;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyDiscoveryTest {
+    private static final long INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private Path directory;
+    private Path cache;
+    private IPV6Broadcaster broadcaster;
+    private ProxyDiscovery discovery;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("proxy-discovery");
+        this.cache = this.directory.resolve("proxies.json");
+
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        this.broadcaster = new IPV6Broadcaster(AES.from(AES.createKey()), new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if(this.discovery != null) this.discovery.close();
+        this.broadcaster.close();
+        try (var files = Files.walk(this.directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static ProxyAnnouncement announcement(String proxy, int load, long age) throws Exception {
+        return new ProxyAnnouncement(proxy, URL.parseURL("http://"+proxy+":8080"), load, INTERVAL, System.currentTimeMillis() - age);
+    }
+
+    private ProxyDiscovery discover(ProxyAnnouncement... cached) throws Exception {
+        JsonArray array = new JsonArray();
+        for (ProxyAnnouncement announcement : cached) array.add(announcement.toJSON());
+        Files.writeString(this.cache, array.toString(), StandardCharsets.UTF_8);
+
+        this.discovery = new ProxyDiscovery(this.broadcaster, this.cache);
+        return this.discovery;
+    }
+
+    @Test
+    void picksTheFreshProxyWithTheFewestServers() throws Exception {
+        ProxyDiscovery discovery = this.discover(
+                announcement("busy", 20, 0),
+                announcement("quiet", 3, 0),
+                // Has the fewest servers, but has missed too many announcements to be picked.
+                announcement("gone", 1, INTERVAL * (ProxyAnnouncement.missedAnnouncements + 1))
+        );
+
+        assertEquals("quiet", discovery.leastLoaded().orElseThrow().proxy());
+    }
+
+    @Test
+    void spreadsTiesBetweenEqualProxies() throws Exception {
+        ProxyDiscovery discovery = this.discover(
+                announcement("a", 3, 0),
+                announcement("b", 3, 0),
+                announcement("busy", 20, 0)
+        );
+
+        Set<String> picked = new HashSet<>();
+        for (int i = 0; i < 200; i++) picked.add(discovery.leastLoaded().orElseThrow().proxy());
+        assertEquals(Set.of("a", "b"), picked);
+    }
+
+    @Test
+    void fallsBackToTheMostRecentlyHeardFromProxy() throws Exception {
+        long stale = INTERVAL * (ProxyAnnouncement.missedAnnouncements + 1);
+        ProxyDiscovery discovery = this.discover(
+                announcement("older", 1, stale * 3),
+                announcement("newer", 20, stale)
+        );
+
+        assertEquals("newer", discovery.leastLoaded().orElseThrow().proxy());
+    }
+
+    @Test
+    void forgetsCachedProxiesOlderThanADay() throws Exception {
+        ProxyDiscovery discovery = this.discover(announcement("ancient", 1, TimeUnit.DAYS.toMillis(2)));
+
+        assertTrue(discovery.leastLoaded().isEmpty());
+        assertTrue(discovery.proxies().isEmpty());
+    }
+
+    @Test
+    void picksUpProxiesAsTheyAnnounceThemselves() throws Exception {
+        ProxyDiscovery discovery = this.discover(announcement("busy", 20, 0));
+        CountDownLatch announced = new CountDownLatch(1);
+        discovery.onAnnouncement(a -> announced.countDown());
+
+        this.broadcaster.sendEncrypted(announcement("quiet", 3, 0).toString());
+
+        assertTrue(announced.await(2, TimeUnit.SECONDS));
+        assertEquals("quiet", discovery.leastLoaded().orElseThrow().proxy());
+        assertEquals(1, discovery.announcements());
+    }
+
+    @Test
+    void cachesDiscoveredProxies() throws Exception {
+        ProxyDiscovery discovery = this.discover(announcement("quiet", 3, 0));
+        discovery.close();
+        this.discovery = null;
+
+        this.discovery = new ProxyDiscovery(this.broadcaster, this.cache);
+        assertEquals("quiet", this.discovery.leastLoaded().orElseThrow().proxy());
+    }
+}